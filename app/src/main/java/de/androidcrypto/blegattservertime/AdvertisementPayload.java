@@ -0,0 +1,224 @@
+package de.androidcrypto.blegattservertime;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Layout of the legacy advertisement, computed before advertising starts.
+ *
+ * Advertising data and scan response each hold 31 bytes of AD structures
+ * (length, type, data). The advertising data also carries the 3 byte Flags
+ * structure the stack adds for a connectable advertisement. The compiler
+ * lays the structures out the way the stack encodes an AdvertiseData:
+ * service UUIDs grouped into one complete list per UUID size, in 16, 32,
+ * 128 bit order, and the device name as complete local name.
+ *
+ * The service UUIDs go into the advertising data in the given order, so
+ * scanners can filter on them; what does not fit spills into the scan
+ * response. The name follows in the packet that still has room for it, and
+ * is shortened to fit the larger remainder otherwise. A layout that can not
+ * hold all service UUIDs fails here instead of with
+ * ADVERTISE_FAILED_DATA_TOO_LARGE at runtime.
+ */
+public final class AdvertisementPayload {
+
+    /* Bytes of AD structures in legacy advertising data or scan response */
+    public static final int LEGACY_DATA_LENGTH = 31;
+
+    static final int TYPE_FLAGS = 0x01;
+    static final int TYPE_UUID16_COMPLETE = 0x03;
+    static final int TYPE_UUID32_COMPLETE = 0x05;
+    static final int TYPE_UUID128_COMPLETE = 0x07;
+    static final int TYPE_NAME_COMPLETE = 0x09;
+    /* LE General Discoverable, BR/EDR not supported */
+    static final int FLAGS_GENERAL_DISCOVERABLE = 0x06;
+
+    private static final int HEADER_LENGTH = 2;
+    private static final int FLAGS_LENGTH = HEADER_LENGTH + 1;
+    private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    private final String mName;
+    private final boolean mNameShortened;
+    private final boolean mNameInScanResponse;
+    private final UUID[] mAdvertisedUuids;
+    private final UUID[] mScanResponseUuids;
+    private final byte[] mAdvertisingData;
+    private final byte[] mScanResponseData;
+
+    private AdvertisementPayload(String name, boolean nameShortened, boolean nameInScanResponse,
+                                 List<UUID> advertisedUuids, List<UUID> scanResponseUuids) {
+        mName = name;
+        mNameShortened = nameShortened;
+        mNameInScanResponse = nameInScanResponse;
+        mAdvertisedUuids = advertisedUuids.toArray(new UUID[0]);
+        mScanResponseUuids = scanResponseUuids.toArray(new UUID[0]);
+        mAdvertisingData = encode(true, mAdvertisedUuids, name != null && !nameInScanResponse ? name : null);
+        mScanResponseData = encode(false, mScanResponseUuids, name != null && nameInScanResponse ? name : null);
+    }
+
+    /**
+     * Lay out the name and the service UUIDs.
+     *
+     * @throws IllegalArgumentException if the service UUIDs do not fit into
+     *                                  advertising data and scan response
+     */
+    public static AdvertisementPayload compile(String name, UUID... serviceUuids) {
+        int[] advertisedWidths = new int[17];
+        int[] scanResponseWidths = new int[17];
+        int advertisingFree = LEGACY_DATA_LENGTH - FLAGS_LENGTH;
+        int scanResponseFree = LEGACY_DATA_LENGTH;
+        List<UUID> advertisedUuids = new ArrayList<>();
+        List<UUID> scanResponseUuids = new ArrayList<>();
+        for (UUID uuid : serviceUuids) {
+            int width = widthOf(uuid);
+            int advertisingCost = width + (advertisedWidths[width] == 0 ? HEADER_LENGTH : 0);
+            int scanResponseCost = width + (scanResponseWidths[width] == 0 ? HEADER_LENGTH : 0);
+            if (advertisingCost <= advertisingFree) {
+                advertisingFree -= advertisingCost;
+                advertisedWidths[width]++;
+                advertisedUuids.add(uuid);
+            } else if (scanResponseCost <= scanResponseFree) {
+                scanResponseFree -= scanResponseCost;
+                scanResponseWidths[width]++;
+                scanResponseUuids.add(uuid);
+            } else {
+                throw new IllegalArgumentException("Service UUIDs do not fit into the advertisement: " + uuid);
+            }
+        }
+
+        if (name == null || name.isEmpty()) {
+            return new AdvertisementPayload(null, false, false, advertisedUuids, scanResponseUuids);
+        }
+        int nameLength = name.getBytes(StandardCharsets.UTF_8).length;
+        if (HEADER_LENGTH + nameLength <= advertisingFree) {
+            return new AdvertisementPayload(name, false, false, advertisedUuids, scanResponseUuids);
+        }
+        if (HEADER_LENGTH + nameLength <= scanResponseFree) {
+            return new AdvertisementPayload(name, false, true, advertisedUuids, scanResponseUuids);
+        }
+        boolean inScanResponse = scanResponseFree >= advertisingFree;
+        String shortened = shorten(name, (inScanResponse ? scanResponseFree : advertisingFree) - HEADER_LENGTH);
+        if (shortened.isEmpty()) {
+            return new AdvertisementPayload(null, true, false, advertisedUuids, scanResponseUuids);
+        }
+        return new AdvertisementPayload(shortened, true, inScanResponse, advertisedUuids, scanResponseUuids);
+    }
+
+    /**
+     * Return the name to advertise, shortened if needed, or null if it does
+     * not fit at all.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    public boolean isNameShortened() {
+        return mNameShortened;
+    }
+
+    public boolean isNameInScanResponse() {
+        return mNameInScanResponse;
+    }
+
+    public UUID[] getAdvertisedUuids() {
+        return mAdvertisedUuids.clone();
+    }
+
+    public UUID[] getScanResponseUuids() {
+        return mScanResponseUuids.clone();
+    }
+
+    public boolean hasScanResponse() {
+        return mScanResponseData.length > 0;
+    }
+
+    /**
+     * Return the AD structures of the advertising data, including Flags.
+     */
+    public byte[] getAdvertisingData() {
+        return mAdvertisingData.clone();
+    }
+
+    /**
+     * Return the AD structures of the scan response, empty if there is none.
+     */
+    public byte[] getScanResponseData() {
+        return mScanResponseData.clone();
+    }
+
+    /**
+     * Return 2 for a 16 bit, 4 for a 32 bit Bluetooth SIG UUID, 16 otherwise.
+     */
+    static int widthOf(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        if (uuid.getLeastSignificantBits() != BASE_UUID_LSB || (msb & 0xFFFFFFFFL) != 0x1000L) {
+            return 16;
+        }
+        return (msb >>> 48) == 0 ? 2 : 4;
+    }
+
+    /**
+     * Cut the name to at most maxLength UTF-8 bytes, without splitting a
+     * character.
+     */
+    static String shorten(String name, int maxLength) {
+        int length = 0;
+        int end = 0;
+        while (end < name.length()) {
+            int codePoint = name.codePointAt(end);
+            int bytes = codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+            if (length + bytes > maxLength) break;
+            length += bytes;
+            end += Character.charCount(codePoint);
+        }
+        return name.substring(0, end);
+    }
+
+    private static byte[] encode(boolean flags, UUID[] uuids, String name) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(LEGACY_DATA_LENGTH);
+        if (flags) {
+            data.write(2);
+            data.write(TYPE_FLAGS);
+            data.write(FLAGS_GENERAL_DISCOVERABLE);
+        }
+        writeUuids(data, uuids, 2, TYPE_UUID16_COMPLETE);
+        writeUuids(data, uuids, 4, TYPE_UUID32_COMPLETE);
+        writeUuids(data, uuids, 16, TYPE_UUID128_COMPLETE);
+        if (name != null) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            data.write(bytes.length + 1);
+            data.write(TYPE_NAME_COMPLETE);
+            data.write(bytes, 0, bytes.length);
+        }
+        return data.toByteArray();
+    }
+
+    private static void writeUuids(ByteArrayOutputStream data, UUID[] uuids, int width, int type) {
+        int count = 0;
+        for (UUID uuid : uuids) {
+            if (widthOf(uuid) == width) count++;
+        }
+        if (count == 0) return;
+        data.write(count * width + 1);
+        data.write(type);
+        for (UUID uuid : uuids) {
+            if (widthOf(uuid) != width) continue;
+            if (width == 16) {
+                // little endian, least significant half first
+                writeLittleEndian(data, uuid.getLeastSignificantBits(), 8);
+                writeLittleEndian(data, uuid.getMostSignificantBits(), 8);
+            } else {
+                writeLittleEndian(data, uuid.getMostSignificantBits() >>> 32, width);
+            }
+        }
+    }
+
+    private static void writeLittleEndian(ByteArrayOutputStream data, long value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            data.write((int) (value >>> (8 * i)));
+        }
+    }
+}
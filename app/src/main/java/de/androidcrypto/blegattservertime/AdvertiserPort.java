@@ -0,0 +1,25 @@
+package de.androidcrypto.blegattservertime;
+
+/**
+ * Starts and stops the connectable advertisement of the GATT server.
+ */
+public interface AdvertiserPort {
+
+    /**
+     * Result of a start request.
+     */
+    interface Callback {
+        void onStartSuccess();
+
+        void onStartFailure(int errorCode);
+    }
+
+    /**
+     * Start advertising with the given AdvertiseSettings mode and TX power level.
+     *
+     * @return false if advertising is not available.
+     */
+    boolean startAdvertising(int mode, int txPowerLevel, Callback callback);
+
+    void stopAdvertising();
+}
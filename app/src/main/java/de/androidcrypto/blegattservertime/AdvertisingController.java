@@ -0,0 +1,236 @@
+package de.androidcrypto.blegattservertime;
+
+import android.bluetooth.le.AdvertiseSettings;
+
+/**
+ * Chooses how the server advertises, depending on how many devices are
+ * connected.
+ *
+ * Advertising starts with a short low latency burst, so a central that is
+ * scanning right now finds the server within a few hundred milliseconds,
+ * and then falls back to low power. Every disconnect starts another burst,
+ * as the central often reconnects right away. Once the connection cap is
+ * reached advertising stops, and it resumes with a burst when a device
+ * disconnects.
+ *
+ * The time from the start of a burst to the next connection is recorded as
+ * time to first connection, split by whether the connection came in during
+ * the burst or after it, to tune the burst length against discovery latency.
+ */
+public class AdvertisingController {
+
+    public static final int STATE_STOPPED = 0;
+    public static final int STATE_BURST = 1;
+    public static final int STATE_LOW_POWER = 2;
+    /* Stopped because the connection cap is reached */
+    public static final int STATE_CAPPED = 3;
+
+    /**
+     * Receives changes of the advertising state, on the thread that caused
+     * them.
+     */
+    public interface Listener {
+        void onAdvertisingChanged();
+    }
+
+    private final AdvertiserPort mPort;
+    private final Scheduler mScheduler;
+    private final TimerWheel.Clock mClock;
+    private final EventLog mEventLog;
+    private final int mMaxConnections;
+    private final long mBurstMillis;
+    private final int mTxPowerLevel;
+    private final LatencyHistogram mTimeToFirstConnection = new LatencyHistogram();
+    private volatile Listener mListener;
+
+    // guarded by this
+    private int mState = STATE_STOPPED;
+    private int mConnectedDevices;
+    private boolean mAdvertising;
+    private Scheduler.Cancellable mBurstEnd;
+    // start of the burst that has not seen a connection yet, -1 if none
+    private long mWindowStartMillis = -1;
+    private long mConnectionsInBurst;
+    private long mConnectionsAfterBurst;
+
+    /**
+     * @param maxConnections stop advertising with this many devices connected
+     * @param burstMillis    length of the low latency burst
+     * @param txPowerLevel   an AdvertiseSettings TX power level
+     */
+    public AdvertisingController(AdvertiserPort port, Scheduler scheduler, TimerWheel.Clock clock,
+                                 EventLog eventLog, int maxConnections, long burstMillis, int txPowerLevel) {
+        mPort = port;
+        mScheduler = scheduler;
+        mClock = clock;
+        mEventLog = eventLog;
+        mMaxConnections = maxConnections;
+        mBurstMillis = burstMillis;
+        mTxPowerLevel = txPowerLevel;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Start advertising, e.g. once the server is ready.
+     */
+    public void start() {
+        synchronized (this) {
+            if (mState != STATE_STOPPED) return;
+            if (mConnectedDevices >= mMaxConnections) {
+                mState = STATE_CAPPED;
+            } else {
+                startBurst();
+            }
+        }
+        notifyListener();
+    }
+
+    /**
+     * Stop advertising, e.g. because Bluetooth was turned off.
+     */
+    public void stop() {
+        synchronized (this) {
+            cancelBurstEnd();
+            mState = STATE_STOPPED;
+            mAdvertising = false;
+            mWindowStartMillis = -1;
+            mPort.stopAdvertising();
+        }
+        notifyListener();
+    }
+
+    /**
+     * Update the policy after a device connected or disconnected.
+     */
+    public void onConnectionStateChanged(boolean connected, int connectedDevices) {
+        synchronized (this) {
+            mConnectedDevices = connectedDevices;
+            if (connected) {
+                recordConnection();
+                if (connectedDevices >= mMaxConnections && mState != STATE_STOPPED && mState != STATE_CAPPED) {
+                    mEventLog.log(EventLog.INFO, "Connection cap reached, advertising stopped:", connectedDevices);
+                    cancelBurstEnd();
+                    mState = STATE_CAPPED;
+                    mAdvertising = false;
+                    mPort.stopAdvertising();
+                }
+            } else if (mState != STATE_STOPPED && connectedDevices < mMaxConnections) {
+                startBurst();
+            }
+        }
+        notifyListener();
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * Return true if the stack confirmed that advertising runs.
+     */
+    public synchronized boolean isAdvertising() {
+        return mAdvertising;
+    }
+
+    /**
+     * Time from the start of a burst to the following connection.
+     */
+    public LatencyHistogram getTimeToFirstConnection() {
+        return mTimeToFirstConnection;
+    }
+
+    public synchronized long getConnectionsInBurst() {
+        return mConnectionsInBurst;
+    }
+
+    public synchronized long getConnectionsAfterBurst() {
+        return mConnectionsAfterBurst;
+    }
+
+    private void startBurst() {
+        cancelBurstEnd();
+        if (mWindowStartMillis < 0) {
+            mWindowStartMillis = mClock.millis();
+        }
+        // the stack only changes the mode of a running advertisement by restarting it
+        advertise(STATE_BURST, AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY);
+        mBurstEnd = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                endBurst();
+            }
+        }, mBurstMillis);
+    }
+
+    private void endBurst() {
+        synchronized (this) {
+            if (mState != STATE_BURST || mBurstEnd == null) return;
+            mBurstEnd = null;
+            advertise(STATE_LOW_POWER, AdvertiseSettings.ADVERTISE_MODE_LOW_POWER);
+        }
+        notifyListener();
+    }
+
+    private void advertise(int state, int mode) {
+        if (mState == STATE_BURST || mState == STATE_LOW_POWER) {
+            mPort.stopAdvertising();
+        }
+        mState = state;
+        mAdvertising = false;
+        if (!mPort.startAdvertising(mode, mTxPowerLevel, mCallback)) {
+            mEventLog.log(EventLog.WARN, "Failed to create BluetoothLeAdvertiser");
+        }
+    }
+
+    private void recordConnection() {
+        if (mWindowStartMillis < 0) return;
+        long elapsed = mClock.millis() - mWindowStartMillis;
+        mWindowStartMillis = -1;
+        mTimeToFirstConnection.record(elapsed * 1000000L);
+        if (mState == STATE_BURST) {
+            mConnectionsInBurst++;
+        } else {
+            mConnectionsAfterBurst++;
+        }
+        mEventLog.log(EventLog.INFO, "Time to first connection, ms:", elapsed);
+    }
+
+    private void cancelBurstEnd() {
+        if (mBurstEnd != null) {
+            mBurstEnd.cancel();
+            mBurstEnd = null;
+        }
+    }
+
+    private void notifyListener() {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onAdvertisingChanged();
+        }
+    }
+
+    private final AdvertiserPort.Callback mCallback = new AdvertiserPort.Callback() {
+        @Override
+        public void onStartSuccess() {
+            synchronized (AdvertisingController.this) {
+                // a late result of an advertisement that was stopped meanwhile
+                if (mState != STATE_BURST && mState != STATE_LOW_POWER) return;
+                mAdvertising = true;
+            }
+            mEventLog.log(EventLog.INFO, "LE Advertise Started.");
+            notifyListener();
+        }
+
+        @Override
+        public void onStartFailure(int errorCode) {
+            synchronized (AdvertisingController.this) {
+                mAdvertising = false;
+            }
+            mEventLog.log(EventLog.WARN, "LE Advertise Failed:", errorCode);
+            notifyListener();
+        }
+    };
+}
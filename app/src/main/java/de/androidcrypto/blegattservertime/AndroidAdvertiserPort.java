@@ -0,0 +1,103 @@
+package de.androidcrypto.blegattservertime;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.UUID;
+
+/**
+ * {@link AdvertiserPort} backed by the {@link BluetoothLeAdvertiser} of the adapter.
+ * The advertisement contains the device name and the service UUIDs, laid out
+ * by an {@link AdvertisementPayload}. The AdvertiseData is built once and
+ * reused by every start, e.g. after Bluetooth was turned off and on.
+ */
+public class AndroidAdvertiserPort implements AdvertiserPort {
+    private static final String TAG = AndroidAdvertiserPort.class.getSimpleName();
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final AdvertisementPayload mPayload;
+    private final AdvertiseData mAdvertiseData;
+    private final AdvertiseData mScanResponse;
+    private BluetoothLeAdvertiser mBluetoothLeAdvertiser;
+    private volatile Callback mCallback;
+
+    public AndroidAdvertiserPort(BluetoothAdapter bluetoothAdapter, AdvertisementPayload payload) {
+        mBluetoothAdapter = bluetoothAdapter;
+        mPayload = payload;
+        mAdvertiseData = buildData(payload.getAdvertisedUuids(),
+                payload.getName() != null && !payload.isNameInScanResponse());
+        mScanResponse = payload.hasScanResponse()
+                ? buildData(payload.getScanResponseUuids(), payload.getName() != null && payload.isNameInScanResponse())
+                : null;
+    }
+
+    private static AdvertiseData buildData(UUID[] serviceUuids, boolean includeName) {
+        AdvertiseData.Builder data = new AdvertiseData.Builder()
+                .setIncludeDeviceName(includeName)
+                .setIncludeTxPowerLevel(false);
+        for (UUID serviceUuid : serviceUuids) {
+            data.addServiceUuid(new ParcelUuid(serviceUuid));
+        }
+        return data.build();
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public boolean startAdvertising(int mode, int txPowerLevel, Callback callback) {
+        // the stack advertises the adapter name, so a shortened name is set there
+        String name = mPayload.getName();
+        if (name != null && !name.equals(mBluetoothAdapter.getName())) {
+            mBluetoothAdapter.setName(name);
+        }
+        mBluetoothLeAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
+        if (mBluetoothLeAdvertiser == null) {
+            Log.w(TAG, "Failed to create advertiser");
+            return false;
+        }
+        mCallback = callback;
+
+        AdvertiseSettings settings = new AdvertiseSettings.Builder()
+                .setAdvertiseMode(mode)
+                .setConnectable(true)
+                .setTimeout(0)
+                .setTxPowerLevel(txPowerLevel)
+                .build();
+
+        if (mScanResponse != null) {
+            mBluetoothLeAdvertiser.startAdvertising(settings, mAdvertiseData, mScanResponse, mAdvertiseCallback);
+        } else {
+            mBluetoothLeAdvertiser.startAdvertising(settings, mAdvertiseData, mAdvertiseCallback);
+        }
+        return true;
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public void stopAdvertising() {
+        if (mBluetoothLeAdvertiser == null) return;
+        mBluetoothLeAdvertiser.stopAdvertising(mAdvertiseCallback);
+    }
+
+    /**
+     * Callback to receive information about the advertisement process.
+     */
+    private final AdvertiseCallback mAdvertiseCallback = new AdvertiseCallback() {
+        @Override
+        public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+            Callback callback = mCallback;
+            if (callback != null) callback.onStartSuccess();
+        }
+
+        @Override
+        public void onStartFailure(int errorCode) {
+            Callback callback = mCallback;
+            if (callback != null) callback.onStartFailure(errorCode);
+        }
+    };
+}
@@ -0,0 +1,22 @@
+package de.androidcrypto.blegattservertime;
+
+import android.os.BatteryManager;
+
+/**
+ * {@link BatteryLevelSource} reading the capacity of the device battery.
+ */
+public class AndroidBatteryLevelSource implements BatteryLevelSource {
+
+    private final BatteryManager mBatteryManager;
+
+    public AndroidBatteryLevelSource(BatteryManager batteryManager) {
+        mBatteryManager = batteryManager;
+    }
+
+    @Override
+    public int readLevel() {
+        int level = mBatteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+        // 0 or Integer.MIN_VALUE when the property is not supported
+        return level > 0 && level <= 100 ? level : -1;
+    }
+}
@@ -0,0 +1,244 @@
+package de.androidcrypto.blegattservertime;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link GattServerPort} backed by a {@link BluetoothGattServer}. Its callback
+ * translates the Android server callbacks into calls on the {@link GattServerCore}.
+ */
+public class AndroidGattServerPort implements GattServerPort {
+    private static final String TAG = AndroidGattServerPort.class.getSimpleName();
+
+    private final GattServerCore mCore;
+    private volatile BluetoothGattServer mServer;
+    /* Devices seen in a callback, by address */
+    private final Map<String, BluetoothDevice> mDevices = new ConcurrentHashMap<>();
+    /* Characteristics that send notifications or indications, by UUID */
+    private final Map<UUID, BluetoothGattCharacteristic> mNotifyCharacteristics = new ConcurrentHashMap<>();
+
+    private ServiceRegistrar<BluetoothGattService> mRegistrar;
+
+    private AndroidGattServerPort(GattServerCore core) {
+        mCore = core;
+    }
+
+    /**
+     * Open a GATT server whose callbacks are delivered to the core. Service
+     * registration timeouts and retries run on the scheduler.
+     *
+     * @return the port, or null if the server could not be opened.
+     */
+    @SuppressLint("MissingPermission")
+    public static AndroidGattServerPort open(Context context, BluetoothManager bluetoothManager,
+                                             GattServerCore core, Scheduler scheduler) {
+        AndroidGattServerPort port = new AndroidGattServerPort(core);
+        port.mRegistrar = new ServiceRegistrar<>(port.mRegistrarTarget, scheduler);
+        port.mServer = bluetoothManager.openGattServer(context, port.mCallback);
+        if (port.mServer == null) {
+            Log.w(TAG, "Unable to create GATT server");
+            return null;
+        }
+        return port;
+    }
+
+    /**
+     * Add the services to the server one after another, the listener is told
+     * when all of them are ready.
+     *
+     * Important: you cannot add services in a row, you need to wait until the previous
+     * add call succeeded. If you add them without waiting you receive randomly an info
+     * "BluetoothGattServer: onCharacteristicReadRequest() no char for handle 47"
+     * and the new service is not added
+     * see: https://stackoverflow.com/questions/49930014/android-peripheral-bluetoothgattservercallback-onserviceadded-not-getting-call
+     */
+    public void addServices(ServiceRegistrar.Listener listener, BluetoothGattService... services) {
+        for (BluetoothGattService service : services) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                if ((characteristic.getProperties() & (BluetoothGattCharacteristic.PROPERTY_NOTIFY
+                        | BluetoothGattCharacteristic.PROPERTY_INDICATE)) != 0) {
+                    mNotifyCharacteristics.put(characteristic.getUuid(), characteristic);
+                }
+            }
+        }
+        mRegistrar.start(listener, Arrays.asList(services));
+    }
+
+    public ServiceRegistrar<BluetoothGattService> getRegistrar() {
+        return mRegistrar;
+    }
+
+    private final ServiceRegistrar.Target<BluetoothGattService> mRegistrarTarget =
+            new ServiceRegistrar.Target<BluetoothGattService>() {
+                @Override
+                public UUID getUuid(BluetoothGattService service) {
+                    return service.getUuid();
+                }
+
+                @SuppressLint("MissingPermission")
+                @Override
+                public boolean addService(BluetoothGattService service) {
+                    BluetoothGattServer server = mServer;
+                    return server != null && server.addService(service);
+                }
+
+                @SuppressLint("MissingPermission")
+                @Override
+                public void removeService(BluetoothGattService service) {
+                    BluetoothGattServer server = mServer;
+                    if (server != null) {
+                        server.removeService(service);
+                    }
+                }
+            };
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public boolean sendResponse(String device, int requestId, int status, int offset, byte[] value) {
+        BluetoothDevice bluetoothDevice = mDevices.get(device);
+        BluetoothGattServer server = mServer;
+        if (bluetoothDevice == null || server == null) return false;
+        return server.sendResponse(bluetoothDevice, requestId, status, offset, value);
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public boolean notifyCharacteristicChanged(String device, UUID characteristic, byte[] value, boolean confirm) {
+        BluetoothDevice bluetoothDevice = mDevices.get(device);
+        BluetoothGattCharacteristic gattCharacteristic = mNotifyCharacteristics.get(characteristic);
+        BluetoothGattServer server = mServer;
+        if (bluetoothDevice == null || gattCharacteristic == null || server == null) return false;
+        // the value is stored in the shared characteristic object until the stack read it
+        synchronized (gattCharacteristic) {
+            gattCharacteristic.setValue(value);
+            return server.notifyCharacteristicChanged(bluetoothDevice, gattCharacteristic, confirm);
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public boolean isBonded(String device) {
+        BluetoothDevice bluetoothDevice = mDevices.get(device);
+        return bluetoothDevice != null && bluetoothDevice.getBondState() == BluetoothDevice.BOND_BONDED;
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public void cancelConnection(String device) {
+        BluetoothDevice bluetoothDevice = mDevices.get(device);
+        BluetoothGattServer server = mServer;
+        if (bluetoothDevice != null && server != null) {
+            server.cancelConnection(bluetoothDevice);
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public void close() {
+        mRegistrar.stop();
+        BluetoothGattServer server = mServer;
+        mServer = null;
+        if (server != null) {
+            server.close();
+        }
+        mDevices.clear();
+    }
+
+    private String remember(BluetoothDevice device) {
+        String address = device.getAddress();
+        mDevices.put(address, device);
+        return address;
+    }
+
+    /**
+     * Callback to handle incoming requests to the GATT server.
+     * All read/write requests for characteristics and descriptors are handled here.
+     */
+    private final BluetoothGattServerCallback mCallback = new BluetoothGattServerCallback() {
+
+        @Override
+        public void onServiceAdded(final int status, final BluetoothGattService service) {
+            super.onServiceAdded(status, service);
+            Log.d(TAG, "onServiceAdded status: " + status + ", service: " + service.getUuid());
+            if (status != 0) {
+                Log.d(TAG, "onServiceAdded Adding Service failed..");
+            }
+            mRegistrar.onServiceAdded(service.getUuid(), status);
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
+            String address = remember(device);
+            mCore.onConnectionStateChange(address, status, newState);
+            if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mDevices.remove(address);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothDevice device, int mtu) {
+            mCore.onMtuChanged(remember(device), mtu);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothDevice device, int txPhy, int rxPhy, int status) {
+            mCore.onPhyUpdate(remember(device), txPhy, rxPhy, status);
+        }
+
+        @Override
+        public void onNotificationSent(BluetoothDevice device, int status) {
+            mCore.onNotificationSent(device.getAddress(), status);
+        }
+
+        @Override
+        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
+                                                BluetoothGattCharacteristic characteristic) {
+            mCore.onCharacteristicReadRequest(remember(device), requestId, offset, characteristic.getUuid());
+        }
+
+        @Override
+        public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId,
+                                                 BluetoothGattCharacteristic characteristic,
+                                                 boolean preparedWrite, boolean responseNeeded,
+                                                 int offset, byte[] value) {
+            mCore.onCharacteristicWriteRequest(remember(device), requestId, characteristic.getUuid(),
+                    preparedWrite, responseNeeded, offset, value);
+        }
+
+        @Override
+        public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+            mCore.onExecuteWrite(remember(device), requestId, execute);
+        }
+
+        @Override
+        public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset,
+                                            BluetoothGattDescriptor descriptor) {
+            mCore.onDescriptorReadRequest(remember(device), requestId, offset,
+                    descriptor.getCharacteristic().getUuid(), descriptor.getUuid());
+        }
+
+        @Override
+        public void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
+                                             BluetoothGattDescriptor descriptor,
+                                             boolean preparedWrite, boolean responseNeeded,
+                                             int offset, byte[] value) {
+            mCore.onDescriptorWriteRequest(remember(device), requestId,
+                    descriptor.getCharacteristic().getUuid(), descriptor.getUuid(),
+                    preparedWrite, responseNeeded, offset, value);
+        }
+    };
+}
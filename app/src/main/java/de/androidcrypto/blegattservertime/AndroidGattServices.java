@@ -0,0 +1,45 @@
+package de.androidcrypto.blegattservertime;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+/**
+ * Builds the BluetoothGattService tree of a {@link GattProfile}.
+ */
+public final class AndroidGattServices {
+
+    private AndroidGattServices() {
+    }
+
+    /**
+     * Return one primary service per service of the profile, in order.
+     */
+    public static BluetoothGattService[] create(GattProfile profile) {
+        BluetoothGattService[] services = new BluetoothGattService[profile.getServices().size()];
+        for (int i = 0; i < services.length; i++) {
+            services[i] = create(profile.getServices().get(i));
+        }
+        return services;
+    }
+
+    private static BluetoothGattService create(GattProfile.Service definition) {
+        BluetoothGattService service = new BluetoothGattService(definition.uuid,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        for (GattProfile.Characteristic definedCharacteristic : definition.characteristics) {
+            BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+                    definedCharacteristic.uuid, definedCharacteristic.properties, definedCharacteristic.permissions);
+            if (definedCharacteristic.isNotifying()) {
+                characteristic.addDescriptor(new BluetoothGattDescriptor(GattProfile.CLIENT_CONFIG,
+                        //Read/write descriptor
+                        BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+            }
+            for (GattProfile.Descriptor definedDescriptor : definedCharacteristic.descriptors) {
+                characteristic.addDescriptor(new BluetoothGattDescriptor(definedDescriptor.uuid,
+                        definedDescriptor.permissions));
+            }
+            service.addCharacteristic(characteristic);
+        }
+        return service;
+    }
+}
@@ -0,0 +1,121 @@
+package de.androidcrypto.blegattservertime;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Values of read-only attributes that do not change while serving, e.g. the
+ * Device Information strings.
+ *
+ * All values are encoded once into an immutable snapshot; a read is a map
+ * lookup that returns the shared array, without encoding or allocating. The
+ * values can be reloaded from a config file while serving: the new snapshot
+ * is parsed completely and then swapped in with a single volatile write, so
+ * readers never wait and never see a mix of old and new values. A config
+ * file that does not parse leaves the current values in place.
+ *
+ * The config file has one {@code uuid = value} line per attribute, the
+ * value is encoded as UTF-8. The UUID is either a full UUID or a 16 bit
+ * Bluetooth SIG UUID such as {@code 2a25}. Empty lines and lines starting
+ * with '#' are skipped, attributes that are not listed keep their defaults.
+ */
+public class AttributeValueStore {
+
+    /* Longest value an attribute may have */
+    public static final int MAX_VALUE_LENGTH = 512;
+
+    private static final String BASE_UUID_SUFFIX = "-0000-1000-8000-00805f9b34fb";
+
+    private final Map<UUID, byte[]> mDefaults;
+    private volatile Map<UUID, byte[]> mValues;
+    private volatile int mVersion;
+
+    /**
+     * @param defaults value per attribute, served until a config is loaded
+     */
+    public AttributeValueStore(Map<UUID, String> defaults) {
+        mDefaults = encode(defaults);
+        mValues = mDefaults;
+    }
+
+    /**
+     * Return the encoded value, or null if the attribute is unknown. The
+     * array is shared and must not be modified.
+     */
+    public byte[] get(UUID attribute) {
+        return mValues.get(attribute);
+    }
+
+    /**
+     * Replace the values with the defaults overridden by the config, the
+     * reader is not closed.
+     *
+     * @throws IOException if the config can not be read or is invalid, the
+     *                     current values are kept then
+     */
+    public void load(Reader config) throws IOException {
+        Map<UUID, byte[]> values = new HashMap<>(mDefaults);
+        values.putAll(encode(parse(config)));
+        synchronized (this) {
+            mValues = Collections.unmodifiableMap(values);
+            mVersion++;
+        }
+    }
+
+    /**
+     * Number of successful loads, 0 while the defaults are served.
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    static Map<UUID, String> parse(Reader config) throws IOException {
+        Map<UUID, String> values = new HashMap<>();
+        BufferedReader lines = new BufferedReader(config);
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            int separator = line.indexOf('=');
+            if (separator < 0) {
+                throw new IOException("Missing '=' in line " + lineNumber + ": " + line);
+            }
+            UUID attribute;
+            try {
+                attribute = parseUuid(line.substring(0, separator).trim());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid UUID in line " + lineNumber + ": " + line);
+            }
+            String value = line.substring(separator + 1).trim();
+            if (value.getBytes(StandardCharsets.UTF_8).length > MAX_VALUE_LENGTH) {
+                throw new IOException("Value too long in line " + lineNumber);
+            }
+            values.put(attribute, value);
+        }
+        return values;
+    }
+
+    static UUID parseUuid(String text) {
+        if (text.length() == 4) {
+            Integer.parseInt(text, 16);
+            return UUID.fromString("0000" + text + BASE_UUID_SUFFIX);
+        }
+        return UUID.fromString(text);
+    }
+
+    private static Map<UUID, byte[]> encode(Map<UUID, String> values) {
+        Map<UUID, byte[]> encoded = new HashMap<>();
+        for (Map.Entry<UUID, String> entry : values.entrySet()) {
+            encoded.put(entry.getKey(), entry.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        return Collections.unmodifiableMap(encoded);
+    }
+}
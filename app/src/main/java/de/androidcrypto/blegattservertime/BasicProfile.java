@@ -17,10 +17,9 @@ package de.androidcrypto.blegattservertime;
  */
 
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 
-import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -37,7 +36,7 @@ public class BasicProfile {
     public static UUID MODEL_NUMBER   = UUID.fromString("00002a24-0000-1000-8000-00805f9b34fb");
     public static UUID SERIAL_NUMBER  = UUID.fromString("00002a25-0000-1000-8000-00805f9b34fb");
     /* Mandatory Client Characteristic Config Descriptor */
-    public static UUID CLIENT_CONFIG   = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    public static UUID CLIENT_CONFIG   = GattProfile.CLIENT_CONFIG;
 
     /* static data */
     public static final String MANUFACTURER_NAME_VALUE = "Androidcrypto";
@@ -46,77 +45,64 @@ public class BasicProfile {
     public static final String SERIAL_NUMBER_VALUE = "5678";
 
     /**
-     * Return a configured {@link BluetoothGattService} instance for the
-     * Basic GATT Service.
+     * Return the static data, the values served until a config is loaded.
      */
-    public static BluetoothGattService createBasicGattService() {
-        BluetoothGattService service = new BluetoothGattService(DEVICE_INFO_SERVICE,
-                BluetoothGattService.SERVICE_TYPE_PRIMARY);
-
-        // Basic characteristic
-        BluetoothGattCharacteristic manufacturerName = new BluetoothGattCharacteristic(MANUFACTURER_NAME,
-                //Read-only characteristic
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ);
-        BluetoothGattCharacteristic deviceName = new BluetoothGattCharacteristic(DEVICE_NAME,
-                //Read-only characteristic
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ);
-        BluetoothGattDescriptor configDescriptor = new BluetoothGattDescriptor(CLIENT_CONFIG,
-                //Read/write descriptor
-                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
-        deviceName.addDescriptor(configDescriptor);
-
-        // Model number characteristic
-        BluetoothGattCharacteristic modelNumber = new BluetoothGattCharacteristic(MODEL_NUMBER,
-                //Read-only characteristic
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ);
-
-        // Serial number characteristic
-        BluetoothGattCharacteristic serialNumber = new BluetoothGattCharacteristic(SERIAL_NUMBER,
-                //Read-only characteristic
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ);
-
-        service.addCharacteristic(manufacturerName);
-        service.addCharacteristic(deviceName);
-        service.addCharacteristic(modelNumber);
-        service.addCharacteristic(serialNumber);
-        return service;
-    }
-
-    /**
-     * Construct the field values for a Manufacturer Name characteristic
-     *
-     */
-    public static byte[] getManufacturerName() {
-        return MANUFACTURER_NAME_VALUE.getBytes(StandardCharsets.UTF_8);
+    public static Map<UUID, String> getDefaultValues() {
+        Map<UUID, String> values = new HashMap<>();
+        values.put(MANUFACTURER_NAME, MANUFACTURER_NAME_VALUE);
+        values.put(DEVICE_NAME, DEVICE_NAME_VALUE);
+        values.put(MODEL_NUMBER, MODEL_NUMBER_VALUE);
+        values.put(SERIAL_NUMBER, SERIAL_NUMBER_VALUE);
+        return values;
     }
 
-
     /**
-     * Construct the field values for a Device Name characteristic
-     *
+     * Add the Basic GATT Service with the static data.
      */
-    public static byte[] getDeviceName() {
-        return DEVICE_NAME_VALUE.getBytes(StandardCharsets.UTF_8);
+    public static void addService(GattProfile.Builder profile) {
+        addService(profile, new AttributeValueStore(getDefaultValues()));
     }
 
     /**
-     * Construct the field values for a Model Number characteristic
-     *
+     * Add the Basic GATT Service with its read-only characteristics to the
+     * profile, their values are served from the store.
      */
-    public static byte[] getModelNumber() {
-        return MODEL_NUMBER_VALUE.getBytes(StandardCharsets.UTF_8);
+    public static void addService(GattProfile.Builder profile, AttributeValueStore values) {
+        profile.service(DEVICE_INFO_SERVICE)
+                .characteristic(MANUFACTURER_NAME,
+                        //Read-only characteristic
+                        BluetoothGattCharacteristic.PROPERTY_READ,
+                        BluetoothGattCharacteristic.PERMISSION_READ,
+                        new StoredValueHandler(values, MANUFACTURER_NAME))
+                .characteristic(DEVICE_NAME,
+                        BluetoothGattCharacteristic.PROPERTY_READ,
+                        BluetoothGattCharacteristic.PERMISSION_READ,
+                        new StoredValueHandler(values, DEVICE_NAME))
+                .characteristic(MODEL_NUMBER,
+                        BluetoothGattCharacteristic.PROPERTY_READ,
+                        BluetoothGattCharacteristic.PERMISSION_READ,
+                        new StoredValueHandler(values, MODEL_NUMBER))
+                .characteristic(SERIAL_NUMBER,
+                        BluetoothGattCharacteristic.PROPERTY_READ,
+                        BluetoothGattCharacteristic.PERMISSION_READ,
+                        new StoredValueHandler(values, SERIAL_NUMBER));
     }
 
     /**
-     * Construct the field values for a Serial Number characteristic
-     *
+     * Serves the pre-encoded value of one characteristic.
      */
-    public static byte[] getSerialNumber() {
-        return SERIAL_NUMBER_VALUE.getBytes(StandardCharsets.UTF_8);
+    private static final class StoredValueHandler implements CharacteristicHandler {
+        private final AttributeValueStore mValues;
+        private final UUID mCharacteristic;
+
+        StoredValueHandler(AttributeValueStore values, UUID characteristic) {
+            mValues = values;
+            mCharacteristic = characteristic;
+        }
+
+        @Override
+        public byte[] onRead(String device) {
+            return mValues.get(mCharacteristic);
+        }
     }
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,170 @@
+package de.androidcrypto.blegattservertime;
+
+/**
+ * Recent battery level changes in a fixed size ring buffer of primitive
+ * arrays, served as one compact value so a client can catch up on the trend
+ * with a single (long) read.
+ *
+ * Only changes are stored, a level equal to the last one is dropped. The
+ * encoded value holds the newest changes that fit into an attribute,
+ * oldest first:
+ * <pre>
+ *   version     uint8, 1
+ *   count       varint
+ *   first time  uint32, seconds since 1970-01-01 UTC
+ *   first level uint8
+ *   count - 1 times:
+ *     time delta  varint, seconds since the previous entry
+ *     level delta zigzag varint
+ * </pre>
+ * Varints are little endian base 128 as in protocol buffers. The value is
+ * encoded once per change and shared by all reads; longer than one ATT
+ * packet, it is read with Read Blob requests like every long value.
+ */
+public class BatteryHistory {
+
+    public static final int DEFAULT_CAPACITY = 256;
+    /* Longest attribute value */
+    public static final int MAX_VALUE_LENGTH = 512;
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_LENGTH = 1 + 4 + 1;
+
+    private final long[] mTimes;
+    private final byte[] mLevels;
+    // guarded by this
+    private int mHead;
+    private int mSize;
+    private byte[] mEncoded;
+
+    public BatteryHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public BatteryHistory(int capacity) {
+        mTimes = new long[capacity];
+        mLevels = new byte[capacity];
+    }
+
+    /**
+     * Store the level if it differs from the last one, overwriting the
+     * oldest entry once full.
+     *
+     * @return true if the level was stored
+     */
+    public synchronized boolean record(long timestamp, int level) {
+        if (level < 0 || level > 100) return false;
+        if (mSize > 0 && mLevels[index(mSize - 1)] == level) return false;
+        int slot = index(mSize);
+        mTimes[slot] = timestamp;
+        mLevels[slot] = (byte) level;
+        if (mSize < mTimes.length) {
+            mSize++;
+        } else {
+            mHead = (mHead + 1) % mTimes.length;
+        }
+        mEncoded = null;
+        return true;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int getCapacity() {
+        return mTimes.length;
+    }
+
+    /**
+     * Return the time of the i-th entry, 0 is the oldest.
+     */
+    public synchronized long getTime(int i) {
+        return mTimes[index(i)];
+    }
+
+    /**
+     * Return the level of the i-th entry, 0 is the oldest.
+     */
+    public synchronized int getLevel(int i) {
+        return mLevels[index(i)];
+    }
+
+    /**
+     * Return the encoded history. The array is shared and must not be
+     * modified.
+     */
+    public synchronized byte[] getEncoded() {
+        if (mEncoded == null) {
+            mEncoded = encode();
+        }
+        return mEncoded;
+    }
+
+    private byte[] encode() {
+        if (mSize == 0) {
+            return new byte[]{FORMAT_VERSION, 0};
+        }
+        // walk back from the newest entry while the value still fits
+        int first = mSize - 1;
+        int length = HEADER_LENGTH + varintLength(1);
+        while (first > 0) {
+            int entry = entryLength(first - 1, first);
+            int count = mSize - first + 1;
+            int next = length + entry + varintLength(count) - varintLength(count - 1);
+            if (next > MAX_VALUE_LENGTH) break;
+            length = next;
+            first--;
+        }
+
+        byte[] value = new byte[length];
+        int count = mSize - first;
+        int position = 0;
+        value[position++] = FORMAT_VERSION;
+        position = writeVarint(value, position, count);
+        long seconds = mTimes[index(first)] / 1000;
+        for (int i = 0; i < 4; i++) {
+            value[position++] = (byte) (seconds >>> (8 * i));
+        }
+        value[position++] = mLevels[index(first)];
+        for (int i = first + 1; i < mSize; i++) {
+            position = writeVarint(value, position, timeDelta(i - 1, i));
+            position = writeVarint(value, position, zigzag(mLevels[index(i)] - mLevels[index(i - 1)]));
+        }
+        return value;
+    }
+
+    private int entryLength(int previous, int i) {
+        return varintLength(timeDelta(previous, i))
+                + varintLength(zigzag(mLevels[index(i)] - mLevels[index(previous)]));
+    }
+
+    /* seconds between the entries, 0 if the clock was set back */
+    private long timeDelta(int previous, int i) {
+        return Math.max(0, mTimes[index(i)] / 1000 - mTimes[index(previous)] / 1000);
+    }
+
+    private int index(int i) {
+        return (mHead + i) % mTimes.length;
+    }
+
+    static long zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int varintLength(long value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    static int writeVarint(byte[] dst, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dst[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[position++] = (byte) value;
+        return position;
+    }
+}
@@ -0,0 +1,12 @@
+package de.androidcrypto.blegattservertime;
+
+/**
+ * Supplies the battery level served by the Battery Service.
+ */
+public interface BatteryLevelSource {
+
+    /**
+     * Return the current battery level in percent, or -1 if it is unknown.
+     */
+    int readLevel();
+}
@@ -0,0 +1,111 @@
+package de.androidcrypto.blegattservertime;
+
+/**
+ * Samples a {@link BatteryLevelSource} and decides when subscribers need a
+ * Battery Level notification.
+ *
+ * A notification is due when the level moved by at least the minimum delta
+ * since the last notified level, or when it crossed the warn level written
+ * by a client. The level counts as low once it drops to the warn level and
+ * only stops being low when it is back at warn level + hysteresis, so a
+ * level that wobbles around the threshold does not notify on every sample.
+ * A warn level of 0 disables the threshold.
+ */
+public class BatteryMonitor implements BatteryProfile.BatteryState {
+
+    public static final int DEFAULT_MIN_DELTA = 1;
+    public static final int DEFAULT_HYSTERESIS = 2;
+
+    private final BatteryLevelSource mSource;
+    private final int mMinDelta;
+    private final int mHysteresis;
+
+    private volatile int mLevel = -1;
+    private volatile int mWarnLevel;
+    // guarded by this
+    private boolean mLow;
+    private int mNotifiedLevel = -1;
+    private long mSamples;
+    private long mNotifications;
+
+    public BatteryMonitor(BatteryLevelSource source) {
+        this(source, DEFAULT_MIN_DELTA, DEFAULT_HYSTERESIS);
+    }
+
+    public BatteryMonitor(BatteryLevelSource source, int minDelta, int hysteresis) {
+        if (minDelta < 1) {
+            throw new IllegalArgumentException("minDelta must be at least 1");
+        }
+        mSource = source;
+        mMinDelta = minDelta;
+        mHysteresis = hysteresis;
+    }
+
+    /**
+     * Read the source once.
+     *
+     * @return true if the subscribers should be notified of {@link #getBatteryLevel()}
+     */
+    public synchronized boolean sample() {
+        mSamples++;
+        int level = mSource.readLevel();
+        if (level < 0) {
+            // keep serving the last known level
+            return false;
+        }
+        mLevel = level;
+        boolean low = isLow(level);
+        boolean crossed = low != mLow;
+        mLow = low;
+        if (!crossed && mNotifiedLevel >= 0 && Math.abs(level - mNotifiedLevel) < mMinDelta) {
+            return false;
+        }
+        mNotifiedLevel = level;
+        mNotifications++;
+        return true;
+    }
+
+    /**
+     * Return the level of the last sample, -1 before the first one.
+     */
+    @Override
+    public int getBatteryLevel() {
+        return mLevel;
+    }
+
+    @Override
+    public int getBatteryLevelWarn() {
+        return mWarnLevel;
+    }
+
+    /**
+     * Takes effect with the next sample, which notifies if the level is now
+     * on the other side of the threshold.
+     */
+    @Override
+    public void setBatteryLevelWarn(int value) {
+        mWarnLevel = value;
+    }
+
+    /**
+     * Return true if the level was at or below the warn level at the last
+     * sample.
+     */
+    public synchronized boolean isLow() {
+        return mLow;
+    }
+
+    public synchronized long getSampleCount() {
+        return mSamples;
+    }
+
+    public synchronized long getNotificationCount() {
+        return mNotifications;
+    }
+
+    private boolean isLow(int level) {
+        int warnLevel = mWarnLevel;
+        if (warnLevel <= 0) return false;
+        return mLow ? level < warnLevel + mHysteresis : level <= warnLevel;
+    }
+}
@@ -16,11 +16,9 @@ package de.androidcrypto.blegattservertime;
  * limitations under the License.
  */
 
-import static android.bluetooth.BluetoothGattCharacteristic.FORMAT_UINT8;
-
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 
 import java.util.UUID;
 
@@ -35,44 +33,98 @@ public class BatteryProfile {
     public static UUID BATTERY_SERVICE    = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
     public static UUID BATTERY_LEVEL      = UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
     public static UUID BATTERY_LEVEL_WARN = UUID.fromString("0000fffe-0000-1000-8000-00805f9b34fb"); // Value Trigger Setting
-    // 2901 is used when data is 8 bit
-    public static UUID BATTERY_LEVEL_WARN_DESCRIPTOR = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    public static UUID BATTERY_LEVEL_HISTORY = UUID.fromString("0000fffd-0000-1000-8000-00805f9b34fb"); // see BatteryHistory
     /* Mandatory Client Characteristic Config Descriptor */
-    public static UUID CLIENT_CONFIG   = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    public static UUID CLIENT_CONFIG   = GattProfile.CLIENT_CONFIG;
     public static UUID BATTERY_LEVEL_WARN_CONFIG   = UUID.fromString("0000290a-0000-1000-8000-00805f9b34fb");// Value Trigger Setting
+    /* Value Trigger Setting condition: while less than the operand */
+    public static final byte TRIGGER_LESS_THAN = 0x04;
     /**
-     * Return a configured {@link BluetoothGattService} instance for the
-     * Battery Service.
+     * Access to the battery values served by the Battery Service.
      */
-    public static BluetoothGattService createBatteryService() {
-        BluetoothGattService service = new BluetoothGattService(BATTERY_SERVICE,
-                BluetoothGattService.SERVICE_TYPE_PRIMARY);
-        // Battery characteristic
-        BluetoothGattCharacteristic batteryLevel = new BluetoothGattCharacteristic(BATTERY_LEVEL,
-                //Read-only characteristic, supports notifications
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-                BluetoothGattCharacteristic.PERMISSION_READ);
-        BluetoothGattDescriptor configDescriptor = new BluetoothGattDescriptor(CLIENT_CONFIG,
-                //Read/write descriptor
-                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
-        batteryLevel.addDescriptor(configDescriptor);
+    public interface BatteryState {
+        int getBatteryLevel();
 
-        // Battery Level warn characteristic
-        BluetoothGattCharacteristic batteryLevelWarn = new BluetoothGattCharacteristic(BATTERY_LEVEL_WARN,
-                //Read and write characteristic
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
-                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
+        int getBatteryLevelWarn();
 
-        BluetoothGattDescriptor batteryLevelWarnDescriptor = new BluetoothGattDescriptor(BATTERY_LEVEL_WARN_CONFIG,
-                //Read/write descriptor
-                // this is to set that this value is a 8bit = int8 value
-                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
-        batteryLevelWarn.addDescriptor(batteryLevelWarnDescriptor);
+        void setBatteryLevelWarn(int value);
+    }
 
-        batteryLevelWarn.setValue(0, FORMAT_UINT8, 0);
-        service.addCharacteristic(batteryLevel);
-        service.addCharacteristic(batteryLevelWarn);
-        return service;
+    /**
+     * Add the Battery Service, backed by the given state, to the profile.
+     * Battery Level supports notifications, the warn level can be written.
+     */
+    public static void addService(GattProfile.Builder profile, final BatteryState state) {
+        addService(profile, state, null);
+    }
+
+    /**
+     * Add the Battery Service with a read-only Battery Level History
+     * characteristic, if the history is not null.
+     */
+    public static void addService(GattProfile.Builder profile, final BatteryState state,
+                                  final BatteryHistory history) {
+        profile.service(BATTERY_SERVICE)
+                .characteristic(BATTERY_LEVEL,
+                        //Read-only characteristic, supports notifications
+                        BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                        BluetoothGattCharacteristic.PERMISSION_READ,
+                        new CharacteristicHandler() {
+                            @Override
+                            public byte[] onRead(String device) {
+                                return getBatteryLevel(state.getBatteryLevel());
+                            }
+                        })
+                .characteristic(BATTERY_LEVEL_WARN,
+                        //Read and write characteristic
+                        BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                        BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE,
+                        new CharacteristicHandler() {
+                            @Override
+                            public byte[] onRead(String device) {
+                                return getBatteryLevelWarn(state.getBatteryLevelWarn());
+                            }
+
+                            @Override
+                            public int validateWrite(String device, byte[] value) {
+                                if (value == null || value.length < 1) {
+                                    return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+                                }
+                                return BluetoothGatt.GATT_SUCCESS;
+                            }
+
+                            @Override
+                            public int onWrite(String device, byte[] value) {
+                                int status = validateWrite(device, value);
+                                if (status != BluetoothGatt.GATT_SUCCESS) {
+                                    return status;
+                                }
+                                state.setBatteryLevelWarn(value[0] & 0xff);
+                                return BluetoothGatt.GATT_SUCCESS;
+                            }
+                        })
+                // the warn level is a trigger on the battery level, changed through the characteristic
+                .descriptor(BATTERY_LEVEL_WARN_CONFIG,
+                        //Read-only descriptor
+                        BluetoothGattDescriptor.PERMISSION_READ,
+                        new DescriptorHandler() {
+                            @Override
+                            public byte[] onRead(String device) {
+                                return getValueTriggerSetting(state.getBatteryLevelWarn());
+                            }
+                        });
+        if (history != null) {
+            profile.characteristic(BATTERY_LEVEL_HISTORY,
+                    //Read-only characteristic, longer than one packet
+                    BluetoothGattCharacteristic.PROPERTY_READ,
+                    BluetoothGattCharacteristic.PERMISSION_READ,
+                    new CharacteristicHandler() {
+                        @Override
+                        public byte[] onRead(String device) {
+                            return history.getEncoded();
+                        }
+                    });
+        }
     }
 
     /**
@@ -108,4 +160,12 @@ public class BatteryProfile {
         return returnValue;
     }
 
+    /**
+     * Construct the Value Trigger Setting descriptor for the given warn
+     * level: the condition, followed by the level as operand.
+     */
+    public static byte[] getValueTriggerSetting(int data) {
+        return new byte[]{TRIGGER_LESS_THAN, getBatteryLevelWarn(data)[0]};
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+package de.androidcrypto.blegattservertime;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.UUID;
+
+/**
+ * Client Characteristic Config descriptor of one characteristic, backed by
+ * a {@link SubscriptionRegistry}. Changes of the configuration are counted
+ * in the {@link GattMetrics} and reported to the listener, if given.
+ */
+public class ClientConfigHandler implements DescriptorHandler {
+
+    /**
+     * Told about every configuration a device wrote.
+     */
+    public interface Listener {
+        void onClientConfigWritten(String device, UUID characteristic, int flags);
+    }
+
+    private final SubscriptionRegistry<String> mSubscriptions;
+    private final UUID mCharacteristic;
+    private final GattMetrics mMetrics;
+    private final Listener mListener;
+
+    public ClientConfigHandler(SubscriptionRegistry<String> subscriptions, UUID characteristic) {
+        this(subscriptions, characteristic, null);
+    }
+
+    public ClientConfigHandler(SubscriptionRegistry<String> subscriptions, UUID characteristic,
+                               GattMetrics metrics) {
+        this(subscriptions, characteristic, metrics, null);
+    }
+
+    public ClientConfigHandler(SubscriptionRegistry<String> subscriptions, UUID characteristic,
+                               GattMetrics metrics, Listener listener) {
+        mSubscriptions = subscriptions;
+        mCharacteristic = characteristic;
+        mMetrics = metrics;
+        mListener = listener;
+    }
+
+    @Override
+    public byte[] onRead(String device) {
+        return new byte[]{(byte) mSubscriptions.getSubscription(mCharacteristic, device), 0};
+    }
+
+    @Override
+    public int validateWrite(String device, byte[] value) {
+        if (value == null || value.length != 2) {
+            return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+        }
+        return BluetoothGatt.GATT_SUCCESS;
+    }
+
+    @Override
+    public int onWrite(String device, byte[] value) {
+        int status = validateWrite(device, value);
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            return status;
+        }
+        int flags = value[0] & (SubscriptionRegistry.NOTIFY | SubscriptionRegistry.INDICATE);
+        if (mMetrics != null && flags != mSubscriptions.getSubscription(mCharacteristic, device)) {
+            mMetrics.increment(mCharacteristic, device, GattMetrics.CCCD_CHANGES);
+        }
+        mSubscriptions.setSubscription(mCharacteristic, device, flags);
+        if (mListener != null) {
+            mListener.onClientConfigWritten(device, mCharacteristic, flags);
+        }
+        return BluetoothGatt.GATT_SUCCESS;
+    }
+}
@@ -0,0 +1,348 @@
+package de.androidcrypto.blegattservertime;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Small key/value store for values written by clients, e.g. the battery
+ * warn level, that survive a restart of the server.
+ *
+ * The values live in fixed size slots of a memory-mapped file. A write
+ * is a memory copy and safe against the process dying right after; the
+ * mapping is forced to disk on the scheduler a while after the first
+ * unflushed write, outside the lock, so a burst of writes costs one fsync
+ * and the GATT callback thread never waits for the disk.
+ *
+ * A new value of a key goes into a free slot with the next sequence
+ * number, and the old slot is cleared only once the new one is complete.
+ * Opening the store scans the slots of the mapped file; a slot whose
+ * checksum does not match, torn by a power loss during the write, is
+ * dropped, so the previous value of the key applies again. Of two valid
+ * slots for one key the newer is kept. Only when no slot is free is a
+ * value rewritten in place, and a torn write then loses it.
+ *
+ * File layout, little endian:
+ * <pre>
+ *   header  16 bytes: magic, version uint16, slot count uint16, reserved
+ *   slots   64 bytes each:
+ *     key          2 x int64, the UUID
+ *     length       uint8, 0 for a free slot
+ *     sequence     uint8, counts the writes of the key
+ *     reserved     2 bytes
+ *     checksum     uint32, CRC-32 of everything before and the value
+ *     value        40 bytes
+ * </pre>
+ */
+public class ConfigStore {
+
+    public static final int DEFAULT_SLOT_COUNT = 32;
+    public static final int MAX_VALUE_LENGTH = 40;
+    public static final long DEFAULT_FLUSH_DELAY_MILLIS = 2000;
+
+    private static final int MAGIC = 0x46435347; // "GSCF"
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 16;
+    private static final int SLOT_LENGTH = 64;
+    private static final int LENGTH_OFFSET = 16;
+    private static final int SEQUENCE_OFFSET = 17;
+    private static final int CHECKSUM_OFFSET = 20;
+    private static final int VALUE_OFFSET = 24;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mMap;
+    private final int mSlotCount;
+    private final Scheduler mScheduler;
+    private final long mFlushDelayMillis;
+    private final CRC32 mChecksum = new CRC32();
+    private final Object mFileLock = new Object();
+
+    // guarded by this
+    private final Map<UUID, byte[]> mValues = new HashMap<>();
+    private final Map<UUID, Integer> mSlots = new HashMap<>();
+    private Scheduler.Cancellable mPendingFlush;
+    private boolean mDirty;
+    private int mDroppedSlots;
+    private long mFlushCount;
+    private boolean mClosed;
+
+    private ConfigStore(RandomAccessFile file, MappedByteBuffer map, int slotCount,
+                        Scheduler scheduler, long flushDelayMillis) {
+        mFile = file;
+        mMap = map;
+        mSlotCount = slotCount;
+        mScheduler = scheduler;
+        mFlushDelayMillis = flushDelayMillis;
+    }
+
+    /**
+     * Open the store, creating the file if there is none or it is not a
+     * store with the given number of slots.
+     *
+     * @param scheduler runs the batched flushes
+     */
+    public static ConfigStore open(File file, int slotCount, Scheduler scheduler, long flushDelayMillis)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = HEADER_LENGTH + (long) slotCount * SLOT_LENGTH;
+            boolean fresh = raf.length() != length;
+            if (fresh) {
+                raf.setLength(0);
+                raf.setLength(length);
+            }
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            ConfigStore store = new ConfigStore(raf, map, slotCount, scheduler, flushDelayMillis);
+            if (fresh || map.getInt(0) != MAGIC || (map.getShort(4) & 0xFFFF) != VERSION
+                    || (map.getShort(6) & 0xFFFF) != slotCount) {
+                store.format();
+            } else {
+                store.recover();
+            }
+            return store;
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public static ConfigStore open(File file, Scheduler scheduler) throws IOException {
+        return open(file, DEFAULT_SLOT_COUNT, scheduler, DEFAULT_FLUSH_DELAY_MILLIS);
+    }
+
+    private void format() {
+        for (int i = 0; i < HEADER_LENGTH + mSlotCount * SLOT_LENGTH; i++) {
+            mMap.put(i, (byte) 0);
+        }
+        mMap.putInt(0, MAGIC);
+        mMap.putShort(4, (short) VERSION);
+        mMap.putShort(6, (short) mSlotCount);
+        mMap.force();
+    }
+
+    private void recover() {
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            int base = slotOffset(slot);
+            int length = mMap.get(base + LENGTH_OFFSET) & 0xFF;
+            if (length == 0) continue;
+            if (length > MAX_VALUE_LENGTH || mMap.getInt(base + CHECKSUM_OFFSET) != checksum(base, length)) {
+                clearSlot(slot);
+                mDroppedSlots++;
+                continue;
+            }
+            UUID key = new UUID(mMap.getLong(base), mMap.getLong(base + 8));
+            Integer other = mSlots.get(key);
+            if (other != null) {
+                // the power was lost before the old slot of an update was cleared
+                if (!isNewer(slot, other)) {
+                    clearSlot(slot);
+                    mDirty = true;
+                    continue;
+                }
+                clearSlot(other);
+                mDirty = true;
+            }
+            byte[] value = new byte[length];
+            for (int i = 0; i < length; i++) {
+                value[i] = mMap.get(base + VALUE_OFFSET + i);
+            }
+            mValues.put(key, value);
+            mSlots.put(key, slot);
+        }
+        if (mDroppedSlots > 0 || mDirty) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Return the value, or null if none is stored. The array is shared and
+     * must not be modified.
+     */
+    public synchronized byte[] get(UUID key) {
+        return mValues.get(key);
+    }
+
+    /**
+     * Store the value; it is on disk after the flush delay.
+     *
+     * @return false if every slot is taken by another key
+     * @throws IllegalArgumentException if the value is empty or longer than
+     *                                  {@link #MAX_VALUE_LENGTH}
+     */
+    public synchronized boolean put(UUID key, byte[] value) {
+        if (value.length == 0 || value.length > MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("Value length " + value.length);
+        }
+        if (mClosed) {
+            throw new IllegalStateException("Closed");
+        }
+        byte[] current = mValues.get(key);
+        if (current != null && Arrays.equals(current, value)) return true;
+        Integer old = mSlots.get(key);
+        int slot = freeSlot();
+        if (slot < 0) {
+            if (old == null) return false;
+            slot = old;
+        }
+        int sequence = old != null ? mMap.get(slotOffset(old) + SEQUENCE_OFFSET) + 1 : 0;
+        int base = slotOffset(slot);
+        // a free slot has length 0 until the value is complete
+        mMap.put(base + LENGTH_OFFSET, (byte) 0);
+        mMap.putLong(base, key.getMostSignificantBits());
+        mMap.putLong(base + 8, key.getLeastSignificantBits());
+        mMap.put(base + SEQUENCE_OFFSET, (byte) sequence);
+        for (int i = 0; i < value.length; i++) {
+            mMap.put(base + VALUE_OFFSET + i, value[i]);
+        }
+        mMap.put(base + LENGTH_OFFSET, (byte) value.length);
+        mMap.putInt(base + CHECKSUM_OFFSET, checksum(base, value.length));
+        if (old != null && old != slot) {
+            clearSlot(old);
+        }
+        mValues.put(key, value.clone());
+        mSlots.put(key, slot);
+        scheduleFlush();
+        return true;
+    }
+
+    /**
+     * Remove the value, the default applies again after a restart.
+     */
+    public synchronized void remove(UUID key) {
+        if (mClosed) {
+            throw new IllegalStateException("Closed");
+        }
+        Integer slot = mSlots.remove(key);
+        if (slot == null) return;
+        mValues.remove(key);
+        clearSlot(slot);
+        scheduleFlush();
+    }
+
+    public synchronized int size() {
+        return mValues.size();
+    }
+
+    /**
+     * Number of slots found torn or invalid when the store was opened.
+     */
+    public synchronized int getDroppedSlots() {
+        return mDroppedSlots;
+    }
+
+    /**
+     * Number of times the mapping was forced to disk.
+     */
+    public synchronized long getFlushCount() {
+        return mFlushCount;
+    }
+
+    /**
+     * Force unflushed writes to disk now.
+     */
+    public void flush() {
+        // writes go on while the mapping is forced, they are flushed next time
+        synchronized (mFileLock) {
+            synchronized (this) {
+                cancelPendingFlush();
+                if (!mDirty || mClosed) return;
+                mDirty = false;
+            }
+            force();
+        }
+    }
+
+    /**
+     * Flush and close the file. The store can not be written afterwards.
+     */
+    public void close() throws IOException {
+        synchronized (mFileLock) {
+            boolean dirty;
+            synchronized (this) {
+                if (mClosed) return;
+                mClosed = true;
+                cancelPendingFlush();
+                dirty = mDirty;
+                mDirty = false;
+            }
+            if (dirty) {
+                force();
+            }
+            mFile.close();
+        }
+    }
+
+    private void force() {
+        mMap.force();
+        synchronized (this) {
+            mFlushCount++;
+        }
+    }
+
+    private void cancelPendingFlush() {
+        if (mPendingFlush != null) {
+            mPendingFlush.cancel();
+            mPendingFlush = null;
+        }
+    }
+
+    private void scheduleFlush() {
+        mDirty = true;
+        if (mPendingFlush != null) return;
+        mPendingFlush = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ConfigStore.this) {
+                    mPendingFlush = null;
+                }
+                flush();
+            }
+        }, mFlushDelayMillis);
+    }
+
+    private int freeSlot() {
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            if (mMap.get(slotOffset(slot) + LENGTH_OFFSET) == 0) return slot;
+        }
+        return -1;
+    }
+
+    /* the length goes first, a torn clear leaves a free slot */
+    private void clearSlot(int slot) {
+        int base = slotOffset(slot);
+        mMap.put(base + LENGTH_OFFSET, (byte) 0);
+        for (int i = 0; i < SLOT_LENGTH; i++) {
+            mMap.put(base + i, (byte) 0);
+        }
+    }
+
+    /* sequence numbers wrap, two slots of a key are one write apart */
+    private boolean isNewer(int slot, int other) {
+        return (byte) (mMap.get(slotOffset(slot) + SEQUENCE_OFFSET)
+                - mMap.get(slotOffset(other) + SEQUENCE_OFFSET)) > 0;
+    }
+
+    private int checksum(int base, int length) {
+        mChecksum.reset();
+        for (int i = 0; i < CHECKSUM_OFFSET; i++) {
+            mChecksum.update(mMap.get(base + i));
+        }
+        for (int i = 0; i < length; i++) {
+            mChecksum.update(mMap.get(base + VALUE_OFFSET + i));
+        }
+        return (int) mChecksum.getValue();
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_LENGTH + slot * SLOT_LENGTH;
+    }
+}
@@ -0,0 +1,39 @@
+package de.androidcrypto.blegattservertime;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * Serves read and write requests for a single descriptor. Instances are
+ * registered in a {@link GattHandlerRegistry} under the UUID of the owning
+ * characteristic and the descriptor UUID.
+ */
+public interface DescriptorHandler {
+
+    /**
+     * Return the current value of the descriptor, or null to reject
+     * the read with GATT_FAILURE.
+     */
+    byte[] onRead(String device);
+
+    /**
+     * Check a value that is part of an Execute Write, without applying it.
+     * All queued values are checked before the first one is applied, so a
+     * handler whose onWrite can reject a value must reject it here already.
+     * Writes to attributes without write permission are refused by the
+     * Bluetooth stack before they are queued.
+     *
+     * @return a {@link BluetoothGatt} status code, GATT_SUCCESS by default.
+     */
+    default int validateWrite(String device, byte[] value) {
+        return BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * Apply a value written by the client.
+     *
+     * @return a {@link BluetoothGatt} status code for the response.
+     */
+    default int onWrite(String device, byte[] value) {
+        return BluetoothGatt.GATT_WRITE_NOT_PERMITTED;
+    }
+}
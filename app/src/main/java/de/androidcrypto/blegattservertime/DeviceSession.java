@@ -0,0 +1,135 @@
+package de.androidcrypto.blegattservertime;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State of one connected central, from connect until disconnect or idle
+ * eviction.
+ */
+public class DeviceSession {
+
+    /* LE 1M, until the central negotiates another PHY */
+    public static final int PHY_LE_1M = 1;
+
+    private final String mAddress;
+    private final long mMac;
+    private final long mConnectedMillis;
+    private final long mConnectedWallMillis;
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private volatile long mLastActivityMillis;
+    private volatile int mMtu = GattServerCore.DEFAULT_MTU;
+    private volatile int mTxPhy = PHY_LE_1M;
+    private volatile int mRxPhy = PHY_LE_1M;
+
+    // value of the long read in progress, guarded by this
+    UUID longReadCharacteristic;
+    ReadPayload longRead;
+    // pending idle check, guarded by this
+    Scheduler.Cancellable idleTimer;
+    // announced to the listener after the connect callback, guarded by this
+    boolean connected;
+
+    /**
+     * @param nowMillis time of the connect on the clock used for idle checks
+     */
+    DeviceSession(String address, long mac, long nowMillis) {
+        mAddress = address;
+        mMac = mac;
+        mConnectedMillis = nowMillis;
+        mConnectedWallMillis = System.currentTimeMillis();
+        mLastActivityMillis = nowMillis;
+    }
+
+    /**
+     * Encode an address like {@code 00:11:22:33:44:55} into the low 48 bits
+     * of a long.
+     *
+     * @throws IllegalArgumentException if the address is malformed
+     */
+    public static long parseMac(String address) {
+        if (address.length() != 17) {
+            throw new IllegalArgumentException("Invalid address " + address);
+        }
+        long mac = 0;
+        for (int i = 0; i < 17; i += 3) {
+            int high = Character.digit(address.charAt(i), 16);
+            int low = Character.digit(address.charAt(i + 1), 16);
+            if (high < 0 || low < 0 || (i < 15 && address.charAt(i + 2) != ':')) {
+                throw new IllegalArgumentException("Invalid address " + address);
+            }
+            mac = mac << 8 | high << 4 | low;
+        }
+        return mac;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public long getMac() {
+        return mMac;
+    }
+
+    /**
+     * Time of the connect on the idle clock.
+     */
+    public long getConnectedMillis() {
+        return mConnectedMillis;
+    }
+
+    /**
+     * Wall clock time of the connect.
+     */
+    public long getConnectedWallMillis() {
+        return mConnectedWallMillis;
+    }
+
+    /**
+     * Time of the last request or notification on the idle clock.
+     */
+    public long getLastActivityMillis() {
+        return mLastActivityMillis;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    void setMtu(int mtu) {
+        mMtu = mtu;
+    }
+
+    public int getTxPhy() {
+        return mTxPhy;
+    }
+
+    public int getRxPhy() {
+        return mRxPhy;
+    }
+
+    void setPhy(int txPhy, int rxPhy) {
+        mTxPhy = txPhy;
+        mRxPhy = rxPhy;
+    }
+
+    /**
+     * Number of requests that are being handled.
+     */
+    public int getInFlightRequests() {
+        return mInFlight.get();
+    }
+
+    void touch(long nowMillis) {
+        mLastActivityMillis = nowMillis;
+    }
+
+    void beginRequest(long nowMillis) {
+        mLastActivityMillis = nowMillis;
+        mInFlight.incrementAndGet();
+    }
+
+    void endRequest() {
+        mInFlight.decrementAndGet();
+    }
+}
@@ -0,0 +1,143 @@
+package de.androidcrypto.blegattservertime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Upcoming offset transitions of a time zone, with the Time with DST value
+ * of each one encoded in advance.
+ *
+ * The zone rules are evaluated once, when the table is built: the horizon is
+ * scanned a day at a time and every change of the zone or DST offset is
+ * narrowed down to the millisecond. A lookup is then a binary search over
+ * the transition times that returns a shared array. The table is immutable;
+ * a new one is built when the time zone changes or the horizon is reached.
+ */
+public final class DstTransitionTable {
+
+    /** Length of an encoded Time with DST value */
+    public static final int TIME_WITH_DST_LENGTH = 8;
+    /* Two years cover the next change in every zone that has DST */
+    public static final long HORIZON_MILLIS = 2 * 366 * 86400000L;
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+    private static final int HALF_HOUR_MILLIS = 1800000;
+
+    /* Date Time fields 0 mean unknown, DST offset 255 is unknown */
+    private static final byte[] NO_TRANSITION = {0, 0, 0, 0, 0, 0, 0, (byte) 0xFF};
+
+    private final long mBuiltAt;
+    private final long mHorizon;
+    private final long[] mTransitions;
+    private final byte[][] mValues;
+
+    private DstTransitionTable(long builtAt, long horizon, long[] transitions, byte[][] values) {
+        mBuiltAt = builtAt;
+        mHorizon = horizon;
+        mTransitions = transitions;
+        mValues = values;
+    }
+
+    /**
+     * Find the transitions of the zone from {@code timestamp} to the horizon.
+     */
+    public static DstTransitionTable build(TimeZone zone, long timestamp) {
+        Calendar calendar = Calendar.getInstance(zone);
+        long horizon = timestamp + HORIZON_MILLIS;
+        List<Long> transitions = new ArrayList<>();
+        long low = timestamp;
+        long offsets = offsetsAt(calendar, low);
+        while (low < horizon) {
+            long high = Math.min(low + MILLIS_PER_DAY, horizon);
+            if (offsetsAt(calendar, high) == offsets) {
+                low = high;
+                continue;
+            }
+            // the first millisecond with the new offset
+            while (high - low > 1) {
+                long mid = low + (high - low) / 2;
+                if (offsetsAt(calendar, mid) == offsets) {
+                    low = mid;
+                } else {
+                    high = mid;
+                }
+            }
+            transitions.add(high);
+            low = high;
+            offsets = offsetsAt(calendar, low);
+        }
+
+        long[] times = new long[transitions.size()];
+        byte[][] values = new byte[times.length][];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = transitions.get(i);
+            values[i] = encode(calendar, times[i]);
+        }
+        return new DstTransitionTable(timestamp, horizon, times, values);
+    }
+
+    /**
+     * Return true if lookups for the timestamp are answered by this table.
+     */
+    public boolean covers(long timestamp) {
+        return timestamp >= mBuiltAt && timestamp < mHorizon;
+    }
+
+    /**
+     * Return the Time with DST value of the first transition after the
+     * timestamp, or the unknown value if there is none before the horizon.
+     * The array is shared and must not be modified.
+     */
+    public byte[] getNextChange(long timestamp) {
+        int index = nextIndex(timestamp);
+        return index < mTransitions.length ? mValues[index] : NO_TRANSITION;
+    }
+
+    /**
+     * Return the time of the first transition after the timestamp, or
+     * Long.MAX_VALUE if there is none before the horizon.
+     */
+    public long getNextTransition(long timestamp) {
+        int index = nextIndex(timestamp);
+        return index < mTransitions.length ? mTransitions[index] : Long.MAX_VALUE;
+    }
+
+    public int getTransitionCount() {
+        return mTransitions.length;
+    }
+
+    private int nextIndex(long timestamp) {
+        int index = Arrays.binarySearch(mTransitions, timestamp);
+        // a timestamp on a transition is already past it
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * The local time at which the transition happens, on the clock in use
+     * before it, and the DST offset in effect after it.
+     */
+    private static byte[] encode(Calendar calendar, long transition) {
+        byte[] value = new byte[TIME_WITH_DST_LENGTH];
+        TimeEncoder.encodeDateTime(transition + offsetAt(calendar, transition - 1), value, 0);
+        calendar.setTimeInMillis(transition);
+        value[7] = TimeProfile.getDstOffsetCode(calendar.get(Calendar.DST_OFFSET) / HALF_HOUR_MILLIS);
+        return value;
+    }
+
+    /**
+     * Return zone and DST offset in one value, a transition may change the
+     * split without changing the sum.
+     */
+    private static long offsetsAt(Calendar calendar, long timestamp) {
+        calendar.setTimeInMillis(timestamp);
+        return (long) calendar.get(Calendar.ZONE_OFFSET) << 32 | (calendar.get(Calendar.DST_OFFSET) & 0xFFFFFFFFL);
+    }
+
+    private static int offsetAt(Calendar calendar, long timestamp) {
+        calendar.setTimeInMillis(timestamp);
+        return calendar.get(Calendar.ZONE_OFFSET) + calendar.get(Calendar.DST_OFFSET);
+    }
+}
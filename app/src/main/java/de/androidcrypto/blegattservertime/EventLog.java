@@ -0,0 +1,200 @@
+package de.androidcrypto.blegattservertime;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed capacity, lock-free ring buffer of log events.
+ *
+ * Logging from the GATT callbacks only copies the level, a constant message
+ * and up to two arguments into a preallocated slot; nothing is formatted or
+ * allocated, and events below the minimum level return immediately. Events are
+ * rendered to text only when they are drained, which is done in batches on the
+ * UI thread. If the reader falls behind by more than the capacity, the oldest
+ * events are overwritten and counted as lost.
+ */
+public class EventLog {
+
+    /* Levels, same values as android.util.Log */
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    /**
+     * Receives drained events.
+     */
+    public interface Sink {
+        /**
+         * @param text rendered event, only valid for the duration of the call
+         */
+        void onEvent(long timeMillis, int level, CharSequence text);
+    }
+
+    private static final Object NONE = new Object();
+
+    private static final class Slot {
+        /* sequence number of the event in this slot, -1 while it is written */
+        volatile long sequence = -1;
+        long timeMillis;
+        int level;
+        String message;
+        Object arg0;
+        Object arg1;
+        long value;
+        boolean hasValue;
+    }
+
+    private final Slot[] mSlots;
+    private final int mMask;
+    private final AtomicLong mNextSequence = new AtomicLong();
+    private final AtomicBoolean mDrainRequested = new AtomicBoolean();
+    private final AtomicLong mLost = new AtomicLong();
+    private final StringBuilder mText = new StringBuilder();
+    private volatile int mMinLevel;
+    private volatile Runnable mDrainRequest;
+    /* next sequence to read, only accessed by the draining thread */
+    private long mReadSequence;
+
+    /**
+     * @param capacity number of events kept, rounded up to a power of two
+     */
+    public EventLog(int capacity, int minLevel) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mSlots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new Slot();
+        }
+        mMask = size - 1;
+        mMinLevel = minLevel;
+    }
+
+    /**
+     * Set a callback that is run once when events become available after the
+     * last {@link #drain}, typically to schedule the next drain on the UI thread.
+     */
+    public void setDrainRequest(Runnable drainRequest) {
+        mDrainRequest = drainRequest;
+    }
+
+    public void setMinLevel(int level) {
+        mMinLevel = level;
+    }
+
+    public boolean isEnabled(int level) {
+        return level >= mMinLevel;
+    }
+
+    public void log(int level, String message) {
+        if (level >= mMinLevel) append(level, message, NONE, NONE, 0, false);
+    }
+
+    public void log(int level, String message, Object arg) {
+        if (level >= mMinLevel) append(level, message, arg, NONE, 0, false);
+    }
+
+    public void log(int level, String message, long value) {
+        if (level >= mMinLevel) append(level, message, NONE, NONE, value, true);
+    }
+
+    public void log(int level, String message, Object arg0, Object arg1) {
+        if (level >= mMinLevel) append(level, message, arg0, arg1, 0, false);
+    }
+
+    public void log(int level, String message, Object arg, long value) {
+        if (level >= mMinLevel) append(level, message, arg, NONE, value, true);
+    }
+
+    private void append(int level, String message, Object arg0, Object arg1, long value, boolean hasValue) {
+        long sequence = mNextSequence.getAndIncrement();
+        Slot slot = mSlots[(int) (sequence & mMask)];
+        slot.sequence = -1;
+        slot.timeMillis = System.currentTimeMillis();
+        slot.level = level;
+        slot.message = message;
+        slot.arg0 = arg0;
+        slot.arg1 = arg1;
+        slot.value = value;
+        slot.hasValue = hasValue;
+        slot.sequence = sequence;
+
+        Runnable drainRequest = mDrainRequest;
+        if (drainRequest != null && mDrainRequested.compareAndSet(false, true)) {
+            drainRequest.run();
+        }
+    }
+
+    /**
+     * Render all events logged since the last call into the sink, oldest first.
+     * Must always be called from the same thread.
+     *
+     * @return the number of events delivered
+     */
+    public int drain(Sink sink) {
+        mDrainRequested.set(false);
+        long end = mNextSequence.get();
+        if (end - mReadSequence > mSlots.length) {
+            mLost.addAndGet(end - mSlots.length - mReadSequence);
+            mReadSequence = end - mSlots.length;
+        }
+        int delivered = 0;
+        boolean unpublished = false;
+        while (mReadSequence < end) {
+            Slot slot = mSlots[(int) (mReadSequence & mMask)];
+            long sequence = slot.sequence;
+            if (sequence == -1 || sequence < mReadSequence) {
+                // claimed but not yet published, continue with the next drain
+                unpublished = true;
+                break;
+            }
+            long timeMillis = slot.timeMillis;
+            int level = slot.level;
+            String message = slot.message;
+            Object arg0 = slot.arg0;
+            Object arg1 = slot.arg1;
+            long value = slot.value;
+            boolean hasValue = slot.hasValue;
+            if (slot.sequence != mReadSequence) {
+                // overwritten by a writer that lapped the reader
+                mLost.incrementAndGet();
+                mReadSequence++;
+                continue;
+            }
+            mText.setLength(0);
+            mText.append(message);
+            appendArg(arg0);
+            appendArg(arg1);
+            if (hasValue) {
+                mText.append(' ').append(value);
+            }
+            sink.onEvent(timeMillis, level, mText);
+            delivered++;
+            mReadSequence++;
+        }
+        if (unpublished) {
+            // a writer is still publishing, make sure it gets drained
+            Runnable drainRequest = mDrainRequest;
+            if (drainRequest != null && mDrainRequested.compareAndSet(false, true)) {
+                drainRequest.run();
+            }
+        }
+        return delivered;
+    }
+
+    private void appendArg(Object arg) {
+        if (arg == NONE) return;
+        mText.append(' ');
+        if (arg instanceof byte[]) {
+            mText.append(Arrays.toString((byte[]) arg));
+        } else {
+            mText.append(arg);
+        }
+    }
+
+    /** Events overwritten before they were drained */
+    public long getLostCount() {
+        return mLost.get();
+    }
+}
@@ -0,0 +1,64 @@
+package de.androidcrypto.blegattservertime;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Lookup table from attribute UUIDs to the handlers serving them.
+ *
+ * Each profile registers its handlers once before the GATT server is opened;
+ * the server callback then resolves every request with a single hash lookup
+ * instead of comparing the UUID against every known characteristic.
+ * Descriptors are keyed by the owning characteristic as well, because the
+ * same descriptor UUID (e.g. the Client Characteristic Config) appears on
+ * several characteristics.
+ */
+public class GattHandlerRegistry {
+
+    private final Map<UUID, CharacteristicHandler> mCharacteristicHandlers = new HashMap<>();
+    private final Map<UUID, Map<UUID, DescriptorHandler>> mDescriptorHandlers = new HashMap<>();
+
+    /**
+     * Register the handler for a characteristic, replacing any previous one.
+     */
+    public void registerCharacteristic(UUID characteristic, CharacteristicHandler handler) {
+        mCharacteristicHandlers.put(characteristic, handler);
+    }
+
+    /**
+     * Register the handler for a descriptor of the given characteristic,
+     * replacing any previous one.
+     */
+    public void registerDescriptor(UUID characteristic, UUID descriptor, DescriptorHandler handler) {
+        Map<UUID, DescriptorHandler> handlers = mDescriptorHandlers.get(characteristic);
+        if (handlers == null) {
+            handlers = new HashMap<>();
+            mDescriptorHandlers.put(characteristic, handlers);
+        }
+        handlers.put(descriptor, handler);
+    }
+
+    /**
+     * Return the handler for the characteristic, or null if none is registered.
+     */
+    public CharacteristicHandler getCharacteristicHandler(UUID characteristic) {
+        return mCharacteristicHandlers.get(characteristic);
+    }
+
+    /**
+     * Return the handler for the descriptor of the given characteristic,
+     * or null if none is registered.
+     */
+    public DescriptorHandler getDescriptorHandler(UUID characteristic, UUID descriptor) {
+        Map<UUID, DescriptorHandler> handlers = mDescriptorHandlers.get(characteristic);
+        return handlers == null ? null : handlers.get(descriptor);
+    }
+
+    /**
+     * Number of registered characteristic handlers.
+     */
+    public int getCharacteristicCount() {
+        return mCharacteristicHandlers.size();
+    }
+}
@@ -0,0 +1,257 @@
+package de.androidcrypto.blegattservertime;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters per characteristic and per device, and the time from a request
+ * callback to its response.
+ *
+ * Recording only looks up an existing entry and increments atomics; an entry
+ * is allocated once, on the first event of a characteristic or device. When
+ * a device disconnects its entry is kept aside until a periodic export has
+ * written it, at most {@link #MAX_DISCONNECTED_DEVICES} of them; the
+ * characteristic entries and the totals are kept for the lifetime of the
+ * server.
+ * {@link #writeJson(Appendable)} exports a snapshot for offline analysis,
+ * with the hit counters of the time payload cache if one is set.
+ */
+public class GattMetrics {
+
+    /* Counters */
+    public static final int READS = 0;
+    public static final int WRITES = 1;
+    public static final int NOTIFICATIONS_SENT = 2;
+    public static final int NOTIFICATIONS_FAILED = 3;
+    public static final int NOTIFICATIONS_DROPPED = 4;
+    public static final int CCCD_CHANGES = 5;
+    /* Responses with GATT_FAILURE */
+    public static final int FAILURE_RESPONSES = 6;
+
+    private static final String[] COUNTER_NAMES = {
+            "reads", "writes", "notificationsSent", "notificationsFailed", "notificationsDropped",
+            "cccdChanges", "failureResponses"
+    };
+    private static final int GATT_FAILURE = 0x101;
+    /* Disconnected devices kept until they are exported, the oldest is dropped first */
+    public static final int MAX_DISCONNECTED_DEVICES = 256;
+
+    public static class Stats {
+        private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_NAMES.length);
+
+        public long get(int counter) {
+            return mCounters.get(counter);
+        }
+
+        void increment(int counter) {
+            mCounters.incrementAndGet(counter);
+        }
+
+        void add(Stats other) {
+            for (int i = 0; i < COUNTER_NAMES.length; i++) {
+                mCounters.addAndGet(i, other.get(i));
+            }
+        }
+    }
+
+    public static final class CharacteristicStats extends Stats {
+        private final LatencyHistogram mResponseLatency = new LatencyHistogram();
+
+        public LatencyHistogram getResponseLatency() {
+            return mResponseLatency;
+        }
+    }
+
+    private final long mStartMillis = System.currentTimeMillis();
+    private final CharacteristicStats mTotal = new CharacteristicStats();
+    private final ConcurrentHashMap<UUID, CharacteristicStats> mCharacteristics = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Stats> mDevices = new ConcurrentHashMap<>();
+    private volatile TimePayloadCache mPayloadCache;
+    // guarded by itself, only touched on disconnect and export
+    private final LinkedHashMap<String, Stats> mDisconnected = new LinkedHashMap<String, Stats>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Stats> eldest) {
+            return size() > MAX_DISCONNECTED_DEVICES;
+        }
+    };
+
+    /**
+     * @param characteristic null if the event does not belong to one
+     */
+    public void increment(UUID characteristic, String device, int counter) {
+        mTotal.increment(counter);
+        if (characteristic != null) {
+            getCharacteristicStats(characteristic).increment(counter);
+        }
+        getDeviceStats(device).increment(counter);
+    }
+
+    /**
+     * Record a response sent to the device.
+     *
+     * @param characteristic null if the request did not address one, e.g. Execute Write
+     * @param latencyNanos time since the request callback was entered
+     */
+    public void recordResponse(UUID characteristic, String device, int status, long latencyNanos) {
+        mTotal.mResponseLatency.record(latencyNanos);
+        CharacteristicStats stats = characteristic == null ? null : getCharacteristicStats(characteristic);
+        if (stats != null) {
+            stats.mResponseLatency.record(latencyNanos);
+        }
+        if (status == GATT_FAILURE) {
+            mTotal.increment(FAILURE_RESPONSES);
+            if (stats != null) {
+                stats.increment(FAILURE_RESPONSES);
+            }
+            getDeviceStats(device).increment(FAILURE_RESPONSES);
+        }
+    }
+
+    /**
+     * Include the hits and misses of the cache in the snapshot.
+     */
+    public void setPayloadCache(TimePayloadCache cache) {
+        mPayloadCache = cache;
+    }
+
+    /**
+     * Move the entry of the device aside, it stays in the snapshots until
+     * one written with forgetDisconnected set.
+     */
+    public void removeDevice(String device) {
+        Stats stats = mDevices.remove(device);
+        if (stats != null) {
+            retain(device, stats);
+        }
+    }
+
+    private void retain(String device, Stats stats) {
+        synchronized (mDisconnected) {
+            Stats previous = mDisconnected.get(device);
+            if (previous != null) {
+                // disconnected before, not exported since
+                previous.add(stats);
+            } else {
+                mDisconnected.put(device, stats);
+            }
+        }
+    }
+
+    /**
+     * Counters and response latency over all characteristics and devices.
+     */
+    public CharacteristicStats getTotal() {
+        return mTotal;
+    }
+
+    public CharacteristicStats getCharacteristicStats(UUID characteristic) {
+        CharacteristicStats stats = mCharacteristics.get(characteristic);
+        if (stats == null) {
+            CharacteristicStats created = new CharacteristicStats();
+            stats = mCharacteristics.putIfAbsent(characteristic, created);
+            if (stats == null) stats = created;
+        }
+        return stats;
+    }
+
+    public Stats getDeviceStats(String device) {
+        Stats stats = mDevices.get(device);
+        if (stats == null) {
+            Stats created = new Stats();
+            stats = mDevices.putIfAbsent(device, created);
+            if (stats == null) stats = created;
+        }
+        return stats;
+    }
+
+    /**
+     * Write a snapshot as a single line of JSON, latencies in microseconds.
+     */
+    public void writeJson(Appendable out) throws IOException {
+        writeJson(out, false);
+    }
+
+    /**
+     * @param forgetDisconnected drop the entries of disconnected devices once
+     *                           they are written, for the periodic export
+     */
+    public void writeJson(Appendable out, boolean forgetDisconnected) throws IOException {
+        Map<String, Stats> disconnected;
+        synchronized (mDisconnected) {
+            disconnected = new LinkedHashMap<>(mDisconnected);
+            if (forgetDisconnected) {
+                mDisconnected.clear();
+            }
+        }
+        try {
+            writeSnapshot(out, disconnected);
+        } catch (IOException e) {
+            if (forgetDisconnected) {
+                // not exported, keep them for the next snapshot
+                for (Map.Entry<String, Stats> entry : disconnected.entrySet()) {
+                    retain(entry.getKey(), entry.getValue());
+                }
+            }
+            throw e;
+        }
+    }
+
+    private void writeSnapshot(Appendable out, Map<String, Stats> disconnected) throws IOException {
+        out.append("{\"startMillis\":").append(Long.toString(mStartMillis));
+        out.append(",\"snapshotMillis\":").append(Long.toString(System.currentTimeMillis()));
+        out.append(",\"total\":");
+        appendStats(out, mTotal);
+        out.append(",\"characteristics\":{");
+        boolean first = true;
+        for (Map.Entry<UUID, CharacteristicStats> entry : mCharacteristics.entrySet()) {
+            if (!first) out.append(',');
+            first = false;
+            out.append('"').append(entry.getKey().toString()).append("\":");
+            appendStats(out, entry.getValue());
+        }
+        out.append("},\"devices\":{");
+        appendDevices(out, mDevices);
+        out.append("},\"disconnectedDevices\":{");
+        appendDevices(out, disconnected);
+        out.append('}');
+        TimePayloadCache cache = mPayloadCache;
+        if (cache != null) {
+            out.append(",\"payloadCache\":{\"hits\":").append(Long.toString(cache.getHitCount()))
+                    .append(",\"misses\":").append(Long.toString(cache.getMissCount()))
+                    .append(",\"hitRatio\":").append(Double.toString(cache.getHitRatio())).append('}');
+        }
+        out.append('}');
+    }
+
+    private static void appendDevices(Appendable out, Map<String, Stats> devices) throws IOException {
+        boolean first = true;
+        for (Map.Entry<String, Stats> entry : devices.entrySet()) {
+            if (!first) out.append(',');
+            first = false;
+            out.append('"').append(entry.getKey()).append("\":");
+            appendStats(out, entry.getValue());
+        }
+    }
+
+    private static void appendStats(Appendable out, Stats stats) throws IOException {
+        out.append('{');
+        for (int i = 0; i < COUNTER_NAMES.length; i++) {
+            if (i > 0) out.append(',');
+            out.append('"').append(COUNTER_NAMES[i]).append("\":").append(Long.toString(stats.get(i)));
+        }
+        if (stats instanceof CharacteristicStats) {
+            LatencyHistogram latency = ((CharacteristicStats) stats).mResponseLatency;
+            out.append(",\"responseMicros\":{\"count\":").append(Long.toString(latency.getCount()))
+                    .append(",\"mean\":").append(Long.toString(latency.getMeanNanos() / 1000))
+                    .append(",\"p50\":").append(Long.toString(latency.getValueAtQuantile(0.50) / 1000))
+                    .append(",\"p99\":").append(Long.toString(latency.getValueAtQuantile(0.99) / 1000))
+                    .append(",\"p999\":").append(Long.toString(latency.getValueAtQuantile(0.999) / 1000))
+                    .append(",\"max\":").append(Long.toString(latency.getMaxNanos() / 1000)).append('}');
+        }
+        out.append('}');
+    }
+}
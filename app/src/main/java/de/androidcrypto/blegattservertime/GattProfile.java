@@ -0,0 +1,200 @@
+package de.androidcrypto.blegattservertime;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Declarative definition of the services the server offers.
+ *
+ * One definition produces both the request routing in
+ * {@link GattServerCore} ({@link #install(GattServerCore)}) and the
+ * BluetoothGattService tree ({@link AndroidGattServices}), so the two cannot
+ * drift apart. A characteristic that notifies or indicates automatically gets
+ * a Client Characteristic Configuration descriptor wired to the
+ * subscriptions; declaring one by hand is an error.
+ *
+ * <pre>
+ * GattProfile profile = GattProfile.builder()
+ *         .service(TIME_SERVICE)
+ *         .characteristic(CURRENT_TIME, PROPERTY_READ | PROPERTY_NOTIFY, PERMISSION_READ, handler)
+ *         .build();
+ * </pre>
+ */
+public class GattProfile {
+
+    /* Client Characteristic Config Descriptor */
+    public static final UUID CLIENT_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private static final int NOTIFY_OR_INDICATE =
+            BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE;
+
+    public static final class Descriptor {
+        public final UUID uuid;
+        public final int permissions;
+        public final DescriptorHandler handler;
+
+        Descriptor(UUID uuid, int permissions, DescriptorHandler handler) {
+            this.uuid = uuid;
+            this.permissions = permissions;
+            this.handler = handler;
+        }
+    }
+
+    public static final class Characteristic {
+        public final UUID uuid;
+        public final int properties;
+        public final int permissions;
+        public final CharacteristicHandler handler;
+        public final List<Descriptor> descriptors;
+
+        Characteristic(UUID uuid, int properties, int permissions, CharacteristicHandler handler,
+                       List<Descriptor> descriptors) {
+            this.uuid = uuid;
+            this.properties = properties;
+            this.permissions = permissions;
+            this.handler = handler;
+            this.descriptors = descriptors;
+        }
+
+        /**
+         * Return true if the characteristic has a Client Characteristic
+         * Configuration descriptor.
+         */
+        public boolean isNotifying() {
+            return (properties & NOTIFY_OR_INDICATE) != 0;
+        }
+    }
+
+    public static final class Service {
+        public final UUID uuid;
+        public final List<Characteristic> characteristics;
+
+        Service(UUID uuid, List<Characteristic> characteristics) {
+            this.uuid = uuid;
+            this.characteristics = characteristics;
+        }
+    }
+
+    private final List<Service> mServices;
+
+    private GattProfile(List<Service> services) {
+        mServices = services;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public List<Service> getServices() {
+        return mServices;
+    }
+
+    public UUID[] getServiceUuids() {
+        UUID[] uuids = new UUID[mServices.size()];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = mServices.get(i).uuid;
+        }
+        return uuids;
+    }
+
+    /**
+     * Register the handlers of every characteristic and descriptor, and a
+     * subscription handler for every Client Characteristic Configuration.
+     */
+    public void install(GattServerCore core) {
+        GattHandlerRegistry registry = core.getHandlerRegistry();
+        for (Service service : mServices) {
+            for (Characteristic characteristic : service.characteristics) {
+                registry.registerCharacteristic(characteristic.uuid, characteristic.handler);
+                if (characteristic.isNotifying()) {
+                    registry.registerDescriptor(characteristic.uuid, CLIENT_CONFIG,
+                            core.createClientConfigHandler(characteristic.uuid));
+                }
+                for (Descriptor descriptor : characteristic.descriptors) {
+                    registry.registerDescriptor(characteristic.uuid, descriptor.uuid, descriptor.handler);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects services, each followed by its characteristics, each followed
+     * by its descriptors.
+     */
+    public static class Builder {
+        private final List<Service> mServices = new ArrayList<>();
+        private List<Characteristic> mCharacteristics;
+        private List<Descriptor> mDescriptors;
+
+        public Builder service(UUID uuid) {
+            for (Service service : mServices) {
+                if (service.uuid.equals(uuid)) {
+                    throw new IllegalArgumentException("Duplicate service " + uuid);
+                }
+            }
+            mCharacteristics = new ArrayList<>();
+            mDescriptors = null;
+            mServices.add(new Service(uuid, Collections.unmodifiableList(mCharacteristics)));
+            return this;
+        }
+
+        public Builder characteristic(UUID uuid, int properties, int permissions,
+                                      CharacteristicHandler handler) {
+            if (mCharacteristics == null) {
+                throw new IllegalStateException("Characteristic " + uuid + " outside of a service");
+            }
+            if (handler == null) {
+                throw new IllegalArgumentException("Characteristic " + uuid + " has no handler");
+            }
+            for (Service service : mServices) {
+                for (Characteristic characteristic : service.characteristics) {
+                    // requests are routed by characteristic UUID alone
+                    if (characteristic.uuid.equals(uuid)) {
+                        throw new IllegalArgumentException("Duplicate characteristic " + uuid);
+                    }
+                }
+            }
+            mDescriptors = new ArrayList<>();
+            mCharacteristics.add(new Characteristic(uuid, properties, permissions, handler,
+                    Collections.unmodifiableList(mDescriptors)));
+            return this;
+        }
+
+        public Builder descriptor(UUID uuid, int permissions, DescriptorHandler handler) {
+            if (mDescriptors == null) {
+                throw new IllegalStateException("Descriptor " + uuid + " outside of a characteristic");
+            }
+            if (CLIENT_CONFIG.equals(uuid)) {
+                throw new IllegalArgumentException(
+                        "Client Characteristic Configuration is added for notifying characteristics");
+            }
+            if (handler == null) {
+                throw new IllegalArgumentException("Descriptor " + uuid + " has no handler");
+            }
+            mDescriptors.add(new Descriptor(uuid, permissions, handler));
+            return this;
+        }
+
+        /**
+         * Return a snapshot of the profile, later calls on the builder do not
+         * change it.
+         */
+        public GattProfile build() {
+            List<Service> services = new ArrayList<>(mServices.size());
+            for (Service service : mServices) {
+                List<Characteristic> characteristics = new ArrayList<>(service.characteristics.size());
+                for (Characteristic characteristic : service.characteristics) {
+                    characteristics.add(new Characteristic(characteristic.uuid, characteristic.properties,
+                            characteristic.permissions, characteristic.handler,
+                            Collections.unmodifiableList(new ArrayList<>(characteristic.descriptors))));
+                }
+                services.add(new Service(service.uuid, Collections.unmodifiableList(characteristics)));
+            }
+            return new GattProfile(Collections.unmodifiableList(services));
+        }
+    }
+}
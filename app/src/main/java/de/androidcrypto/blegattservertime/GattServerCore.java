@@ -0,0 +1,683 @@
+package de.androidcrypto.blegattservertime;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothProfile;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Platform independent part of the GATT server: request dispatch,
+ * subscriptions and notification delivery.
+ *
+ * Reads honour the negotiated MTU of each device. A value longer than
+ * MTU - 1 bytes is captured once when the client reads offset 0, and the
+ * following Read Blob requests are served from that snapshot, so a client
+ * never assembles a value that changed halfway through.
+ *
+ * Every request is counted in the {@link GattMetrics}, together with the
+ * time from entering the callback to sending the response.
+ *
+ * Each connected device has a {@link DeviceSession} in a bounded
+ * {@link SessionTable}. A session is opened on connect or on the first
+ * request, and disconnecting drops it together with the subscriptions,
+ * queued notifications and prepared writes of the device. Once an idle
+ * timeout is set, a device without requests or notifications for that long
+ * is disconnected, and when the table is full the least recently active
+ * session makes room for a new one, so centrals that keep rotating their
+ * private address can not pile up state.
+ *
+ * With a {@link SubscriptionStore} set, the subscriptions of bonded devices
+ * are stored as they are written and restored when the device connects
+ * again, so it is notified right away without rewriting its descriptors.
+ *
+ * The Android callback adapter translates every BluetoothGattServerCallback
+ * into the matching method of this class, and all output goes through the
+ * attached {@link GattServerPort}. Nothing in here touches the Android
+ * Bluetooth classes, so the whole request path can be run on a plain JVM.
+ */
+public class GattServerCore {
+
+    /**
+     * Receives connection changes, e.g. to update the UI.
+     */
+    public interface Listener {
+        void onConnectionStateChanged(String device, boolean connected, int connectedDevices);
+    }
+
+    /**
+     * ATT_MTU until the client negotiates a larger one.
+     */
+    public static final int DEFAULT_MTU = 23;
+    public static final int MAX_MTU = 517;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final EventLog mEventLog;
+    private final GattHandlerRegistry mHandlerRegistry = new GattHandlerRegistry();
+    private final SubscriptionRegistry<String> mSubscriptions = new SubscriptionRegistry<>();
+    private final NotificationEngine<String> mNotificationEngine;
+    private final SessionTable mSessions;
+    /* sessions announced to the listener */
+    private final AtomicInteger mConnectedCount = new AtomicInteger();
+    private final PreparedWriteQueue mPreparedWrites = new PreparedWriteQueue();
+    // last long value per characteristic, shared so that its slices are shared
+    private final ConcurrentHashMap<UUID, ReadPayload> mReadPayloads = new ConcurrentHashMap<>();
+    private final GattMetrics mMetrics = new GattMetrics();
+    private volatile GattServerPort mPort;
+    private volatile Listener mListener;
+    private volatile TimerWheel.Clock mClock = TimerWheel.SYSTEM_CLOCK;
+    private volatile Scheduler mIdleScheduler;
+    private volatile long mIdleTimeoutMillis;
+    private volatile SubscriptionStore mSubscriptionStore;
+
+    public GattServerCore(EventLog eventLog) {
+        this(eventLog, SessionTable.DEFAULT_MAX_SESSIONS);
+    }
+
+    /**
+     * @param maxSessions number of devices that can be connected at once
+     */
+    public GattServerCore(EventLog eventLog, int maxSessions) {
+        mEventLog = eventLog;
+        mSessions = new SessionTable(maxSessions);
+        mNotificationEngine = new NotificationEngine<>(new NotificationEngine.Sender<String>() {
+            @Override
+            public boolean send(String device, UUID characteristic, byte[] value, boolean confirm) {
+                GattServerPort port = mPort;
+                return port != null && port.notifyCharacteristicChanged(device, characteristic, value, confirm);
+            }
+        });
+        mNotificationEngine.setObserver(new NotificationEngine.Observer<String>() {
+            @Override
+            public void onSent(String device, UUID characteristic) {
+                mMetrics.increment(characteristic, device, GattMetrics.NOTIFICATIONS_SENT);
+                DeviceSession session = getSession(device);
+                if (session != null) {
+                    session.touch(mClock.millis());
+                }
+            }
+
+            @Override
+            public void onFailed(String device, UUID characteristic) {
+                mMetrics.increment(characteristic, device, GattMetrics.NOTIFICATIONS_FAILED);
+            }
+
+            @Override
+            public void onDropped(String device, UUID characteristic) {
+                mMetrics.increment(characteristic, device, GattMetrics.NOTIFICATIONS_DROPPED);
+            }
+        });
+    }
+
+    public GattHandlerRegistry getHandlerRegistry() {
+        return mHandlerRegistry;
+    }
+
+    public SubscriptionRegistry<String> getSubscriptions() {
+        return mSubscriptions;
+    }
+
+    public PreparedWriteQueue getPreparedWrites() {
+        return mPreparedWrites;
+    }
+
+    public NotificationEngine<String> getNotificationEngine() {
+        return mNotificationEngine;
+    }
+
+    public GattMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public EventLog getEventLog() {
+        return mEventLog;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Disconnect devices that neither sent a request nor received a
+     * notification for the given time, 0 to keep idle devices connected.
+     *
+     * @param scheduler runs the idle checks
+     * @param clock     the clock of the scheduler
+     */
+    public void setIdleTimeout(Scheduler scheduler, TimerWheel.Clock clock, long idleMillis) {
+        mIdleScheduler = idleMillis > 0 ? scheduler : null;
+        mClock = clock;
+        mIdleTimeoutMillis = idleMillis;
+        for (DeviceSession session : mSessions.getSessions()) {
+            session.touch(clock.millis());
+            scheduleIdleCheck(session, idleMillis);
+        }
+    }
+
+    /**
+     * Keep the subscriptions of bonded devices in the store, null to stop.
+     * Set before devices connect; sessions that are already open are not
+     * restored.
+     */
+    public void setSubscriptionStore(SubscriptionStore store) {
+        mSubscriptionStore = store;
+    }
+
+    /**
+     * Return a Client Characteristic Config handler that (un)subscribes
+     * devices to the characteristic.
+     */
+    public DescriptorHandler createClientConfigHandler(UUID characteristic) {
+        return new ClientConfigHandler(mSubscriptions, characteristic, mMetrics, mClientConfigListener);
+    }
+
+    private final ClientConfigHandler.Listener mClientConfigListener = new ClientConfigHandler.Listener() {
+        @Override
+        public void onClientConfigWritten(String device, UUID characteristic, int flags) {
+            SubscriptionStore store = mSubscriptionStore;
+            GattServerPort port = mPort;
+            if (store != null && port != null && port.isBonded(device)) {
+                store.setSubscription(DeviceSession.parseMac(device), characteristic, flags);
+            }
+        }
+    };
+
+    /**
+     * Route all output to the port, e.g. after the GATT server was opened.
+     */
+    public void attach(GattServerPort port) {
+        mPort = port;
+    }
+
+    /**
+     * Stop using the port and forget all connections, e.g. after the GATT
+     * server was closed and no more disconnect callbacks will arrive.
+     */
+    public void detach() {
+        mPort = null;
+        for (DeviceSession session : mSessions.clear()) {
+            closeSession(session);
+        }
+    }
+
+    /**
+     * Number of devices that connected and did not disconnect yet.
+     */
+    public int getConnectedDeviceCount() {
+        return mConnectedCount.get();
+    }
+
+    /**
+     * Return the session of the device, or null if it is not connected.
+     */
+    public DeviceSession getSession(String device) {
+        return mSessions.get(DeviceSession.parseMac(device));
+    }
+
+    /**
+     * Return the sessions of all devices, including those that only sent
+     * requests without a connect callback.
+     */
+    public List<DeviceSession> getSessions() {
+        return mSessions.getSessions();
+    }
+
+    /**
+     * Return the ATT_MTU negotiated with the device.
+     */
+    public int getMtu(String device) {
+        DeviceSession session = getSession(device);
+        return session == null ? DEFAULT_MTU : session.getMtu();
+    }
+
+    /**
+     * Queue the value for every device subscribed to the characteristic.
+     */
+    public void notifySubscribers(UUID characteristic, byte[] value) {
+        List<SubscriptionRegistry.Subscriber<String>> subscribers = mSubscriptions.getSubscribers(characteristic);
+        if (subscribers.isEmpty()) {
+            mEventLog.log(EventLog.INFO, "No subscribers registered for", characteristic);
+            return;
+        }
+        mEventLog.log(EventLog.INFO, "Sending update of", characteristic, subscribers.size());
+        for (SubscriptionRegistry.Subscriber<String> subscriber : subscribers) {
+            mNotificationEngine.enqueue(subscriber.device, characteristic, value, subscriber.isIndication());
+        }
+    }
+
+    public void onConnectionStateChange(String device, int status, int newState) {
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            mEventLog.log(EventLog.INFO, "BluetoothDevice CONNECTED:", device);
+            announce(openSession(device));
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            mEventLog.log(EventLog.INFO, "BluetoothDevice DISCONNECTED:", device);
+            DeviceSession session = mSessions.remove(DeviceSession.parseMac(device));
+            if (session != null) {
+                closeSession(session);
+            }
+        }
+    }
+
+    public void onPhyUpdate(String device, int txPhy, int rxPhy, int status) {
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            mEventLog.log(EventLog.WARN, "PHY update failed:", device, status);
+            return;
+        }
+        mEventLog.log(EventLog.INFO, "TX PHY changed:", device, txPhy);
+        openSession(device).setPhy(txPhy, rxPhy);
+    }
+
+    public void onNotificationSent(String device, int status) {
+        mNotificationEngine.onNotificationSent(device, status);
+    }
+
+    public void onMtuChanged(String device, int mtu) {
+        mEventLog.log(EventLog.INFO, "MTU changed:", device, mtu);
+        openSession(device).setMtu(Math.max(DEFAULT_MTU, Math.min(MAX_MTU, mtu)));
+    }
+
+    public void onCharacteristicReadRequest(String device, int requestId, int offset, UUID characteristic) {
+        long startNanos = System.nanoTime();
+        DeviceSession session = beginRequest(device);
+        try {
+            readCharacteristic(session, startNanos, requestId, offset, characteristic);
+        } finally {
+            session.endRequest();
+        }
+    }
+
+    private void readCharacteristic(DeviceSession session, long startNanos, int requestId, int offset,
+                                    UUID characteristic) {
+        String device = session.getAddress();
+        mMetrics.increment(characteristic, device, GattMetrics.READS);
+        CharacteristicHandler handler = mHandlerRegistry.getCharacteristicHandler(characteristic);
+        if (handler == null) {
+            // Invalid characteristic
+            mEventLog.log(EventLog.WARN, "Invalid Characteristic Read:", characteristic);
+            sendResponse(device, characteristic, startNanos, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+            return;
+        }
+        int maxLength = session.getMtu() - 1;
+        ReadPayload payload = null;
+        if (offset > 0) {
+            synchronized (session) {
+                if (characteristic.equals(session.longReadCharacteristic)) {
+                    payload = session.longRead;
+                }
+            }
+        }
+        if (payload == null) {
+            byte[] value = handler.onRead(device);
+            if (value == null) {
+                mEventLog.log(EventLog.WARN, "Invalid Characteristic Read:", characteristic);
+                sendResponse(device, characteristic, startNanos, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+                return;
+            }
+            if (offset == 0 && value.length <= maxLength) {
+                // the common case, fits into one response
+                mEventLog.log(EventLog.INFO, "Read Characteristic:", characteristic);
+                sendResponse(device, characteristic, startNanos, requestId, BluetoothGatt.GATT_SUCCESS, 0, value);
+                return;
+            }
+            payload = getReadPayload(characteristic, value);
+            synchronized (session) {
+                session.longReadCharacteristic = characteristic;
+                session.longRead = payload;
+            }
+        }
+        byte[] slice = payload.slice(offset, maxLength);
+        if (slice == null) {
+            mEventLog.log(EventLog.WARN, "Invalid offset for Characteristic Read:", characteristic, offset);
+            sendResponse(device, characteristic, startNanos, requestId, BluetoothGatt.GATT_INVALID_OFFSET,
+                    offset, null);
+            return;
+        }
+        mEventLog.log(EventLog.INFO, "Read Characteristic:", characteristic, offset);
+        sendResponse(device, characteristic, startNanos, requestId, BluetoothGatt.GATT_SUCCESS, offset, slice);
+    }
+
+    public void onCharacteristicWriteRequest(String device, int requestId, UUID characteristic,
+                                             boolean preparedWrite, boolean responseNeeded,
+                                             int offset, byte[] value) {
+        long startNanos = System.nanoTime();
+        DeviceSession session = beginRequest(device);
+        try {
+            writeCharacteristic(device, startNanos, requestId, characteristic, preparedWrite, responseNeeded,
+                    offset, value);
+        } finally {
+            session.endRequest();
+        }
+    }
+
+    private void writeCharacteristic(String device, long startNanos, int requestId, UUID characteristic,
+                                     boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+        mMetrics.increment(characteristic, device, GattMetrics.WRITES);
+        CharacteristicHandler handler = mHandlerRegistry.getCharacteristicHandler(characteristic);
+        if (value == null) value = EMPTY;
+        int status;
+        if (handler == null) {
+            mEventLog.log(EventLog.WARN, "Invalid Characteristic Write:", characteristic);
+            status = BluetoothGatt.GATT_FAILURE;
+        } else if (preparedWrite) {
+            mEventLog.log(EventLog.INFO, "Prepare Write Characteristic:", characteristic, offset);
+            status = mPreparedWrites.prepare(device, characteristic, null, offset, value);
+        } else if (offset != 0) {
+            status = BluetoothGatt.GATT_INVALID_OFFSET;
+        } else {
+            mEventLog.log(EventLog.INFO, "Write Characteristic:", characteristic, value);
+            status = handler.onWrite(device, value);
+        }
+        if (responseNeeded) {
+            // a Prepare Write Response echoes the segment
+            sendResponse(device, characteristic, startNanos, requestId, status, offset,
+                    status == BluetoothGatt.GATT_SUCCESS ? value : null);
+        }
+    }
+
+    public void onDescriptorReadRequest(String device, int requestId, int offset,
+                                        UUID characteristic, UUID descriptor) {
+        long startNanos = System.nanoTime();
+        DeviceSession session = beginRequest(device);
+        try {
+            readDescriptor(session, startNanos, requestId, offset, characteristic, descriptor);
+        } finally {
+            session.endRequest();
+        }
+    }
+
+    private void readDescriptor(DeviceSession session, long startNanos, int requestId, int offset,
+                                UUID characteristic, UUID descriptor) {
+        String device = session.getAddress();
+        mEventLog.log(EventLog.DEBUG, "onDescriptorReadRequest UUID:", descriptor, offset);
+        DescriptorHandler handler = mHandlerRegistry.getDescriptorHandler(characteristic, descriptor);
+        byte[] value = handler == null ? null : handler.onRead(device);
+        if (value != null) {
+            int maxLength = session.getMtu() - 1;
+            if (offset == 0 && value.length <= maxLength) {
+                sendResponse(device, characteristic, startNanos, requestId, BluetoothGatt.GATT_SUCCESS, 0, value);
+                return;
+            }
+            byte[] slice = new ReadPayload(value).slice(offset, maxLength);
+            sendResponse(device, characteristic, startNanos, requestId,
+                    slice != null ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_INVALID_OFFSET, offset, slice);
+        } else {
+            mEventLog.log(EventLog.WARN, "Unknown descriptor read request");
+            sendResponse(device, characteristic, startNanos, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+        }
+    }
+
+    public void onDescriptorWriteRequest(String device, int requestId, UUID characteristic, UUID descriptor,
+                                         boolean preparedWrite, boolean responseNeeded,
+                                         int offset, byte[] value) {
+        long startNanos = System.nanoTime();
+        DeviceSession session = beginRequest(device);
+        try {
+            writeDescriptor(device, startNanos, requestId, characteristic, descriptor, preparedWrite,
+                    responseNeeded, offset, value);
+        } finally {
+            session.endRequest();
+        }
+    }
+
+    private void writeDescriptor(String device, long startNanos, int requestId, UUID characteristic,
+                                 UUID descriptor, boolean preparedWrite, boolean responseNeeded,
+                                 int offset, byte[] value) {
+        DescriptorHandler handler = mHandlerRegistry.getDescriptorHandler(characteristic, descriptor);
+        if (value == null) value = EMPTY;
+        int status;
+        if (handler == null) {
+            mEventLog.log(EventLog.WARN, "Unknown descriptor write request");
+            status = BluetoothGatt.GATT_FAILURE;
+        } else if (preparedWrite) {
+            mEventLog.log(EventLog.DEBUG, "Prepare descriptor write:", descriptor, offset);
+            status = mPreparedWrites.prepare(device, characteristic, descriptor, offset, value);
+        } else if (offset != 0) {
+            status = BluetoothGatt.GATT_INVALID_OFFSET;
+        } else {
+            mEventLog.log(EventLog.DEBUG, "Descriptor write:", characteristic, value);
+            status = handler.onWrite(device, value);
+        }
+        if (responseNeeded) {
+            sendResponse(device, characteristic, startNanos, requestId, status, offset,
+                    preparedWrite && status == BluetoothGatt.GATT_SUCCESS ? value : null);
+        }
+    }
+
+    /**
+     * Write all values the device prepared, or drop them if execute is false.
+     *
+     * The queue is written as a whole or not at all: every queued attribute
+     * must still have a handler and every handler must accept its value in
+     * {@link CharacteristicHandler#validateWrite}, otherwise nothing is
+     * written and the first error is returned to the client. The values are
+     * then written in the order they were prepared.
+     */
+    public void onExecuteWrite(String device, int requestId, boolean execute) {
+        long startNanos = System.nanoTime();
+        DeviceSession session = beginRequest(device);
+        List<PreparedWriteQueue.Entry> entries = mPreparedWrites.take(device);
+        int status = BluetoothGatt.GATT_SUCCESS;
+        try {
+            if (entries != null) {
+                try {
+                    if (execute) {
+                        status = executeWrites(device, entries);
+                    } else {
+                        mEventLog.log(EventLog.INFO, "Prepared writes cancelled:", device, entries.size());
+                    }
+                } finally {
+                    mPreparedWrites.release(entries);
+                }
+            }
+            sendResponse(device, null, startNanos, requestId, status, 0, null);
+        } finally {
+            session.endRequest();
+        }
+    }
+
+    private int executeWrites(String device, List<PreparedWriteQueue.Entry> entries) {
+        for (PreparedWriteQueue.Entry entry : entries) {
+            int status;
+            if (entry.descriptor == null) {
+                CharacteristicHandler handler = mHandlerRegistry.getCharacteristicHandler(entry.characteristic);
+                status = handler == null ? BluetoothGatt.GATT_FAILURE
+                        : handler.validateWrite(device, entry.getValue());
+            } else {
+                DescriptorHandler handler = mHandlerRegistry.getDescriptorHandler(entry.characteristic,
+                        entry.descriptor);
+                status = handler == null ? BluetoothGatt.GATT_FAILURE
+                        : handler.validateWrite(device, entry.getValue());
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                mEventLog.log(EventLog.WARN, "Execute Write rejected:", entry.characteristic, status);
+                return status;
+            }
+        }
+        for (PreparedWriteQueue.Entry entry : entries) {
+            byte[] value = entry.getValue();
+            int status;
+            if (entry.descriptor == null) {
+                mEventLog.log(EventLog.INFO, "Execute Write Characteristic:", entry.characteristic, value);
+                status = mHandlerRegistry.getCharacteristicHandler(entry.characteristic).onWrite(device, value);
+            } else {
+                mEventLog.log(EventLog.DEBUG, "Execute descriptor write:", entry.descriptor, value);
+                status = mHandlerRegistry.getDescriptorHandler(entry.characteristic, entry.descriptor)
+                        .onWrite(device, value);
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                // the handler accepted the value in validateWrite
+                mEventLog.log(EventLog.WARN, "Execute Write failed after validation:", entry.characteristic, status);
+                return status;
+            }
+        }
+        return BluetoothGatt.GATT_SUCCESS;
+    }
+
+    private DeviceSession beginRequest(String device) {
+        DeviceSession session = openSession(device);
+        session.beginRequest(mClock.millis());
+        return session;
+    }
+
+    /**
+     * Return the session of the device, opening one if needed. Requests and
+     * MTU or PHY callbacks can arrive before the connect callback, e.g. from
+     * a bonded device, or just after the disconnect callback; their session
+     * is only announced once the device connects, and is dropped when it
+     * stays idle.
+     */
+    private DeviceSession openSession(String device) {
+        long mac = DeviceSession.parseMac(device);
+        DeviceSession session = mSessions.get(mac);
+        if (session != null) return session;
+        DeviceSession evicted = null;
+        synchronized (mSessions) {
+            session = mSessions.get(mac);
+            if (session != null) return session;
+            if (mSessions.isFull()) {
+                evicted = mSessions.getLeastRecentlyActive();
+                mSessions.remove(evicted.getMac());
+            }
+            session = new DeviceSession(device, mac, mClock.millis());
+            mSessions.put(session);
+        }
+        if (evicted != null) {
+            mEventLog.log(EventLog.WARN, "Session table full, disconnecting", evicted.getAddress());
+            disconnect(evicted);
+        }
+        scheduleIdleCheck(session, mIdleTimeoutMillis);
+        return session;
+    }
+
+    /**
+     * Restore the subscriptions of a connected device and tell the listener,
+     * once per session.
+     */
+    private void announce(DeviceSession session) {
+        synchronized (session) {
+            if (session.connected) return;
+            session.connected = true;
+        }
+        mConnectedCount.incrementAndGet();
+        restoreSubscriptions(session);
+        notifyListener(session.getAddress(), true);
+    }
+
+    /**
+     * Subscribe a bonded device again to what it subscribed to before, and
+     * forget the stored subscriptions of a device that is no longer bonded.
+     */
+    private void restoreSubscriptions(DeviceSession session) {
+        SubscriptionStore store = mSubscriptionStore;
+        GattServerPort port = mPort;
+        if (store == null || port == null) return;
+        String device = session.getAddress();
+        if (!port.isBonded(device)) {
+            store.removeDevice(session.getMac());
+            return;
+        }
+        int restored = store.restore(session.getMac(), device, mSubscriptions);
+        if (restored > 0) {
+            mEventLog.log(EventLog.INFO, "Subscriptions restored:", device, restored);
+        }
+    }
+
+    /**
+     * Drop all state of a session that was removed from the table.
+     */
+    private void closeSession(DeviceSession session) {
+        String device = session.getAddress();
+        boolean connected;
+        synchronized (session) {
+            connected = session.connected;
+            session.connected = false;
+            if (session.idleTimer != null) {
+                session.idleTimer.cancel();
+                session.idleTimer = null;
+            }
+            session.longRead = null;
+        }
+        //Remove device from any active subscriptions
+        mSubscriptions.removeDevice(device);
+        mNotificationEngine.removeDevice(device);
+        mPreparedWrites.removeDevice(device);
+        mMetrics.removeDevice(device);
+        if (connected) {
+            mConnectedCount.decrementAndGet();
+            notifyListener(device, false);
+        }
+    }
+
+    private void disconnect(DeviceSession session) {
+        closeSession(session);
+        GattServerPort port = mPort;
+        if (port != null) {
+            port.cancelConnection(session.getAddress());
+        }
+    }
+
+    private void notifyListener(String device, boolean connected) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onConnectionStateChanged(device, connected, mConnectedCount.get());
+        }
+    }
+
+    private void scheduleIdleCheck(final DeviceSession session, long delayMillis) {
+        Scheduler scheduler = mIdleScheduler;
+        if (scheduler == null) return;
+        synchronized (session) {
+            if (session.idleTimer != null) {
+                session.idleTimer.cancel();
+            }
+            session.idleTimer = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    checkIdle(session);
+                }
+            }, delayMillis);
+        }
+    }
+
+    /**
+     * Disconnect the device if it stayed idle, otherwise check again when it
+     * would be. Activity only stamps the session, so requests and
+     * notifications never touch the scheduler.
+     */
+    private void checkIdle(DeviceSession session) {
+        long timeout = mIdleTimeoutMillis;
+        synchronized (session) {
+            session.idleTimer = null;
+        }
+        if (timeout <= 0 || mSessions.get(session.getMac()) != session) return;
+        long idle = mClock.millis() - session.getLastActivityMillis();
+        if (idle < timeout || session.getInFlightRequests() > 0) {
+            scheduleIdleCheck(session, idle < timeout ? timeout - idle : timeout);
+            return;
+        }
+        if (mSessions.remove(session)) {
+            mEventLog.log(EventLog.INFO, "Disconnecting idle device:", session.getAddress(), idle);
+            disconnect(session);
+        }
+    }
+
+    private ReadPayload getReadPayload(UUID characteristic, byte[] value) {
+        ReadPayload payload = mReadPayloads.get(characteristic);
+        if (payload == null || !payload.contentEquals(value)) {
+            payload = new ReadPayload(value);
+            mReadPayloads.put(characteristic, payload);
+        }
+        return payload;
+    }
+
+    private void sendResponse(String device, UUID characteristic, long startNanos, int requestId,
+                              int status, int offset, byte[] value) {
+        GattServerPort port = mPort;
+        if (port != null) {
+            port.sendResponse(device, requestId, status, offset, value);
+            mMetrics.recordResponse(characteristic, device, status, System.nanoTime() - startNanos);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package de.androidcrypto.blegattservertime;
+
+import java.util.UUID;
+
+/**
+ * Outbound side of the GATT server as seen by {@link GattServerCore}.
+ *
+ * Devices are identified by their Bluetooth address. The Android
+ * implementation forwards to a {@link android.bluetooth.BluetoothGattServer};
+ * tests and load measurements run against an in-process fake.
+ */
+public interface GattServerPort {
+
+    /**
+     * Send the response to a read or write request.
+     *
+     * @return true if the response was handed to the stack.
+     */
+    boolean sendResponse(String device, int requestId, int status, int offset, byte[] value);
+
+    /**
+     * Send a notification or, if {@code confirm} is set, an indication.
+     * Completion is reported through {@link GattServerCore#onNotificationSent}.
+     *
+     * @return true if the stack accepted the notification.
+     */
+    boolean notifyCharacteristicChanged(String device, UUID characteristic, byte[] value, boolean confirm);
+
+    /**
+     * Return true if the device is bonded, so its subscriptions are kept
+     * across connections.
+     */
+    boolean isBonded(String device);
+
+    /**
+     * Disconnect the device, e.g. after it stayed idle too long.
+     */
+    void cancelConnection(String device);
+
+    /**
+     * Close the server, no callbacks are delivered afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,844 @@
+package de.androidcrypto.blegattservertime;
+
+import android.annotation.SuppressLint;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.AdvertiseSettings;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.FileObserver;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.core.app.NotificationCompat;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * Foreground service that owns the GATT server engine.
+ *
+ * The server, its subscriptions and the service tree live as long as this
+ * service, so rotating or leaving {@link GattServerActivity} no longer drops
+ * the connections. The activity binds as an {@link Observer} while it is
+ * visible and only renders the state. The service stops through the action
+ * of its notification.
+ *
+ * The {@link GattMetrics} are written to {@link #METRICS_FILE} in the files
+ * directory once a minute and on shutdown, and are printed by
+ * {@code adb shell dumpsys activity service GattServerService}.
+ *
+ * The Device Information values are read from {@link #ATTRIBUTES_FILE} in
+ * the files directory, see {@link AttributeValueStore} for the format. The
+ * file is reloaded whenever it is written or moved into place.
+ *
+ * If {@link #BATTERY_TRACE_FILE} is in the files directory when the service
+ * starts, the battery level is played back from it, see
+ * {@link ReplayBatteryLevelSource} for the format. The metrics log then shows
+ * how many of the samples of the recording were notified.
+ */
+public class GattServerService extends Service {
+
+    private static final String TAG = GattServerService.class.getSimpleName();
+
+    public static final String ACTION_STOP = "de.androidcrypto.blegattservertime.action.STOP";
+
+    public static final String METRICS_FILE = "gatt-metrics.json";
+    public static final String ATTRIBUTES_FILE = "attributes.conf";
+    public static final String CONFIG_FILE = "config.bin";
+    public static final String SUBSCRIPTIONS_FILE = "subscriptions.bin";
+    public static final String BATTERY_TRACE_FILE = "battery-trace.txt";
+
+    private static final String CHANNEL_ID = "gatt_server";
+    private static final int NOTIFICATION_ID = 1;
+
+    /* Best estimate of the process start, for the cold start time */
+    private static final long PROCESS_START_ELAPSED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+            ? Process.getStartElapsedRealtime() : SystemClock.elapsedRealtime();
+
+    /**
+     * Told about changes on the main thread.
+     */
+    public interface Observer {
+        /**
+         * Bluetooth, advertising or connection state changed, or the time
+         * shown should be refreshed.
+         */
+        void onStateChanged();
+
+        /**
+         * New lines are available in {@link #getLogLines()}.
+         */
+        void onLogUpdated();
+    }
+
+    public class LocalBinder extends Binder {
+        public GattServerService getService() {
+            return GattServerService.this;
+        }
+    }
+
+    /* Event log, drained on the main thread */
+    private static final int LOG_CAPACITY = 1024;
+    private static final int LOG_LINES_KEPT = 200;
+    private final EventLog mEventLog = new EventLog(LOG_CAPACITY, EventLog.DEBUG);
+    /* main thread only */
+    private final ArrayDeque<String> mLogLines = new ArrayDeque<>();
+
+    private final IBinder mBinder = new LocalBinder();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private Observer mObserver;
+
+    /* Bluetooth API */
+    private BluetoothManager mBluetoothManager;
+    private AndroidGattServerPort mGattServerPort;
+    private static final String ADVERTISING_NAME = "TimeServer2";
+    private AdvertiserPort mAdvertiserPort;
+    /* Low latency burst after start and disconnects, then low power, none at the cap */
+    private AdvertisingController mAdvertisingController;
+    private static final int MAX_CONNECTIONS = 7;
+    private static final long ADVERTISING_BURST_MILLIS = 30000;
+
+    /* Request handling, subscriptions and notifications */
+    private final GattServerCore mServerCore = new GattServerCore(mEventLog);
+    private GattProfile mProfile;
+    private BluetoothGattService[] mGattServices;
+    /* Runs all timed work: battery sampling, time notifications, metrics and registration timeouts */
+    private TimerWheel mScheduler;
+    private static final long BATTERY_SAMPLE_PERIOD_MILLIS = 5000;
+    private static final long METRICS_FLUSH_PERIOD_MILLIS = 60000;
+    /* Disconnect centrals that stay silent this long, their sessions are dropped */
+    private static final long IDLE_TIMEOUT_MILLIS = 10 * 60000;
+    /* Current Time notifications on wall clock boundaries, one of the TimeNotificationScheduler periods */
+    private static final long TIME_NOTIFICATION_PERIOD_MILLIS = TimeNotificationScheduler.PERIOD_10S;
+    private TimeNotificationScheduler mTimeNotifications;
+    /* Reference Time Update Service, the reference is the network disciplined system clock */
+    private ReferenceTimeUpdate mReferenceTimeUpdate;
+    /* Minute shown by the observer, refreshed when it changes */
+    private long mShownMinute;
+    /* Number of times the services became ready, to tell cold start and restarts apart */
+    private int mServerStarts;
+    private long mServerStartElapsed;
+    private volatile long mTimeToServingMillis = -1;
+
+    /* State shown by the observer */
+    private volatile boolean mBluetoothEnabled;
+    private volatile boolean mServing;
+
+    /* Serve the level of the device battery instead of simulated values */
+    private static final boolean USE_DEVICE_BATTERY = false;
+    private BatteryMonitor mBatteryMonitor;
+    /* Level changes served by the Battery Level History characteristic */
+    private final BatteryHistory mBatteryHistory = new BatteryHistory();
+
+    /* Values written by clients, kept across restarts; null if it could not be opened */
+    private ConfigStore mConfigStore;
+    /* Subscriptions of bonded devices, kept across restarts */
+    private SubscriptionStore mSubscriptionStore;
+
+    /* Per unit Device Information values */
+    private final AttributeValueStore mAttributeValues =
+            new AttributeValueStore(BasicProfile.getDefaultValues());
+    private FileObserver mAttributesObserver;
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mEventLog.setDrainRequest(mLogDrainRequest);
+        startForeground(NOTIFICATION_ID, createNotification());
+
+        // 1 ms ticks keep the time notifications close to their boundaries
+        mScheduler = new TimerWheel("gatt-scheduler", mEventLog, TimerWheel.SYSTEM_CLOCK, 1, 1024);
+        mScheduler.start();
+        mBatteryMonitor = new BatteryMonitor(createBatteryLevelSource());
+        openConfigStore();
+        GattProfile.Builder profile = GattProfile.builder();
+        loadAttributeValues();
+        BasicProfile.addService(profile, mAttributeValues);
+        TimeProfile.addService(profile);
+        TimeProfile.addNextDstChangeService(profile);
+        mReferenceTimeUpdate = new ReferenceTimeUpdate(mScheduler, mReferenceUpdater);
+        TimeProfile.addReferenceTimeUpdateService(profile, mReferenceTimeUpdate);
+        BatteryProfile.addService(profile, mBatteryState, mBatteryHistory);
+        mProfile = profile.build();
+        mProfile.install(mServerCore);
+        mServerCore.setListener(mConnectionListener);
+        mServerCore.setIdleTimeout(mScheduler, TimerWheel.SYSTEM_CLOCK, IDLE_TIMEOUT_MILLIS);
+        // a lost onNotificationSent must not stall a device until its next value
+        mServerCore.getNotificationEngine().setScheduler(mScheduler);
+        mServerCore.getMetrics().setPayloadCache(TimeProfile.getPayloadCache());
+        loadSubscriptions();
+        // FileObserver reports names relative to the watched directory
+        mAttributesObserver = new FileObserver(getFilesDir().getPath(),
+                FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (ATTRIBUTES_FILE.equals(path)) {
+                    loadAttributeValues();
+                }
+            }
+        };
+        mAttributesObserver.startWatching();
+
+        mBluetoothManager = (BluetoothManager) getSystemService(BLUETOOTH_SERVICE);
+        BluetoothAdapter bluetoothAdapter = mBluetoothManager.getAdapter();
+        if (bluetoothAdapter == null) {
+            mEventLog.log(EventLog.WARN, "Bluetooth is not supported");
+            stopSelf();
+            return;
+        }
+        // fails here rather than at runtime if the services outgrow the advertisement
+        AdvertisementPayload payload = AdvertisementPayload.compile(ADVERTISING_NAME, mProfile.getServiceUuids());
+        mEventLog.log(EventLog.DEBUG, "Advertising data bytes:", payload.getAdvertisingData().length);
+        if (payload.hasScanResponse()) {
+            mEventLog.log(EventLog.DEBUG, "Scan response bytes:", payload.getScanResponseData().length);
+        }
+        if (payload.isNameShortened()) {
+            mEventLog.log(EventLog.WARN, "Advertising name shortened:", payload.getName());
+        }
+        mAdvertiserPort = new AndroidAdvertiserPort(bluetoothAdapter, payload);
+        mAdvertisingController = new AdvertisingController(mAdvertiserPort, mScheduler, TimerWheel.SYSTEM_CLOCK,
+                mEventLog, MAX_CONNECTIONS, ADVERTISING_BURST_MILLIS, AdvertiseSettings.ADVERTISE_TX_POWER_HIGH);
+        mAdvertisingController.setListener(mAdvertisingListener);
+
+        // Register for system Bluetooth events
+        registerReceiver(mBluetoothReceiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
+        // Register for system clock events, also while no activity is shown
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_TIME_CHANGED);
+        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        registerReceiver(mTimeReceiver, filter);
+
+        if (!bluetoothAdapter.isEnabled()) {
+            mEventLog.log(EventLog.DEBUG, "Bluetooth is currently disabled...enabling");
+            bluetoothAdapter.enable();
+        } else {
+            mEventLog.log(EventLog.DEBUG, "Bluetooth enabled...starting services");
+            mBluetoothEnabled = true;
+            startServer();
+        }
+
+        /**
+         * The battery level is sampled every 5 seconds, subscribed devices are
+         * notified when the level changed or crossed the warn level
+         */
+        mScheduler.scheduleAtFixedRate(batterySampleRunnable, 0, BATTERY_SAMPLE_PERIOD_MILLIS);
+        mScheduler.scheduleAtFixedRate(mMetricsFlushRunnable, METRICS_FLUSH_PERIOD_MILLIS,
+                METRICS_FLUSH_PERIOD_MILLIS);
+        mTimeNotifications = new TimeNotificationScheduler(mScheduler, ANDROID_TIME_SOURCE, mTimeNotificationSink);
+        mTimeNotifications.start(TIME_NOTIFICATION_PERIOD_MILLIS);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            mEventLog.log(EventLog.INFO, "Stop requested");
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mEventLog.log(EventLog.INFO, "onDestroy");
+        if (mAdvertiserPort != null) {
+            unregisterReceiver(mBluetoothReceiver);
+            unregisterReceiver(mTimeReceiver);
+            // stopped first, the disconnects of the closing server must not restart it
+            stopAdvertising();
+            stopServer();
+        }
+        mAttributesObserver.stopWatching();
+        // cancels every timer, nothing runs against the closed server
+        mScheduler.shutdown();
+        closeConfigStore();
+        mSubscriptionStore.flush();
+        writeMetrics();
+        mEventLog.setDrainRequest(null);
+        mMainHandler.removeCallbacksAndMessages(null);
+        mObserver = null;
+    }
+
+    /**
+     * Set the observer, or null to remove it. Must be called on the main
+     * thread; the observer is told the current state right away.
+     */
+    public void setObserver(Observer observer) {
+        mObserver = observer;
+        if (observer != null) {
+            observer.onStateChanged();
+            observer.onLogUpdated();
+        }
+    }
+
+    /**
+     * The newest log lines first. Main thread only.
+     */
+    public Iterable<String> getLogLines() {
+        return mLogLines;
+    }
+
+    public EventLog getEventLog() {
+        return mEventLog;
+    }
+
+    public boolean isBluetoothEnabled() {
+        return mBluetoothEnabled;
+    }
+
+    public boolean isAdvertising() {
+        AdvertisingController controller = mAdvertisingController;
+        return controller != null && controller.isAdvertising();
+    }
+
+    /**
+     * Return true once all services are registered.
+     */
+    public boolean isServing() {
+        return mServing;
+    }
+
+    public int getConnectedDeviceCount() {
+        return mServerCore.getConnectedDeviceCount();
+    }
+
+    /**
+     * Time from the process start, or from the last server restart after
+     * Bluetooth was turned on, until the services were ready; -1 if not yet.
+     */
+    public long getTimeToServingMillis() {
+        return mTimeToServingMillis;
+    }
+
+    private Notification createNotification() {
+        NotificationManager notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            notificationManager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.server_channel_name), NotificationManager.IMPORTANCE_LOW));
+        }
+        int flags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0;
+        PendingIntent openIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, GattServerActivity.class), flags);
+        PendingIntent stopIntent = PendingIntent.getService(this, 0,
+                new Intent(this, GattServerService.class).setAction(ACTION_STOP), flags);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.server_notification_title))
+                .setContentText(ADVERTISING_NAME)
+                .setContentIntent(openIntent)
+                .addAction(0, getString(R.string.server_notification_stop), stopIntent)
+                .setOngoing(true)
+                .build();
+    }
+
+    private static final TimeNotificationScheduler.TimeSource ANDROID_TIME_SOURCE =
+            new TimeNotificationScheduler.TimeSource() {
+                @Override
+                public long elapsedRealtimeNanos() {
+                    return SystemClock.elapsedRealtimeNanos();
+                }
+
+                @Override
+                public long currentTimeMillis() {
+                    return System.currentTimeMillis();
+                }
+            };
+
+    /**
+     * Notify the time subscribers on every boundary, replaces ACTION_TIME_TICK.
+     */
+    private final TimeNotificationScheduler.Sink mTimeNotificationSink = new TimeNotificationScheduler.Sink() {
+        @Override
+        public boolean onTimeNotification(long timestamp) {
+            long minute = timestamp / 60000;
+            if (minute != mShownMinute) {
+                mShownMinute = minute;
+                postStateChanged();
+            }
+            if (mServerCore.getSubscriptions().getSubscribers(TimeProfile.CURRENT_TIME).isEmpty()) {
+                return false;
+            }
+            notifyRegisteredDevices(timestamp, TimeProfile.ADJUST_NONE);
+            return true;
+        }
+    };
+
+    private final Runnable mMetricsFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            NotificationEngine<String> notificationEngine = mServerCore.getNotificationEngine();
+            mEventLog.log(EventLog.DEBUG, "Notification queue depth:", notificationEngine.getQueueDepth());
+            mEventLog.log(EventLog.DEBUG, "Notifications dropped:", notificationEngine.getDroppedCount());
+            mEventLog.log(EventLog.DEBUG, "Notification average latency (us):",
+                    notificationEngine.getAverageLatencyNanos() / 1000);
+            mEventLog.log(EventLog.DEBUG, "Battery samples:", mBatteryMonitor.getSampleCount());
+            mEventLog.log(EventLog.DEBUG, "Battery notifications:", mBatteryMonitor.getNotificationCount());
+            LatencyHistogram responseLatency = mServerCore.getMetrics().getTotal().getResponseLatency();
+            mEventLog.log(EventLog.DEBUG, "Response latency p99 (us):",
+                    responseLatency.getValueAtQuantile(0.99) / 1000);
+            TimePayloadCache payloadCache = TimeProfile.getPayloadCache();
+            mEventLog.log(EventLog.DEBUG, "Time payload cache hits:", payloadCache.getHitCount());
+            mEventLog.log(EventLog.DEBUG, "Time payload cache misses:", payloadCache.getMissCount());
+            mEventLog.log(EventLog.DEBUG, "Time payload cache hit ratio (%):",
+                    Math.round(payloadCache.getHitRatio() * 100));
+            LatencyHistogram lateness = mTimeNotifications.getLateness();
+            mEventLog.log(EventLog.DEBUG, "Time notification lateness p99 (us):",
+                    lateness.getValueAtQuantile(0.99) / 1000);
+            LatencyHistogram encodingError = mTimeNotifications.getEncodingError();
+            mEventLog.log(EventLog.DEBUG, "Time notification error p99 (us):",
+                    encodingError.getValueAtQuantile(0.99) / 1000);
+            mEventLog.log(EventLog.DEBUG, "Wall clock drift at last anchor (us):",
+                    mTimeNotifications.getLastDriftNanos() / 1000);
+            if (mAdvertisingController != null) {
+                LatencyHistogram firstConnection = mAdvertisingController.getTimeToFirstConnection();
+                mEventLog.log(EventLog.DEBUG, "Time to first connection p50 (ms):",
+                        firstConnection.getValueAtQuantile(0.5) / 1000000L);
+                mEventLog.log(EventLog.DEBUG, "First connections during burst:",
+                        mAdvertisingController.getConnectionsInBurst());
+                mEventLog.log(EventLog.DEBUG, "First connections after burst:",
+                        mAdvertisingController.getConnectionsAfterBurst());
+            }
+            writeMetrics();
+        }
+    };
+
+    /**
+     * Load the attributes file if there is one. Reads keep being served from
+     * the previous values while it is parsed, and if it is invalid.
+     */
+    private void loadAttributeValues() {
+        File file = new File(getFilesDir(), ATTRIBUTES_FILE);
+        if (!file.exists()) return;
+        try {
+            Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            try {
+                mAttributeValues.load(reader);
+            } finally {
+                reader.close();
+            }
+            mEventLog.log(EventLog.INFO, "Attribute values loaded, version:", mAttributeValues.getVersion());
+        } catch (IOException e) {
+            mEventLog.log(EventLog.WARN, "Unable to load attribute values:", e);
+        }
+    }
+
+    /**
+     * Open the config store and apply the values clients wrote before the
+     * restart. The server runs with the defaults if the store can not be
+     * opened.
+     */
+    private void openConfigStore() {
+        try {
+            mConfigStore = ConfigStore.open(new File(getFilesDir(), CONFIG_FILE), mScheduler);
+        } catch (IOException e) {
+            mEventLog.log(EventLog.WARN, "Unable to open config store:", e);
+            return;
+        }
+        if (mConfigStore.getDroppedSlots() > 0) {
+            mEventLog.log(EventLog.WARN, "Config values dropped:", mConfigStore.getDroppedSlots());
+        }
+        byte[] warn = mConfigStore.get(BatteryProfile.BATTERY_LEVEL_WARN);
+        if (warn != null) {
+            mBatteryMonitor.setBatteryLevelWarn(warn[0] & 0xff);
+            mEventLog.log(EventLog.DEBUG, "Battery warn level restored:", warn[0] & 0xff);
+        }
+    }
+
+    /**
+     * Load the subscriptions bonded devices had before the restart; they are
+     * restored when a device connects. A file that does not load is
+     * replaced with the next change, bonded clients then subscribe again.
+     */
+    private void loadSubscriptions() {
+        mSubscriptionStore = new SubscriptionStore(new File(getFilesDir(), SUBSCRIPTIONS_FILE), mScheduler,
+                SubscriptionStore.DEFAULT_SAVE_DELAY_MILLIS, mEventLog);
+        try {
+            mSubscriptionStore.load();
+            mEventLog.log(EventLog.DEBUG, "Bonded devices with subscriptions:",
+                    mSubscriptionStore.getDeviceCount());
+        } catch (IOException e) {
+            mEventLog.log(EventLog.WARN, "Unable to load subscriptions:", e);
+        }
+        mServerCore.setSubscriptionStore(mSubscriptionStore);
+    }
+
+    /**
+     * Write the pending config values to disk, after the scheduler stopped.
+     */
+    private void closeConfigStore() {
+        if (mConfigStore == null) return;
+        try {
+            mConfigStore.close();
+        } catch (IOException e) {
+            mEventLog.log(EventLog.WARN, "Unable to close config store:", e);
+        }
+    }
+
+    /**
+     * Replace the metrics file with a snapshot, through a temporary file so
+     * a reader never sees a partial one.
+     */
+    private void writeMetrics() {
+        File file = new File(getFilesDir(), METRICS_FILE);
+        File temp = new File(getFilesDir(), METRICS_FILE + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            try {
+                mServerCore.getMetrics().writeJson(writer, true);
+                writer.write('\n');
+            } finally {
+                writer.close();
+            }
+            if (!temp.renameTo(file)) {
+                mEventLog.log(EventLog.WARN, "Unable to replace", file);
+            }
+        } catch (IOException e) {
+            mEventLog.log(EventLog.WARN, "Unable to write metrics:", e);
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        try {
+            mServerCore.getMetrics().writeJson(writer);
+        } catch (IOException e) {
+            // PrintWriter does not throw
+        }
+        writer.println();
+    }
+
+    /**
+     * The battery monitor, with the warn level written by a client persisted
+     * in the config store. Runs on the GATT callback thread, the write only
+     * touches the mapped file.
+     */
+    private final BatteryProfile.BatteryState mBatteryState = new BatteryProfile.BatteryState() {
+        @Override
+        public int getBatteryLevel() {
+            return mBatteryMonitor.getBatteryLevel();
+        }
+
+        @Override
+        public int getBatteryLevelWarn() {
+            return mBatteryMonitor.getBatteryLevelWarn();
+        }
+
+        @Override
+        public void setBatteryLevelWarn(int value) {
+            mBatteryMonitor.setBatteryLevelWarn(value);
+            ConfigStore store = mConfigStore;
+            if (store != null && !store.put(BatteryProfile.BATTERY_LEVEL_WARN, new byte[]{(byte) value})) {
+                mEventLog.log(EventLog.WARN, "Config store full");
+            }
+        }
+    };
+
+    Runnable batterySampleRunnable = new Runnable() {
+        public void run() {
+            boolean notify = mBatteryMonitor.sample();
+            mBatteryHistory.record(System.currentTimeMillis(), mBatteryMonitor.getBatteryLevel());
+            if (notify) {
+                if (mBatteryMonitor.isLow()) {
+                    mEventLog.log(EventLog.WARN, "Battery level at or below warn level:",
+                            mBatteryMonitor.getBatteryLevel());
+                }
+                notifyRegisteredDevicesBattery(mBatteryMonitor.getBatteryLevel());
+            }
+        }
+    };
+
+    private BatteryLevelSource createBatteryLevelSource() {
+        File trace = new File(getFilesDir(), BATTERY_TRACE_FILE);
+        if (trace.exists()) {
+            try {
+                Reader reader = new InputStreamReader(new FileInputStream(trace), "UTF-8");
+                try {
+                    ReplayBatteryLevelSource source = ReplayBatteryLevelSource.read(reader);
+                    mEventLog.log(EventLog.INFO, "Replaying battery levels from", trace);
+                    return source;
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                mEventLog.log(EventLog.WARN, "Unable to load battery trace:", e);
+            }
+        }
+        if (USE_DEVICE_BATTERY) {
+            return new AndroidBatteryLevelSource((BatteryManager) getSystemService(Context.BATTERY_SERVICE));
+        }
+        // a slow random walk, about one change per minute at a 5 second sample rate
+        return new SimulatedBatteryLevelSource(System.nanoTime(), 40, 3, 0.1);
+    }
+
+    /**
+     * Called by the event log from any thread when new events are available.
+     */
+    private final Runnable mLogDrainRequest = new Runnable() {
+        @Override
+        public void run() {
+            mMainHandler.post(mDrainLog);
+        }
+    };
+
+    /**
+     * Drain the event log into logcat and the kept lines, also while no
+     * observer is bound.
+     */
+    private final Runnable mDrainLog = new Runnable() {
+        @Override
+        public void run() {
+            if (mEventLog.drain(mLogSink) > 0 && mObserver != null) {
+                mObserver.onLogUpdated();
+            }
+        }
+    };
+
+    private final EventLog.Sink mLogSink = new EventLog.Sink() {
+        @Override
+        public void onEvent(long timeMillis, int level, CharSequence text) {
+            String line = text.toString();
+            Log.println(level, TAG, line);
+            mLogLines.addFirst(line);
+            if (mLogLines.size() > LOG_LINES_KEPT) {
+                mLogLines.removeLast();
+            }
+        }
+    };
+
+    private final Runnable mNotifyStateChanged = new Runnable() {
+        @Override
+        public void run() {
+            if (mObserver != null) {
+                mObserver.onStateChanged();
+            }
+        }
+    };
+
+    private void postStateChanged() {
+        mMainHandler.post(mNotifyStateChanged);
+    }
+
+    /**
+     * Listens for system time changes and triggers a notification to
+     * Bluetooth subscribers.
+     */
+    private BroadcastReceiver mTimeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            byte adjustReason;
+            switch (intent.getAction()) {
+                case Intent.ACTION_TIME_CHANGED:
+                    TimeProfile.onTimeChanged();
+                    // the next boundary moved
+                    mTimeNotifications.onWallClockChanged();
+                    adjustReason = TimeProfile.ADJUST_MANUAL;
+                    break;
+                case Intent.ACTION_TIMEZONE_CHANGED:
+                    TimeProfile.onTimeZoneChanged();
+                    adjustReason = TimeProfile.ADJUST_TIMEZONE;
+                    break;
+                default:
+                    adjustReason = TimeProfile.ADJUST_NONE;
+                    break;
+            }
+            notifyRegisteredDevices(System.currentTimeMillis(), adjustReason);
+            postStateChanged();
+        }
+    };
+
+    /**
+     * Android keeps the system clock in sync with the network, so a reference
+     * update drops the cached time values and re-anchors the notifications
+     * to the current wall clock.
+     */
+    private final ReferenceTimeUpdate.Updater mReferenceUpdater = new ReferenceTimeUpdate.Updater() {
+        @Override
+        public byte update() {
+            mEventLog.log(EventLog.INFO, "Reference time update");
+            TimeProfile.onTimeChanged();
+            TimeNotificationScheduler timeNotifications = mTimeNotifications;
+            if (timeNotifications != null) {
+                timeNotifications.onWallClockChanged();
+            }
+            return ReferenceTimeUpdate.RESULT_SUCCESSFUL;
+        }
+    };
+
+    /**
+     * Listens for Bluetooth adapter events to enable/disable
+     * advertising and server functionality.
+     */
+    private BroadcastReceiver mBluetoothReceiver = new BroadcastReceiver() {
+        @SuppressLint("MissingPermission")
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.STATE_OFF);
+
+            switch (state) {
+                case BluetoothAdapter.STATE_ON:
+                    mEventLog.log(EventLog.INFO, "BluetoothReceiver state: STATE_ON");
+                    mBluetoothEnabled = true;
+                    // advertising starts once all services are registered
+                    startServer();
+                    break;
+                case BluetoothAdapter.STATE_OFF:
+                    mEventLog.log(EventLog.INFO, "BluetoothReceiver state: STATE_OFF");
+                    mBluetoothEnabled = false;
+                    stopAdvertising();
+                    stopServer();
+                    break;
+                default:
+                    // Do nothing
+            }
+            postStateChanged();
+        }
+    };
+
+    /**
+     * Begin advertising over Bluetooth that this device is connectable
+     * and supports the Current Time Service.
+     */
+    private void startAdvertising() {
+        mAdvertisingController.start();
+    }
+
+    /**
+     * Stop Bluetooth advertisements.
+     */
+    private void stopAdvertising() {
+        mAdvertisingController.stop();
+    }
+
+    /**
+     * Initialize the GATT server instance with the services/characteristics
+     * from the Time Profile.
+     */
+    private void startServer() {
+        mServerStartElapsed = SystemClock.elapsedRealtime();
+        mGattServerPort = AndroidGattServerPort.open(this, mBluetoothManager, mServerCore, mScheduler);
+        if (mGattServerPort == null) {
+            mEventLog.log(EventLog.WARN, "Unable to create GATT server");
+            return;
+        }
+        mServerCore.attach(mGattServerPort);
+        if (mGattServices == null) {
+            // built once, the same services are added again after a restart
+            mGattServices = AndroidGattServices.create(mProfile);
+        }
+        mGattServerPort.addServices(mRegistrationListener, mGattServices);
+    }
+
+    /**
+     * Shut down the GATT server.
+     */
+    private void stopServer() {
+        mServing = false;
+        if (mGattServerPort == null) return;
+
+        mServerCore.detach();
+        mGattServerPort.close();
+        mGattServerPort = null;
+    }
+
+    /**
+     * Starts advertising once the server is ready, so no client connects to
+     * a server with missing services.
+     */
+    private final ServiceRegistrar.Listener mRegistrationListener = new ServiceRegistrar.Listener() {
+        @Override
+        public void onServicesReady(long timeToReadyMillis, int retries) {
+            mServerStarts++;
+            long now = SystemClock.elapsedRealtime();
+            if (mServerStarts == 1) {
+                mTimeToServingMillis = now - PROCESS_START_ELAPSED;
+                mEventLog.log(EventLog.INFO, "Serving after process start, ms:", mTimeToServingMillis);
+            } else {
+                mTimeToServingMillis = now - mServerStartElapsed;
+                mEventLog.log(EventLog.INFO, "Serving after server restart, ms:", mTimeToServingMillis);
+            }
+            mEventLog.log(EventLog.DEBUG, "Service registration, ms:", timeToReadyMillis);
+            if (retries > 0) {
+                mEventLog.log(EventLog.WARN, "Service registration retries:", retries);
+            }
+            mServing = true;
+            startAdvertising();
+            postStateChanged();
+        }
+
+        @Override
+        public void onServiceRegistrationFailed(UUID service, int status) {
+            mEventLog.log(EventLog.ERROR, "Service registration failed:", service, status);
+        }
+    };
+
+    /**
+     * Reflects advertising changes in the UI.
+     */
+    private final AdvertisingController.Listener mAdvertisingListener = new AdvertisingController.Listener() {
+        @Override
+        public void onAdvertisingChanged() {
+            postStateChanged();
+        }
+    };
+
+    /**
+     * Send a time service notification to any devices that are subscribed
+     * to the characteristic.
+     */
+    private void notifyRegisteredDevices(long timestamp, byte adjustReason) {
+        mServerCore.notifySubscribers(TimeProfile.CURRENT_TIME,
+                TimeProfile.getPayloadCache().getExactTime(timestamp, adjustReason));
+    }
+
+    /**
+     * Send a battery level notification to any devices that are subscribed
+     * to the characteristic.
+     */
+    private void notifyRegisteredDevicesBattery(int batteryLevel) {
+        mServerCore.notifySubscribers(BatteryProfile.BATTERY_LEVEL, BatteryProfile.getBatteryLevel(batteryLevel));
+    }
+
+    /**
+     * Reflects the connection state of the GATT server in the UI.
+     */
+    private final GattServerCore.Listener mConnectionListener = new GattServerCore.Listener() {
+        @Override
+        public void onConnectionStateChanged(String device, boolean connected, int connectedDevices) {
+            mAdvertisingController.onConnectionStateChanged(connected, connectedDevices);
+            postStateChanged();
+        }
+    };
+}
@@ -0,0 +1,343 @@
+package de.androidcrypto.blegattservertime;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flow controlled delivery of notifications and indications.
+ *
+ * The Bluetooth stack only accepts one outstanding notification per device and
+ * reports completion through onNotificationSent. Every device therefore gets a
+ * bounded outbound queue and the next value is only handed to the stack once
+ * the previous one was reported as sent. A queued value that has not been sent
+ * yet is replaced when a newer value for the same characteristic arrives, and
+ * the oldest entry is dropped when the queue is full.
+ *
+ * A completion that never arrives would stall the device. With a scheduler
+ * set, a timeout is armed for every notification handed to the stack and
+ * the next value goes out when it fires; without one, the timeout is only
+ * noticed when the next value is queued for the device.
+ *
+ * @param <D> device identity, must implement equals and hashCode
+ */
+public class NotificationEngine<D> {
+
+    /**
+     * Hands a single notification to the Bluetooth stack.
+     */
+    public interface Sender<D> {
+        /**
+         * @return true if the stack accepted the notification, in which case
+         * {@link #onNotificationSent} will follow.
+         */
+        boolean send(D device, UUID characteristic, byte[] value, boolean confirm);
+    }
+
+    /**
+     * Told about the outcome of every value, e.g. for per-characteristic
+     * metrics. Called with the queue of the device locked, must not block.
+     */
+    public interface Observer<D> {
+        void onSent(D device, UUID characteristic);
+
+        /**
+         * Rejected by the stack, failed or timed out.
+         */
+        void onFailed(D device, UUID characteristic);
+
+        /**
+         * Dropped from a full queue or the queue of a disconnected device.
+         */
+        void onDropped(D device, UUID characteristic);
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 8;
+    /* Assume the completion got lost if it takes longer than this */
+    public static final long DEFAULT_SENT_TIMEOUT_MILLIS = 2000;
+
+    private static final int GATT_SUCCESS = 0;
+
+    private static final class Pending {
+        final UUID characteristic;
+        byte[] value;
+        final boolean confirm;
+        final long enqueuedNanos;
+        long sentNanos;
+        Scheduler.Cancellable timeout;
+
+        Pending(UUID characteristic, byte[] value, boolean confirm, long enqueuedNanos) {
+            this.characteristic = characteristic;
+            this.value = value;
+            this.confirm = confirm;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    private static final class DeviceQueue {
+        final ArrayDeque<Pending> queue = new ArrayDeque<>();
+        Pending inFlight;
+    }
+
+    private final Sender<D> mSender;
+    private final int mQueueCapacity;
+    private final long mSentTimeoutMillis;
+    private final long mSentTimeoutNanos;
+    private final ConcurrentHashMap<D, DeviceQueue> mQueues = new ConcurrentHashMap<>();
+
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicLong mEnqueued = new AtomicLong();
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+    private final AtomicLong mLatencyTotalNanos = new AtomicLong();
+    private final AtomicLong mLatencyMaxNanos = new AtomicLong();
+    private volatile Observer<D> mObserver;
+    private volatile Scheduler mScheduler;
+
+    public NotificationEngine(Sender<D> sender) {
+        this(sender, DEFAULT_QUEUE_CAPACITY, DEFAULT_SENT_TIMEOUT_MILLIS);
+    }
+
+    public NotificationEngine(Sender<D> sender, int queueCapacity, long sentTimeoutMillis) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be at least 1");
+        }
+        mSender = sender;
+        mQueueCapacity = queueCapacity;
+        mSentTimeoutMillis = sentTimeoutMillis;
+        mSentTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sentTimeoutMillis);
+    }
+
+    public void setObserver(Observer<D> observer) {
+        mObserver = observer;
+    }
+
+    /**
+     * Time out lost completions on the scheduler, null to only check when a
+     * value is queued.
+     */
+    public void setScheduler(Scheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Queue a value for the device and send it as soon as the device has no
+     * other notification outstanding.
+     */
+    public void enqueue(D device, UUID characteristic, byte[] value, boolean confirm) {
+        long now = System.nanoTime();
+        mEnqueued.incrementAndGet();
+        DeviceQueue deviceQueue = getQueue(device);
+        synchronized (deviceQueue) {
+            Pending queued = find(deviceQueue, characteristic, confirm);
+            if (queued != null) {
+                queued.value = value;
+                mCoalesced.incrementAndGet();
+            } else {
+                if (deviceQueue.queue.size() >= mQueueCapacity) {
+                    Pending dropped = deviceQueue.queue.poll();
+                    mQueueDepth.decrementAndGet();
+                    mDropped.incrementAndGet();
+                    Observer<D> observer = mObserver;
+                    if (observer != null) observer.onDropped(device, dropped.characteristic);
+                }
+                deviceQueue.queue.add(new Pending(characteristic, value, confirm, now));
+                mQueueDepth.incrementAndGet();
+            }
+            if (deviceQueue.inFlight != null && now - deviceQueue.inFlight.sentNanos > mSentTimeoutNanos) {
+                // the completion for the outstanding notification never arrived
+                Observer<D> observer = mObserver;
+                if (observer != null) observer.onFailed(device, deviceQueue.inFlight.characteristic);
+                cancelTimeout(deviceQueue.inFlight);
+                deviceQueue.inFlight = null;
+                mFailed.incrementAndGet();
+            }
+        }
+        sendNext(device, deviceQueue);
+    }
+
+    /**
+     * Must be called from onNotificationSent, completes the outstanding
+     * notification of the device and sends the next queued one.
+     */
+    public void onNotificationSent(D device, int status) {
+        DeviceQueue deviceQueue = mQueues.get(device);
+        if (deviceQueue == null) return;
+        synchronized (deviceQueue) {
+            Pending inFlight = deviceQueue.inFlight;
+            if (inFlight == null) return;
+            cancelTimeout(inFlight);
+            deviceQueue.inFlight = null;
+            Observer<D> observer = mObserver;
+            if (status == GATT_SUCCESS) {
+                mSent.incrementAndGet();
+                recordLatency(System.nanoTime() - inFlight.enqueuedNanos);
+                if (observer != null) observer.onSent(device, inFlight.characteristic);
+            } else {
+                mFailed.incrementAndGet();
+                if (observer != null) observer.onFailed(device, inFlight.characteristic);
+            }
+        }
+        sendNext(device, deviceQueue);
+    }
+
+    /**
+     * Drop everything queued for the device, e.g. after it disconnected.
+     */
+    public void removeDevice(D device) {
+        DeviceQueue deviceQueue = mQueues.remove(device);
+        if (deviceQueue == null) return;
+        synchronized (deviceQueue) {
+            int size = deviceQueue.queue.size();
+            Observer<D> observer = mObserver;
+            if (observer != null) {
+                for (Pending pending : deviceQueue.queue) {
+                    observer.onDropped(device, pending.characteristic);
+                }
+            }
+            deviceQueue.queue.clear();
+            mQueueDepth.addAndGet(-size);
+            mDropped.addAndGet(size);
+            if (deviceQueue.inFlight != null) {
+                cancelTimeout(deviceQueue.inFlight);
+                deviceQueue.inFlight = null;
+            }
+        }
+    }
+
+    /**
+     * The completion of the notification did not arrive in time, give up on
+     * it and send the next one.
+     */
+    private void onSentTimeout(D device, DeviceQueue deviceQueue, Pending pending) {
+        synchronized (deviceQueue) {
+            if (deviceQueue.inFlight != pending) return;
+            pending.timeout = null;
+            deviceQueue.inFlight = null;
+            Observer<D> observer = mObserver;
+            if (observer != null) observer.onFailed(device, pending.characteristic);
+        }
+        mFailed.incrementAndGet();
+        sendNext(device, deviceQueue);
+    }
+
+    private static void cancelTimeout(Pending pending) {
+        if (pending.timeout != null) {
+            pending.timeout.cancel();
+            pending.timeout = null;
+        }
+    }
+
+    private void sendNext(final D device, final DeviceQueue deviceQueue) {
+        Scheduler scheduler = mScheduler;
+        while (true) {
+            final Pending next;
+            synchronized (deviceQueue) {
+                if (deviceQueue.inFlight != null) return;
+                next = deviceQueue.queue.poll();
+                if (next == null) return;
+                mQueueDepth.decrementAndGet();
+                next.sentNanos = System.nanoTime();
+                deviceQueue.inFlight = next;
+                // armed before sending, the completion may arrive before send returns
+                if (scheduler != null) {
+                    next.timeout = scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            onSentTimeout(device, deviceQueue, next);
+                        }
+                    }, mSentTimeoutMillis);
+                }
+            }
+            // call the stack without holding the lock, the completion may
+            // arrive on another thread before send returns
+            if (mSender.send(device, next.characteristic, next.value, next.confirm)) {
+                return;
+            }
+            synchronized (deviceQueue) {
+                cancelTimeout(next);
+                if (deviceQueue.inFlight == next) {
+                    deviceQueue.inFlight = null;
+                }
+                Observer<D> observer = mObserver;
+                if (observer != null) observer.onFailed(device, next.characteristic);
+            }
+            mFailed.incrementAndGet();
+        }
+    }
+
+    private Pending find(DeviceQueue deviceQueue, UUID characteristic, boolean confirm) {
+        Iterator<Pending> iterator = deviceQueue.queue.iterator();
+        while (iterator.hasNext()) {
+            Pending pending = iterator.next();
+            if (pending.characteristic.equals(characteristic) && pending.confirm == confirm) {
+                return pending;
+            }
+        }
+        return null;
+    }
+
+    private DeviceQueue getQueue(D device) {
+        DeviceQueue deviceQueue = mQueues.get(device);
+        if (deviceQueue == null) {
+            DeviceQueue created = new DeviceQueue();
+            deviceQueue = mQueues.putIfAbsent(device, created);
+            if (deviceQueue == null) deviceQueue = created;
+        }
+        return deviceQueue;
+    }
+
+    private void recordLatency(long nanos) {
+        mLatencyTotalNanos.addAndGet(nanos);
+        long max;
+        do {
+            max = mLatencyMaxNanos.get();
+        } while (nanos > max && !mLatencyMaxNanos.compareAndSet(max, nanos));
+    }
+
+    /** Number of values waiting in all device queues */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    public long getEnqueuedCount() {
+        return mEnqueued.get();
+    }
+
+    /** Notifications confirmed by onNotificationSent with GATT_SUCCESS */
+    public long getSentCount() {
+        return mSent.get();
+    }
+
+    /** Notifications rejected by the stack, failed or timed out */
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    /** Values dropped because a queue was full or its device disconnected */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /** Values replaced by a newer value for the same characteristic */
+    public long getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    /** Mean time from enqueue to onNotificationSent, in nanoseconds */
+    public long getAverageLatencyNanos() {
+        long sent = mSent.get();
+        return sent == 0 ? 0 : mLatencyTotalNanos.get() / sent;
+    }
+
+    /** Longest time from enqueue to onNotificationSent, in nanoseconds */
+    public long getMaxLatencyNanos() {
+        return mLatencyMaxNanos.get();
+    }
+}
@@ -0,0 +1,184 @@
+package de.androidcrypto.blegattservertime;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reassembles Prepare Write segments per device until the client executes or
+ * cancels the queue.
+ *
+ * Every attribute a device prepares gets one buffer of the maximum value
+ * length. Buffers come from a small pool and go back to it after the queue
+ * was executed, cancelled or the device disconnected, so clients that come
+ * and go do not leave garbage or leaked buffers behind. Segments must be
+ * contiguous, a segment that would make the value longer than the limit is
+ * rejected right away.
+ */
+public class PreparedWriteQueue {
+
+    /**
+     * Largest attribute value allowed by the Core specification.
+     */
+    public static final int DEFAULT_MAX_VALUE_LENGTH = 512;
+    public static final int DEFAULT_MAX_ATTRIBUTES = 4;
+    public static final int DEFAULT_POOL_SIZE = 8;
+    /**
+     * ATT error "Prepare Queue Full", there is no BluetoothGatt constant for it.
+     */
+    public static final int GATT_PREPARE_QUEUE_FULL = 0x09;
+
+    /**
+     * The reassembled value of one attribute.
+     */
+    public static final class Entry {
+        public final UUID characteristic;
+        /**
+         * null for a characteristic value.
+         */
+        public final UUID descriptor;
+        private byte[] mBuffer;
+        private int mLength;
+
+        Entry(UUID characteristic, UUID descriptor, byte[] buffer) {
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            mBuffer = buffer;
+        }
+
+        /**
+         * Return a copy of the value, the buffer itself goes back to the pool.
+         */
+        public byte[] getValue() {
+            return Arrays.copyOf(mBuffer, mLength);
+        }
+
+        boolean matches(UUID characteristic, UUID descriptor) {
+            return this.characteristic.equals(characteristic)
+                    && (this.descriptor == null ? descriptor == null : this.descriptor.equals(descriptor));
+        }
+    }
+
+    private final int mMaxValueLength;
+    private final int mMaxAttributes;
+    private final int mPoolSize;
+    private final ArrayDeque<byte[]> mPool = new ArrayDeque<>();
+    private final ConcurrentHashMap<String, List<Entry>> mQueues = new ConcurrentHashMap<>();
+
+    public PreparedWriteQueue() {
+        this(DEFAULT_MAX_VALUE_LENGTH, DEFAULT_MAX_ATTRIBUTES, DEFAULT_POOL_SIZE);
+    }
+
+    public PreparedWriteQueue(int maxValueLength, int maxAttributes, int poolSize) {
+        mMaxValueLength = maxValueLength;
+        mMaxAttributes = maxAttributes;
+        mPoolSize = poolSize;
+    }
+
+    /**
+     * Add a segment to the queue of the device.
+     *
+     * @return GATT_SUCCESS or the ATT error to respond with
+     */
+    public int prepare(String device, UUID characteristic, UUID descriptor, int offset, byte[] value) {
+        int length = value == null ? 0 : value.length;
+        List<Entry> queue = mQueues.get(device);
+        if (queue == null) {
+            List<Entry> created = new ArrayList<>(mMaxAttributes);
+            queue = mQueues.putIfAbsent(device, created);
+            if (queue == null) queue = created;
+        }
+        synchronized (queue) {
+            Entry entry = null;
+            for (int i = 0; i < queue.size(); i++) {
+                if (queue.get(i).matches(characteristic, descriptor)) {
+                    entry = queue.get(i);
+                    break;
+                }
+            }
+            if (entry == null) {
+                if (queue.size() >= mMaxAttributes) {
+                    return GATT_PREPARE_QUEUE_FULL;
+                }
+                if (offset != 0) {
+                    return BluetoothGatt.GATT_INVALID_OFFSET;
+                }
+                entry = new Entry(characteristic, descriptor, acquire());
+                queue.add(entry);
+            }
+            if (offset != entry.mLength) {
+                return BluetoothGatt.GATT_INVALID_OFFSET;
+            }
+            if (offset + length > mMaxValueLength) {
+                return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+            }
+            if (length > 0) {
+                System.arraycopy(value, 0, entry.mBuffer, offset, length);
+            }
+            entry.mLength = offset + length;
+            return BluetoothGatt.GATT_SUCCESS;
+        }
+    }
+
+    /**
+     * Remove and return the queue of the device in the order the attributes
+     * were first prepared, or null if there is none. The entries must be
+     * handed to {@link #release(List)} after use.
+     */
+    public List<Entry> take(String device) {
+        List<Entry> queue = mQueues.remove(device);
+        if (queue == null) return null;
+        synchronized (queue) {
+            return new ArrayList<>(queue);
+        }
+    }
+
+    /**
+     * Return the buffers of the entries to the pool.
+     */
+    public void release(List<Entry> entries) {
+        for (Entry entry : entries) {
+            byte[] buffer = entry.mBuffer;
+            if (buffer == null) continue;
+            entry.mBuffer = null;
+            synchronized (mPool) {
+                if (mPool.size() < mPoolSize) {
+                    mPool.push(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the queue of the device, e.g. after it disconnected.
+     */
+    public void removeDevice(String device) {
+        List<Entry> entries = take(device);
+        if (entries != null) {
+            release(entries);
+        }
+    }
+
+    public int getPendingDeviceCount() {
+        return mQueues.size();
+    }
+
+    public int getPooledBufferCount() {
+        synchronized (mPool) {
+            return mPool.size();
+        }
+    }
+
+    private byte[] acquire() {
+        synchronized (mPool) {
+            byte[] buffer = mPool.poll();
+            if (buffer != null) return buffer;
+        }
+        return new byte[mMaxValueLength];
+    }
+}
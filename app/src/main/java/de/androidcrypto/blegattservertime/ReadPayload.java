@@ -0,0 +1,71 @@
+package de.androidcrypto.blegattservertime;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Immutable attribute value that is handed out in slices for Read Blob
+ * requests.
+ *
+ * A long read walks the value in steps of MTU - 1 bytes, so slices at those
+ * offsets are created once per chunk size and then shared by every request
+ * and every device reading with the same MTU. Unaligned offsets get a copy.
+ */
+public class ReadPayload {
+
+    private final byte[] mValue;
+    private volatile Chunks mChunks;
+
+    private static final class Chunks {
+        final int size;
+        final AtomicReferenceArray<byte[]> slices;
+
+        Chunks(int size, int count) {
+            this.size = size;
+            this.slices = new AtomicReferenceArray<>(count);
+        }
+    }
+
+    /**
+     * The caller must not modify the value afterwards.
+     */
+    public ReadPayload(byte[] value) {
+        mValue = value;
+    }
+
+    public int length() {
+        return mValue.length;
+    }
+
+    /**
+     * Return true if this payload holds the same bytes as the value.
+     */
+    public boolean contentEquals(byte[] value) {
+        return value == mValue || Arrays.equals(value, mValue);
+    }
+
+    /**
+     * Return at most maxLength bytes starting at offset, or null if offset is
+     * beyond the end of the value. The result must not be modified.
+     */
+    public byte[] slice(int offset, int maxLength) {
+        if (offset < 0 || offset > mValue.length || maxLength < 1) return null;
+        if (offset == 0 && mValue.length <= maxLength) return mValue;
+        if (offset % maxLength != 0) {
+            return Arrays.copyOfRange(mValue, offset, Math.min(mValue.length, offset + maxLength));
+        }
+        Chunks chunks = mChunks;
+        if (chunks == null || chunks.size != maxLength) {
+            chunks = new Chunks(maxLength, mValue.length / maxLength + 1);
+            mChunks = chunks;
+        }
+        int index = offset / maxLength;
+        byte[] slice = chunks.slices.get(index);
+        if (slice == null) {
+            // racing threads create equal slices, either one may win
+            slice = Arrays.copyOfRange(mValue, offset, Math.min(mValue.length, offset + maxLength));
+            chunks.slices.set(index, slice);
+        }
+        return slice;
+    }
+}
@@ -0,0 +1,144 @@
+package de.androidcrypto.blegattservertime;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * State machine of the Reference Time Update Service.
+ *
+ * A client writes Get Reference Update to the Time Update Control Point to
+ * ask the server to refresh its time from the reference, or Cancel Reference
+ * Update to abort a pending refresh. The update runs on the scheduler, the
+ * Time Update State characteristic reports whether one is pending and the
+ * result of the last one. The state values are encoded once and shared.
+ */
+public class ReferenceTimeUpdate {
+
+    /* Time Update Control Point commands */
+    public static final byte GET_REFERENCE_UPDATE = 0x01;
+    public static final byte CANCEL_REFERENCE_UPDATE = 0x02;
+
+    /* Current State */
+    public static final byte STATE_IDLE = 0x00;
+    public static final byte STATE_UPDATE_PENDING = 0x01;
+
+    /* Result */
+    public static final byte RESULT_SUCCESSFUL = 0x00;
+    public static final byte RESULT_CANCELED = 0x01;
+    public static final byte RESULT_NO_CONNECTION = 0x02;
+    public static final byte RESULT_REFERENCE_ERROR = 0x03;
+    public static final byte RESULT_TIMEOUT = 0x04;
+    public static final byte RESULT_NOT_ATTEMPTED = 0x05;
+
+    private static final int RESULT_COUNT = 6;
+
+    /**
+     * Refreshes the time from the reference, runs on the scheduler thread.
+     */
+    public interface Updater {
+        /**
+         * @return one of the RESULT constants
+         */
+        byte update();
+    }
+
+    /* Encoded Time Update State values, [state][result] */
+    private static final byte[][][] STATES = new byte[2][RESULT_COUNT][];
+
+    static {
+        for (int state = 0; state < 2; state++) {
+            for (int result = 0; result < RESULT_COUNT; result++) {
+                STATES[state][result] = new byte[]{(byte) state, (byte) result};
+            }
+        }
+    }
+
+    private final Scheduler mScheduler;
+    private final Updater mUpdater;
+
+    // guarded by this
+    private byte mState = STATE_IDLE;
+    private byte mResult = RESULT_NOT_ATTEMPTED;
+    private Scheduler.Cancellable mPending;
+    private int mGeneration;
+
+    public ReferenceTimeUpdate(Scheduler scheduler, Updater updater) {
+        mScheduler = scheduler;
+        mUpdater = updater;
+    }
+
+    /**
+     * Return the 2 byte Time Update State value. The array is shared and
+     * must not be modified.
+     */
+    public synchronized byte[] getTimeUpdateState() {
+        return STATES[mState][mResult];
+    }
+
+    /**
+     * Apply a write to the Time Update Control Point.
+     *
+     * @return a {@link BluetoothGatt} status code
+     */
+    public int onControlPoint(byte[] value) {
+        int status = validateControlPoint(value);
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            return status;
+        }
+        switch (value[0]) {
+            case GET_REFERENCE_UPDATE:
+                requestUpdate();
+                break;
+            case CANCEL_REFERENCE_UPDATE:
+                cancelUpdate();
+                break;
+            default:
+                // reserved values are ignored
+                break;
+        }
+        return BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * Check a write to the Time Update Control Point without applying it.
+     *
+     * @return a {@link BluetoothGatt} status code
+     */
+    public static int validateControlPoint(byte[] value) {
+        return value.length == 1 ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+    }
+
+    private synchronized void requestUpdate() {
+        if (mState == STATE_UPDATE_PENDING) return;
+        mState = STATE_UPDATE_PENDING;
+        final int generation = ++mGeneration;
+        mPending = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runUpdate(generation);
+            }
+        }, 0);
+    }
+
+    private synchronized void cancelUpdate() {
+        if (mState != STATE_UPDATE_PENDING) return;
+        mPending.cancel();
+        mPending = null;
+        mGeneration++;
+        mState = STATE_IDLE;
+        mResult = RESULT_CANCELED;
+    }
+
+    private void runUpdate(int generation) {
+        synchronized (this) {
+            if (generation != mGeneration) return;
+        }
+        byte result = mUpdater.update();
+        synchronized (this) {
+            // a cancel that came in while updating still wins
+            if (generation != mGeneration) return;
+            mPending = null;
+            mState = STATE_IDLE;
+            mResult = result >= 0 && result < RESULT_COUNT ? result : RESULT_REFERENCE_ERROR;
+        }
+    }
+}
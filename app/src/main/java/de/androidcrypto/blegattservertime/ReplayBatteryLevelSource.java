@@ -0,0 +1,63 @@
+package de.androidcrypto.blegattservertime;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * {@link BatteryLevelSource} that plays back recorded levels, one per read,
+ * and starts over at the end.
+ *
+ * The recording has one level per line, empty lines and lines starting
+ * with '#' are skipped.
+ */
+public class ReplayBatteryLevelSource implements BatteryLevelSource {
+
+    private final int[] mLevels;
+    private int mPosition;
+
+    public ReplayBatteryLevelSource(int... levels) {
+        if (levels.length == 0) {
+            throw new IllegalArgumentException("Nothing to replay");
+        }
+        mLevels = levels.clone();
+    }
+
+    /**
+     * Read the recording, the reader is not closed.
+     */
+    public static ReplayBatteryLevelSource read(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        int[] levels = new int[64];
+        int count = 0;
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            int level;
+            try {
+                level = Integer.parseInt(line);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid battery level in line " + lineNumber + ": " + line);
+            }
+            if (level < -1 || level > 100) {
+                throw new IOException("Battery level out of range in line " + lineNumber + ": " + line);
+            }
+            if (count == levels.length) {
+                levels = Arrays.copyOf(levels, count * 2);
+            }
+            levels[count++] = level;
+        }
+        return new ReplayBatteryLevelSource(Arrays.copyOf(levels, count));
+    }
+
+    @Override
+    public synchronized int readLevel() {
+        int level = mLevels[mPosition];
+        mPosition = (mPosition + 1) % mLevels.length;
+        return level;
+    }
+}
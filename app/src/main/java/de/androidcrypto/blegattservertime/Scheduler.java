@@ -0,0 +1,20 @@
+package de.androidcrypto.blegattservertime;
+
+/**
+ * Runs tasks after a delay. The service uses a {@link TimerWheel}, tests
+ * drive a manual clock.
+ */
+public interface Scheduler {
+
+    /**
+     * A scheduled task that has not run yet.
+     */
+    interface Cancellable {
+        /**
+         * Make sure the task does not run, no-op if it already ran.
+         */
+        void cancel();
+    }
+
+    Cancellable schedule(Runnable task, long delayMillis);
+}
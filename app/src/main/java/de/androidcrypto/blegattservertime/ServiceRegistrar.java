@@ -0,0 +1,235 @@
+package de.androidcrypto.blegattservertime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Adds GATT services one after another without blocking a thread.
+ *
+ * The stack only accepts the next service after onServiceAdded reported the
+ * previous one, so every service is added, then the registrar waits for
+ * {@link #onServiceAdded(UUID, int)}. A service that fails or does not
+ * report back within the timeout is removed and added again after an
+ * exponential backoff, up to a maximum number of retries. Once all services
+ * were added the listener is told, together with the time it took; this is
+ * the signal to start advertising.
+ *
+ * @param <S> the service type, BluetoothGattService on Android
+ */
+public class ServiceRegistrar<S> {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_BACKOFF_MILLIS = 100;
+    public static final long MAX_BACKOFF_MILLIS = 2000;
+    /**
+     * Status passed to the listener when a service never reported back.
+     */
+    public static final int STATUS_TIMEOUT = -1;
+    /**
+     * Status used when the stack refused the addService call.
+     */
+    public static final int STATUS_REJECTED = -2;
+
+    public enum State {
+        IDLE, REGISTERING, READY, FAILED
+    }
+
+    /**
+     * The server the services are added to.
+     */
+    public interface Target<S> {
+        UUID getUuid(S service);
+
+        /**
+         * @return false if the stack refused the request right away
+         */
+        boolean addService(S service);
+
+        void removeService(S service);
+    }
+
+    public interface Listener {
+        void onServicesReady(long timeToReadyMillis, int retries);
+
+        void onServiceRegistrationFailed(UUID service, int status);
+    }
+
+    private final Target<S> mTarget;
+    private final Scheduler mScheduler;
+    private final long mTimeoutMillis;
+    private final int mMaxRetries;
+    private final long mBackoffMillis;
+
+    // guarded by this
+    private Listener mListener;
+    private List<S> mServices = new ArrayList<>();
+    private State mState = State.IDLE;
+    private int mIndex;
+    private int mAttempt;
+    private boolean mAwaitingCallback;
+    private int mRetries;
+    private int mGeneration;
+    private long mStartNanos;
+    private long mTimeToReadyMillis = -1;
+    private Scheduler.Cancellable mPending;
+
+    public ServiceRegistrar(Target<S> target, Scheduler scheduler) {
+        this(target, scheduler, DEFAULT_TIMEOUT_MILLIS, DEFAULT_MAX_RETRIES, DEFAULT_BACKOFF_MILLIS);
+    }
+
+    public ServiceRegistrar(Target<S> target, Scheduler scheduler, long timeoutMillis,
+                            int maxRetries, long backoffMillis) {
+        mTarget = target;
+        mScheduler = scheduler;
+        mTimeoutMillis = timeoutMillis;
+        mMaxRetries = maxRetries;
+        mBackoffMillis = backoffMillis;
+    }
+
+    /**
+     * Start adding the services, in order. A registration in progress is
+     * abandoned.
+     */
+    public synchronized void start(Listener listener, List<S> services) {
+        cancelPending();
+        mGeneration++;
+        mListener = listener;
+        mServices = new ArrayList<>(services);
+        mIndex = 0;
+        mAttempt = 0;
+        mRetries = 0;
+        mTimeToReadyMillis = -1;
+        mStartNanos = System.nanoTime();
+        mState = State.REGISTERING;
+        addCurrent();
+    }
+
+    /**
+     * Abandon the registration, e.g. because the server is closed.
+     */
+    public synchronized void stop() {
+        cancelPending();
+        mGeneration++;
+        mAwaitingCallback = false;
+        mState = State.IDLE;
+    }
+
+    /**
+     * Must be called from onServiceAdded.
+     */
+    public synchronized void onServiceAdded(UUID service, int status) {
+        if (mState != State.REGISTERING || !mAwaitingCallback
+                || !mTarget.getUuid(mServices.get(mIndex)).equals(service)) {
+            // late answer for an attempt that already timed out
+            return;
+        }
+        mAwaitingCallback = false;
+        cancelPending();
+        if (status != 0) {
+            retry(status);
+            return;
+        }
+        mIndex++;
+        mAttempt = 0;
+        if (mIndex < mServices.size()) {
+            addCurrent();
+            return;
+        }
+        mState = State.READY;
+        mTimeToReadyMillis = (System.nanoTime() - mStartNanos) / 1000000L;
+        mListener.onServicesReady(mTimeToReadyMillis, mRetries);
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    public synchronized boolean isReady() {
+        return mState == State.READY;
+    }
+
+    /**
+     * Time from {@link #start} until all services were added in the last
+     * registration, -1 if it did not complete.
+     */
+    public synchronized long getTimeToReadyMillis() {
+        return mTimeToReadyMillis;
+    }
+
+    public synchronized int getRetryCount() {
+        return mRetries;
+    }
+
+    private void addCurrent() {
+        final int generation = mGeneration;
+        final int index = mIndex;
+        final int attempt = mAttempt;
+        final S service = mServices.get(index);
+        boolean accepted;
+        mAwaitingCallback = true;
+        try {
+            accepted = mTarget.addService(service);
+        } catch (RuntimeException e) {
+            accepted = false;
+        }
+        if (generation != mGeneration || index != mIndex || attempt != mAttempt
+                || mState != State.REGISTERING) {
+            // the callback already arrived
+            return;
+        }
+        if (!accepted) {
+            mAwaitingCallback = false;
+            retry(STATUS_REJECTED);
+            return;
+        }
+        mPending = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onTimeout(generation, index, attempt);
+            }
+        }, mTimeoutMillis);
+    }
+
+    private synchronized void onTimeout(int generation, int index, int attempt) {
+        if (generation != mGeneration || index != mIndex || attempt != mAttempt
+                || mState != State.REGISTERING) {
+            return;
+        }
+        mPending = null;
+        mAwaitingCallback = false;
+        // the stack may still finish the add, start over from a clean state
+        mTarget.removeService(mServices.get(mIndex));
+        retry(STATUS_TIMEOUT);
+    }
+
+    private void retry(int status) {
+        if (mAttempt >= mMaxRetries) {
+            mState = State.FAILED;
+            mListener.onServiceRegistrationFailed(mTarget.getUuid(mServices.get(mIndex)), status);
+            return;
+        }
+        mAttempt++;
+        mRetries++;
+        final int generation = mGeneration;
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, mBackoffMillis << (mAttempt - 1));
+        mPending = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ServiceRegistrar.this) {
+                    if (generation != mGeneration || mState != State.REGISTERING) return;
+                    mPending = null;
+                    addCurrent();
+                }
+            }
+        }, backoff);
+    }
+
+    private void cancelPending() {
+        if (mPending != null) {
+            mPending.cancel();
+            mPending = null;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package de.androidcrypto.blegattservertime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sessions of the connected centrals, keyed by the address encoded with
+ * {@link DeviceSession#parseMac(String)}.
+ *
+ * An open addressing table with linear probing over two arrays that are
+ * allocated once: lookups neither hash strings nor allocate, and the memory
+ * used stays fixed no matter how many addresses come and go. The table holds
+ * at most {@code maxSessions} sessions and is never more than half full, so
+ * probe sequences stay short; removal shifts the following entries back
+ * instead of leaving tombstones behind.
+ */
+public class SessionTable {
+
+    public static final int DEFAULT_MAX_SESSIONS = 64;
+
+    private static final long EMPTY = -1;
+
+    private final int mMaxSessions;
+    private final long[] mKeys;
+    private final DeviceSession[] mSessions;
+    private final int mMask;
+    private int mSize;
+
+    public SessionTable() {
+        this(DEFAULT_MAX_SESSIONS);
+    }
+
+    public SessionTable(int maxSessions) {
+        if (maxSessions <= 0) {
+            throw new IllegalArgumentException("maxSessions must be positive: " + maxSessions);
+        }
+        mMaxSessions = maxSessions;
+        int capacity = Integer.highestOneBit(maxSessions * 2 - 1) << 1;
+        mKeys = new long[capacity];
+        Arrays.fill(mKeys, EMPTY);
+        mSessions = new DeviceSession[capacity];
+        mMask = capacity - 1;
+    }
+
+    public int getMaxSessions() {
+        return mMaxSessions;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized boolean isFull() {
+        return mSize == mMaxSessions;
+    }
+
+    /**
+     * Return the session of the address, or null if there is none.
+     */
+    public synchronized DeviceSession get(long mac) {
+        int slot = find(mac);
+        return slot < 0 ? null : mSessions[slot];
+    }
+
+    /**
+     * Add the session, replacing the one with the same address.
+     *
+     * @return the replaced session, or null
+     * @throws IllegalStateException if the table is full
+     */
+    public synchronized DeviceSession put(DeviceSession session) {
+        long mac = session.getMac();
+        int slot = find(mac);
+        if (slot >= 0) {
+            DeviceSession previous = mSessions[slot];
+            mSessions[slot] = session;
+            return previous;
+        }
+        if (mSize == mMaxSessions) {
+            throw new IllegalStateException("Session table full");
+        }
+        slot = indexOf(mac);
+        while (mKeys[slot] != EMPTY) {
+            slot = (slot + 1) & mMask;
+        }
+        mKeys[slot] = mac;
+        mSessions[slot] = session;
+        mSize++;
+        return null;
+    }
+
+    /**
+     * Remove the session of the address.
+     *
+     * @return the removed session, or null if there was none
+     */
+    public synchronized DeviceSession remove(long mac) {
+        int slot = find(mac);
+        if (slot < 0) return null;
+        DeviceSession removed = mSessions[slot];
+        // move back entries that probed past the freed slot
+        int free = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mMask;
+            if (mKeys[next] == EMPTY) break;
+            int home = indexOf(mKeys[next]);
+            boolean between = free <= next ? free < home && home <= next : free < home || home <= next;
+            if (between) continue;
+            mKeys[free] = mKeys[next];
+            mSessions[free] = mSessions[next];
+            free = next;
+        }
+        mKeys[free] = EMPTY;
+        mSessions[free] = null;
+        mSize--;
+        return removed;
+    }
+
+    /**
+     * Remove the session only if it is still the one stored for its address.
+     */
+    public synchronized boolean remove(DeviceSession session) {
+        if (get(session.getMac()) != session) return false;
+        remove(session.getMac());
+        return true;
+    }
+
+    /**
+     * Return the session with the oldest activity, or null if empty.
+     */
+    public synchronized DeviceSession getLeastRecentlyActive() {
+        DeviceSession oldest = null;
+        for (DeviceSession session : mSessions) {
+            if (session != null && (oldest == null
+                    || session.getLastActivityMillis() < oldest.getLastActivityMillis())) {
+                oldest = session;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Remove all sessions.
+     *
+     * @return the removed sessions
+     */
+    public synchronized List<DeviceSession> clear() {
+        List<DeviceSession> sessions = getSessions();
+        Arrays.fill(mKeys, EMPTY);
+        Arrays.fill(mSessions, null);
+        mSize = 0;
+        return sessions;
+    }
+
+    /**
+     * Return a copy of all sessions.
+     */
+    public synchronized List<DeviceSession> getSessions() {
+        List<DeviceSession> sessions = new ArrayList<>(mSize);
+        for (DeviceSession session : mSessions) {
+            if (session != null) sessions.add(session);
+        }
+        return sessions;
+    }
+
+    private int find(long mac) {
+        int slot = indexOf(mac);
+        while (mKeys[slot] != EMPTY) {
+            if (mKeys[slot] == mac) return slot;
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    private int indexOf(long mac) {
+        // mix the bits, the vendor part of the address is shared by many devices
+        long hash = mac * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 40) & mMask;
+    }
+}
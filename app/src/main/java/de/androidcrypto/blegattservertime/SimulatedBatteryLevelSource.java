@@ -0,0 +1,36 @@
+package de.androidcrypto.blegattservertime;
+
+import java.util.Random;
+
+/**
+ * {@link BatteryLevelSource} that performs a random walk between 0 and 100
+ * percent, for demonstrations without a real battery.
+ */
+public class SimulatedBatteryLevelSource implements BatteryLevelSource {
+
+    private final Random mRandom;
+    private final int mMaxStep;
+    private final double mChangeProbability;
+    private int mLevel;
+
+    /**
+     * @param changeProbability chance that a read moves the level at all
+     * @param maxStep           largest change of one read, in percent
+     */
+    public SimulatedBatteryLevelSource(long seed, int initialLevel, int maxStep, double changeProbability) {
+        mRandom = new Random(seed);
+        mLevel = initialLevel;
+        mMaxStep = maxStep;
+        mChangeProbability = changeProbability;
+    }
+
+    @Override
+    public synchronized int readLevel() {
+        if (mRandom.nextDouble() < mChangeProbability) {
+            mLevel += mRandom.nextInt(2 * mMaxStep + 1) - mMaxStep;
+            if (mLevel > 100) mLevel = 100;
+            if (mLevel < 0) mLevel = 0;
+        }
+        return mLevel;
+    }
+}
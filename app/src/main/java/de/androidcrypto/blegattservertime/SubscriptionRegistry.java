@@ -0,0 +1,140 @@
+package de.androidcrypto.blegattservertime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks which devices subscribed to notifications or indications of which
+ * characteristic, as written to the Client Characteristic Config descriptor.
+ *
+ * Subscribe and unsubscribe only touch a concurrent map, so they are safe to
+ * call from the binder callback threads. Fan-out works on an immutable
+ * snapshot of the subscribers of one characteristic that is rebuilt lazily the
+ * first time it is requested after a change, so the sending thread never
+ * locks and never sees a list that is modified while it iterates.
+ *
+ * @param <D> device identity, must implement equals and hashCode
+ */
+public class SubscriptionRegistry<D> {
+
+    /* Client Characteristic Config bits */
+    public static final int NOTIFY = 0x1;
+    public static final int INDICATE = 0x2;
+
+    /**
+     * A device and the Client Characteristic Config bits it has set.
+     */
+    public static final class Subscriber<D> {
+        public final D device;
+        public final int flags;
+
+        Subscriber(D device, int flags) {
+            this.device = device;
+            this.flags = flags;
+        }
+
+        /**
+         * True if the device asked for indications only, which need to be
+         * confirmed by the client.
+         */
+        public boolean isIndication() {
+            return (flags & NOTIFY) == 0 && (flags & INDICATE) != 0;
+        }
+    }
+
+    private static final class Snapshot<D> {
+        final int version;
+        final List<Subscriber<D>> subscribers;
+
+        Snapshot(int version, List<Subscriber<D>> subscribers) {
+            this.version = version;
+            this.subscribers = subscribers;
+        }
+    }
+
+    /**
+     * Subscribers of one characteristic.
+     */
+    private static final class Channel<D> {
+        final Map<D, Integer> flags = new ConcurrentHashMap<>();
+        final AtomicInteger version = new AtomicInteger();
+        volatile Snapshot<D> snapshot = new Snapshot<>(0, Collections.<Subscriber<D>>emptyList());
+    }
+
+    private final ConcurrentHashMap<UUID, Channel<D>> mChannels = new ConcurrentHashMap<>();
+
+    /**
+     * Set the Client Characteristic Config bits of the device for the
+     * characteristic, 0 removes the subscription.
+     */
+    public void setSubscription(UUID characteristic, D device, int flags) {
+        Channel<D> channel = getChannel(characteristic);
+        flags &= NOTIFY | INDICATE;
+        Integer previous = flags == 0
+                ? channel.flags.remove(device)
+                : channel.flags.put(device, flags);
+        if (previous == null ? flags != 0 : previous != flags) {
+            channel.version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Return the Client Characteristic Config bits of the device for the
+     * characteristic, 0 if it is not subscribed.
+     */
+    public int getSubscription(UUID characteristic, D device) {
+        Channel<D> channel = mChannels.get(characteristic);
+        if (channel == null) return 0;
+        Integer flags = channel.flags.get(device);
+        return flags == null ? 0 : flags;
+    }
+
+    /**
+     * Remove all subscriptions of the device, e.g. after it disconnected.
+     */
+    public void removeDevice(D device) {
+        for (Channel<D> channel : mChannels.values()) {
+            if (channel.flags.remove(device) != null) {
+                channel.version.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Return an immutable snapshot of the current subscribers of the
+     * characteristic.
+     */
+    public List<Subscriber<D>> getSubscribers(UUID characteristic) {
+        Channel<D> channel = mChannels.get(characteristic);
+        if (channel == null) return Collections.emptyList();
+        int version = channel.version.get();
+        Snapshot<D> snapshot = channel.snapshot;
+        if (snapshot.version == version) {
+            return snapshot.subscribers;
+        }
+        // every change is applied to the map before the version is bumped, so
+        // a snapshot built after reading the version contains at least those
+        List<Subscriber<D>> subscribers = new ArrayList<>(channel.flags.size());
+        for (Map.Entry<D, Integer> entry : channel.flags.entrySet()) {
+            subscribers.add(new Subscriber<>(entry.getKey(), entry.getValue()));
+        }
+        snapshot = new Snapshot<>(version, Collections.unmodifiableList(subscribers));
+        channel.snapshot = snapshot;
+        return snapshot.subscribers;
+    }
+
+    private Channel<D> getChannel(UUID characteristic) {
+        Channel<D> channel = mChannels.get(characteristic);
+        if (channel == null) {
+            Channel<D> created = new Channel<>();
+            channel = mChannels.putIfAbsent(characteristic, created);
+            if (channel == null) channel = created;
+        }
+        return channel;
+    }
+}
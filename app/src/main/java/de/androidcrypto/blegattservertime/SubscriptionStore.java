@@ -0,0 +1,354 @@
+package de.androidcrypto.blegattservertime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Client Characteristic Config bits of bonded devices, kept across restarts
+ * of the server so that a bonded client is notified again right after it
+ * reconnects, without rewriting its descriptors.
+ *
+ * Changes are only applied in memory; the file is rewritten on the
+ * scheduler a while after the first unsaved change, through a temporary
+ * file so a crash never leaves a partial one. The file is small: every
+ * characteristic UUID is stored once, and a device is its address followed
+ * by 2 bits per characteristic. Little endian:
+ * <pre>
+ *   magic              uint32
+ *   version            uint8, 1
+ *   characteristics    uint8, n
+ *   n times            UUID, 2 x int64
+ *   devices            uint16
+ *   per device:
+ *     address          6 bytes
+ *     flags            (n + 3) / 4 bytes, 2 bits per characteristic
+ *   checksum           uint32, CRC-32 of everything before
+ * </pre>
+ */
+public class SubscriptionStore {
+
+    public static final long DEFAULT_SAVE_DELAY_MILLIS = 2000;
+    /* Characteristics that can be stored, the count is a uint8 */
+    public static final int MAX_CHARACTERISTICS = 255;
+
+    private static final int MAGIC = 0x42535347; // "GSSB"
+    private static final int VERSION = 1;
+    private static final int FLAGS_MASK = SubscriptionRegistry.NOTIFY | SubscriptionRegistry.INDICATE;
+
+    private final File mFile;
+    private final Scheduler mScheduler;
+    private final long mSaveDelayMillis;
+    private final EventLog mEventLog;
+    private final Object mFileLock = new Object();
+
+    // guarded by this
+    private final List<UUID> mCharacteristics = new ArrayList<>();
+    private final Map<UUID, Integer> mIndexes = new HashMap<>();
+    /* per device address, the flags by characteristic index */
+    private final Map<Long, byte[]> mDevices = new HashMap<>();
+    private Scheduler.Cancellable mPendingSave;
+    private boolean mDirty;
+    private long mSaveCount;
+
+    /**
+     * @param scheduler runs the batched saves
+     */
+    public SubscriptionStore(File file, Scheduler scheduler, long saveDelayMillis, EventLog eventLog) {
+        mFile = file;
+        mScheduler = scheduler;
+        mSaveDelayMillis = saveDelayMillis;
+        mEventLog = eventLog;
+    }
+
+    /**
+     * Replace the stored subscriptions with the file, if there is one.
+     *
+     * @throws IOException if the file can not be read or is invalid, the
+     *                     store is empty then
+     */
+    public void load() throws IOException {
+        synchronized (this) {
+            mCharacteristics.clear();
+            mIndexes.clear();
+            mDevices.clear();
+        }
+        if (!mFile.exists()) return;
+        byte[] data;
+        InputStream in = new FileInputStream(mFile);
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[1024];
+            int n;
+            while ((n = in.read(chunk)) > 0) {
+                buffer.write(chunk, 0, n);
+            }
+            data = buffer.toByteArray();
+        } finally {
+            in.close();
+        }
+        decode(data);
+    }
+
+    private synchronized void decode(byte[] data) throws IOException {
+        if (data.length < 4 + 1 + 1 + 2 + 4 || getInt(data, 0) != MAGIC || data[4] != VERSION) {
+            throw new IOException("Not a subscription file");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        if ((int) crc.getValue() != getInt(data, data.length - 4)) {
+            throw new IOException("Checksum mismatch");
+        }
+        int count = data[5] & 0xFF;
+        int flagsLength = (count + 3) / 4;
+        int position = 6;
+        int devicesAt = position + count * 16;
+        if (devicesAt + 2 > data.length - 4) {
+            throw new IOException("Truncated subscription file");
+        }
+        int devices = (data[devicesAt] & 0xFF) | (data[devicesAt + 1] & 0xFF) << 8;
+        if (devicesAt + 2 + devices * (6 + flagsLength) != data.length - 4) {
+            throw new IOException("Truncated subscription file");
+        }
+        List<UUID> characteristics = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            characteristics.add(new UUID(getLong(data, position), getLong(data, position + 8)));
+            position += 16;
+        }
+        position += 2;
+        Map<Long, byte[]> flagsByDevice = new HashMap<>();
+        for (int d = 0; d < devices; d++) {
+            long mac = 0;
+            for (int i = 0; i < 6; i++) {
+                mac |= (data[position++] & 0xFFL) << (8 * i);
+            }
+            byte[] flags = new byte[count];
+            for (int i = 0; i < count; i++) {
+                flags[i] = (byte) ((data[position + i / 4] >> (2 * (i % 4))) & FLAGS_MASK);
+            }
+            position += flagsLength;
+            flagsByDevice.put(mac, flags);
+        }
+        for (int i = 0; i < count; i++) {
+            mCharacteristics.add(characteristics.get(i));
+            mIndexes.put(characteristics.get(i), i);
+        }
+        mDevices.putAll(flagsByDevice);
+    }
+
+    /**
+     * Store the Client Characteristic Config bits of the device for the
+     * characteristic, 0 removes the subscription.
+     */
+    public synchronized void setSubscription(long mac, UUID characteristic, int flags) {
+        flags &= FLAGS_MASK;
+        Integer index = mIndexes.get(characteristic);
+        if (index == null) {
+            if (flags == 0) return;
+            if (mCharacteristics.size() == MAX_CHARACTERISTICS) {
+                mEventLog.log(EventLog.WARN, "Too many characteristics to store:", characteristic);
+                return;
+            }
+            index = mCharacteristics.size();
+            mCharacteristics.add(characteristic);
+            mIndexes.put(characteristic, index);
+        }
+        byte[] deviceFlags = mDevices.get(mac);
+        if (deviceFlags == null) {
+            if (flags == 0) return;
+            deviceFlags = new byte[mCharacteristics.size()];
+        } else if (deviceFlags.length <= index) {
+            deviceFlags = Arrays.copyOf(deviceFlags, mCharacteristics.size());
+        }
+        if (deviceFlags[index] == flags) return;
+        deviceFlags[index] = (byte) flags;
+        if (isEmpty(deviceFlags)) {
+            mDevices.remove(mac);
+        } else {
+            mDevices.put(mac, deviceFlags);
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Forget all subscriptions of the device, e.g. after its bond was
+     * removed.
+     */
+    public synchronized void removeDevice(long mac) {
+        if (mDevices.remove(mac) != null) {
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Subscribe the device to every characteristic it was subscribed to
+     * when it was last connected.
+     *
+     * @return the number of subscriptions restored
+     */
+    public synchronized int restore(long mac, String device, SubscriptionRegistry<String> subscriptions) {
+        byte[] deviceFlags = mDevices.get(mac);
+        if (deviceFlags == null) return 0;
+        int restored = 0;
+        for (int i = 0; i < deviceFlags.length; i++) {
+            if (deviceFlags[i] != 0) {
+                subscriptions.setSubscription(mCharacteristics.get(i), device, deviceFlags[i]);
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Return the stored bits of the device for the characteristic, 0 if it
+     * is not subscribed.
+     */
+    public synchronized int getSubscription(long mac, UUID characteristic) {
+        Integer index = mIndexes.get(characteristic);
+        byte[] deviceFlags = mDevices.get(mac);
+        if (index == null || deviceFlags == null || deviceFlags.length <= index) return 0;
+        return deviceFlags[index];
+    }
+
+    public synchronized int getDeviceCount() {
+        return mDevices.size();
+    }
+
+    /**
+     * Number of times the file was written.
+     */
+    public synchronized long getSaveCount() {
+        return mSaveCount;
+    }
+
+    /**
+     * Write unsaved changes now, e.g. before the server stops.
+     */
+    public void flush() {
+        // one writer at a time, so an older table never replaces a newer one
+        synchronized (mFileLock) {
+            byte[] data;
+            synchronized (this) {
+                if (mPendingSave != null) {
+                    mPendingSave.cancel();
+                    mPendingSave = null;
+                }
+                if (!mDirty) return;
+                mDirty = false;
+                data = encode();
+            }
+            // the callback threads keep changing the table while the file is written
+            try {
+                write(data);
+                synchronized (this) {
+                    mSaveCount++;
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    mDirty = true;
+                }
+                mEventLog.log(EventLog.WARN, "Unable to save subscriptions:", e);
+            }
+        }
+    }
+
+    private void scheduleSave() {
+        mDirty = true;
+        if (mPendingSave != null) return;
+        mPendingSave = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SubscriptionStore.this) {
+                    mPendingSave = null;
+                }
+                flush();
+            }
+        }, mSaveDelayMillis);
+    }
+
+    private void write(byte[] data) throws IOException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("Unable to replace " + mFile);
+        }
+    }
+
+    private byte[] encode() {
+        int count = mCharacteristics.size();
+        int flagsLength = (count + 3) / 4;
+        int devices = Math.min(mDevices.size(), 0xFFFF);
+        byte[] data = new byte[4 + 1 + 1 + count * 16 + 2 + devices * (6 + flagsLength) + 4];
+        putInt(data, 0, MAGIC);
+        data[4] = VERSION;
+        data[5] = (byte) count;
+        int position = 6;
+        for (UUID characteristic : mCharacteristics) {
+            putLong(data, position, characteristic.getMostSignificantBits());
+            putLong(data, position + 8, characteristic.getLeastSignificantBits());
+            position += 16;
+        }
+        data[position++] = (byte) devices;
+        data[position++] = (byte) (devices >> 8);
+        int written = 0;
+        for (Map.Entry<Long, byte[]> entry : mDevices.entrySet()) {
+            if (written++ == devices) break;
+            long mac = entry.getKey();
+            for (int i = 0; i < 6; i++) {
+                data[position++] = (byte) (mac >>> (8 * i));
+            }
+            byte[] deviceFlags = entry.getValue();
+            for (int i = 0; i < deviceFlags.length; i++) {
+                data[position + i / 4] |= (byte) (deviceFlags[i] << (2 * (i % 4)));
+            }
+            position += flagsLength;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, position);
+        putInt(data, position, (int) crc.getValue());
+        return data;
+    }
+
+    private static boolean isEmpty(byte[] flags) {
+        for (byte f : flags) {
+            if (f != 0) return false;
+        }
+        return true;
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8
+                | (data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24;
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return (getInt(data, offset) & 0xFFFFFFFFL) | (long) getInt(data, offset + 4) << 32;
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            data[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private static void putLong(byte[] data, int offset, long value) {
+        putInt(data, offset, (int) value);
+        putInt(data, offset + 4, (int) (value >>> 32));
+    }
+}
@@ -0,0 +1,202 @@
+package de.androidcrypto.blegattservertime;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Encodes the Current Time and Local Time Information characteristic values
+ * without allocating.
+ *
+ * Civil date and time fields are derived from the epoch timestamp with integer
+ * arithmetic (proleptic Gregorian calendar). The zone and DST offsets are looked
+ * up through a {@link Calendar} only when the timestamp leaves the cached offset
+ * window, which normally happens once a day or at a zone transition.
+ * {@link #setTimeZone(TimeZone)} must be called when the system time zone changes.
+ */
+public class TimeEncoder {
+
+    /** Length of an encoded Current Time value */
+    public static final int EXACT_TIME_LENGTH = 10;
+    /** Length of an encoded Local Time Information value */
+    public static final int LOCAL_TIME_INFO_LENGTH = 2;
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+    /* Time bucket constants for local time information */
+    private static final int FIFTEEN_MINUTE_MILLIS = 900000;
+    private static final int HALF_HOUR_MILLIS = 1800000;
+
+    /**
+     * Timestamp range in which the zone and DST offsets are constant.
+     */
+    private static final class OffsetWindow {
+        final long start;
+        final long end;
+        final int zoneOffset;
+        final int dstOffset;
+
+        OffsetWindow(long start, long end, int zoneOffset, int dstOffset) {
+            this.start = start;
+            this.end = end;
+            this.zoneOffset = zoneOffset;
+            this.dstOffset = dstOffset;
+        }
+    }
+
+    /* Only used to resolve offsets on a window miss, guarded by this */
+    private Calendar mCalendar;
+    private volatile OffsetWindow mWindow;
+
+    public TimeEncoder(TimeZone zone) {
+        setTimeZone(zone);
+    }
+
+    /**
+     * Switch to a new time zone and drop the cached offsets.
+     */
+    public synchronized void setTimeZone(TimeZone zone) {
+        mCalendar = Calendar.getInstance(zone);
+        mWindow = null;
+    }
+
+    /**
+     * Write the 10 byte Current Time value for the given epoch timestamp
+     * and adjustment reason into {@code dst} at {@code offset}.
+     *
+     * @return the number of bytes written.
+     */
+    public int encodeExactTime(long timestamp, byte adjustReason, byte[] dst, int offset) {
+        OffsetWindow window = getWindow(timestamp);
+        long local = timestamp + window.zoneOffset + window.dstOffset;
+        long days = encodeDateTime(local, dst, offset);
+        int millisOfDay = (int) (local - days * MILLIS_PER_DAY);
+
+        // Day of Week (1-7), Monday is 1 and 1970-01-01 was a Thursday
+        dst[offset + 7] = (byte) (Math.floorMod(days + 3, 7) + 1);
+        // Fractions256
+        dst[offset + 8] = (byte) (millisOfDay % 1000 * 256 / 1000);
+
+        dst[offset + 9] = adjustReason;
+        return EXACT_TIME_LENGTH;
+    }
+
+    /**
+     * Write the 7 byte Date Time value (year to seconds) of a local
+     * timestamp, i.e. milliseconds since 1970-01-01 00:00 local time.
+     *
+     * @return the days since 1970-01-01
+     */
+    static long encodeDateTime(long local, byte[] dst, int offset) {
+        long days = Math.floorDiv(local, MILLIS_PER_DAY);
+        int millisOfDay = (int) Math.floorMod(local, MILLIS_PER_DAY);
+
+        // civil-from-days, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+
+        // Year
+        dst[offset] = (byte) (year & 0xFF);
+        dst[offset + 1] = (byte) ((year >> 8) & 0xFF);
+        // Month
+        dst[offset + 2] = (byte) month;
+        // Day
+        dst[offset + 3] = (byte) day;
+        // Hours
+        dst[offset + 4] = (byte) (millisOfDay / 3600000);
+        // Minutes
+        dst[offset + 5] = (byte) (millisOfDay / 60000 % 60);
+        // Seconds
+        dst[offset + 6] = (byte) (millisOfDay / 1000 % 60);
+        return days;
+    }
+
+    /**
+     * Write the Current Time value at the position of the array backed
+     * buffer {@code dst} and advance the position.
+     */
+    public void encodeExactTime(long timestamp, byte adjustReason, ByteBuffer dst) {
+        if (!dst.hasArray()) {
+            throw new IllegalArgumentException("buffer must be backed by an array");
+        }
+        int position = dst.position();
+        if (dst.limit() - position < EXACT_TIME_LENGTH) {
+            throw new BufferOverflowException();
+        }
+        encodeExactTime(timestamp, adjustReason, dst.array(), dst.arrayOffset() + position);
+        dst.position(position + EXACT_TIME_LENGTH);
+    }
+
+    /**
+     * Write the 2 byte Local Time Information value for the given epoch
+     * timestamp into {@code dst} at {@code offset}.
+     *
+     * @return the number of bytes written.
+     */
+    public int encodeLocalTimeInfo(long timestamp, byte[] dst, int offset) {
+        OffsetWindow window = getWindow(timestamp);
+        // Time zone, 15 minute intervals
+        dst[offset] = (byte) (window.zoneOffset / FIFTEEN_MINUTE_MILLIS);
+        // DST Offset, 30 minute intervals
+        dst[offset + 1] = TimeProfile.getDstOffsetCode(window.dstOffset / HALF_HOUR_MILLIS);
+        return LOCAL_TIME_INFO_LENGTH;
+    }
+
+    /**
+     * Return the first timestamp after {@code timestamp} at which the zone or
+     * DST offset may differ from the one at {@code timestamp}.
+     */
+    public long getOffsetValidUntil(long timestamp) {
+        return getWindow(timestamp).end;
+    }
+
+    private OffsetWindow getWindow(long timestamp) {
+        OffsetWindow window = mWindow;
+        if (window != null && timestamp >= window.start && timestamp < window.end) {
+            return window;
+        }
+        return refreshWindow(timestamp);
+    }
+
+    /**
+     * Resolve the offsets for the timestamp and find how long they stay valid,
+     * looking ahead one day and narrowing down to the transition if the
+     * offsets change within it.
+     */
+    private synchronized OffsetWindow refreshWindow(long timestamp) {
+        int zoneOffset = zoneOffsetAt(timestamp);
+        int dstOffset = dstOffsetAt(timestamp);
+        long end = timestamp + MILLIS_PER_DAY;
+        if (zoneOffsetAt(end) != zoneOffset || dstOffsetAt(end) != dstOffset) {
+            long low = timestamp;
+            while (end - low > 1) {
+                long mid = low + (end - low) / 2;
+                if (zoneOffsetAt(mid) == zoneOffset && dstOffsetAt(mid) == dstOffset) {
+                    low = mid;
+                } else {
+                    end = mid;
+                }
+            }
+        }
+        OffsetWindow window = new OffsetWindow(timestamp, end, zoneOffset, dstOffset);
+        mWindow = window;
+        return window;
+    }
+
+    private int zoneOffsetAt(long timestamp) {
+        mCalendar.setTimeInMillis(timestamp);
+        return mCalendar.get(Calendar.ZONE_OFFSET);
+    }
+
+    private int dstOffsetAt(long timestamp) {
+        mCalendar.setTimeInMillis(timestamp);
+        return mCalendar.get(Calendar.DST_OFFSET);
+    }
+}
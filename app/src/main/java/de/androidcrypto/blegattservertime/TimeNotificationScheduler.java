@@ -0,0 +1,215 @@
+package de.androidcrypto.blegattservertime;
+
+/**
+ * Fires Current Time notifications on wall clock boundaries, e.g. every full
+ * second, 10 seconds or minute.
+ *
+ * The wall clock only has millisecond resolution and may be stepped, so the
+ * schedule runs on the monotonic elapsed realtime instead: a wall clock
+ * reading is anchored to elapsedRealtimeNanos, and both the next boundary and
+ * the timestamp handed to the {@link Sink} are derived from that anchor. The
+ * anchor is renewed once a minute to follow the disciplined wall clock; the
+ * correction is reported as drift. A step of the wall clock is applied with
+ * {@link #onWallClockChanged()}.
+ *
+ * Two errors are measured for every notification: how late it fired after
+ * its boundary, and how far the encoded time (whole seconds plus
+ * Fractions256) was behind the anchored real time once the sink returned.
+ */
+public class TimeNotificationScheduler {
+
+    public static final long PERIOD_1S = 1000;
+    public static final long PERIOD_10S = 10000;
+    public static final long PERIOD_60S = 60000;
+
+    /* Renew the anchor this often */
+    static final long REANCHOR_INTERVAL_NANOS = 60000000000L;
+    private static final int ANCHOR_SAMPLES = 3;
+
+    /**
+     * The clocks, SystemClock.elapsedRealtimeNanos and System.currentTimeMillis
+     * on Android.
+     */
+    public interface TimeSource {
+        long elapsedRealtimeNanos();
+
+        long currentTimeMillis();
+    }
+
+    /**
+     * Encodes and sends the notification, runs on the scheduler thread.
+     */
+    public interface Sink {
+        /**
+         * @return false if nothing was sent, e.g. because no device subscribed;
+         * no error is recorded then
+         */
+        boolean onTimeNotification(long timestamp);
+    }
+
+    private final Scheduler mScheduler;
+    private final TimeSource mTimeSource;
+    private final Sink mSink;
+    private final LatencyHistogram mLateness = new LatencyHistogram();
+    private final LatencyHistogram mEncodingError = new LatencyHistogram();
+
+    // guarded by this
+    private long mPeriodMillis;
+    private long mAnchorElapsedNanos;
+    private long mAnchorWallNanos;
+    private long mLastDriftNanos;
+    private long mNextBoundaryMillis;
+    private int mGeneration;
+    private Scheduler.Cancellable mPending;
+    private long mNotificationCount;
+
+    public TimeNotificationScheduler(Scheduler scheduler, TimeSource timeSource, Sink sink) {
+        mScheduler = scheduler;
+        mTimeSource = timeSource;
+        mSink = sink;
+    }
+
+    /**
+     * Start firing on every multiple of the period, which must divide a
+     * minute. Restarts with the new period if already running.
+     */
+    public synchronized void start(long periodMillis) {
+        if (periodMillis <= 0 || PERIOD_60S % periodMillis != 0) {
+            throw new IllegalArgumentException("Period must divide a minute: " + periodMillis);
+        }
+        mPeriodMillis = periodMillis;
+        anchor();
+        mLastDriftNanos = 0;
+        scheduleNext();
+    }
+
+    public synchronized void stop() {
+        mPeriodMillis = 0;
+        cancelPending();
+    }
+
+    /**
+     * Re-anchor and reschedule after the wall clock was set.
+     */
+    public synchronized void onWallClockChanged() {
+        if (mPeriodMillis == 0) return;
+        anchor();
+        scheduleNext();
+    }
+
+    /**
+     * Current wall clock time in nanoseconds, derived from the anchor.
+     */
+    public synchronized long getWallNanos() {
+        return mAnchorWallNanos + (mTimeSource.elapsedRealtimeNanos() - mAnchorElapsedNanos);
+    }
+
+    public synchronized long getPeriodMillis() {
+        return mPeriodMillis;
+    }
+
+    public synchronized long getNotificationCount() {
+        return mNotificationCount;
+    }
+
+    /**
+     * How much the wall clock moved against elapsed realtime at the last
+     * re-anchoring, positive if it ran ahead.
+     */
+    public synchronized long getLastDriftNanos() {
+        return mLastDriftNanos;
+    }
+
+    /**
+     * Time from the boundary until the notification fired.
+     */
+    public LatencyHistogram getLateness() {
+        return mLateness;
+    }
+
+    /**
+     * Time the encoded Fractions256 timestamp was behind real time after it
+     * was handed to the notification queue.
+     */
+    public LatencyHistogram getEncodingError() {
+        return mEncodingError;
+    }
+
+    private void anchor() {
+        // the sample with the shortest gap between the elapsed readings
+        // brackets the wall clock reading most tightly
+        long bestGap = Long.MAX_VALUE;
+        for (int i = 0; i < ANCHOR_SAMPLES; i++) {
+            long before = mTimeSource.elapsedRealtimeNanos();
+            long wallMillis = mTimeSource.currentTimeMillis();
+            long after = mTimeSource.elapsedRealtimeNanos();
+            if (after - before < bestGap) {
+                bestGap = after - before;
+                mAnchorElapsedNanos = before + (after - before) / 2;
+                mAnchorWallNanos = wallMillis * 1000000L;
+            }
+        }
+    }
+
+    private void scheduleNext() {
+        cancelPending();
+        final int generation = ++mGeneration;
+        long wallNanos = getWallNanos();
+        long wallMillis = wallNanos / 1000000L;
+        mNextBoundaryMillis = (wallMillis / mPeriodMillis + 1) * mPeriodMillis;
+        long delayNanos = mNextBoundaryMillis * 1000000L - wallNanos;
+        // round up, firing early would encode the previous period
+        long delayMillis = (delayNanos + 999999L) / 1000000L;
+        mPending = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fire(generation);
+            }
+        }, delayMillis);
+    }
+
+    private void fire(int generation) {
+        long timestamp;
+        synchronized (this) {
+            if (generation != mGeneration || mPeriodMillis == 0) return;
+            mPending = null;
+            if (mTimeSource.elapsedRealtimeNanos() - mAnchorElapsedNanos >= REANCHOR_INTERVAL_NANOS) {
+                long previousElapsed = mAnchorElapsedNanos;
+                long previousWall = mAnchorWallNanos;
+                anchor();
+                // the old anchor's view of the new anchor instant
+                mLastDriftNanos = mAnchorWallNanos - (previousWall + mAnchorElapsedNanos - previousElapsed);
+            }
+            long wallNanos = getWallNanos();
+            timestamp = wallNanos / 1000000L;
+            mLateness.record(wallNanos - mNextBoundaryMillis * 1000000L);
+        }
+        boolean sent = mSink.onTimeNotification(timestamp);
+        synchronized (this) {
+            if (sent) {
+                mNotificationCount++;
+                mEncodingError.record(getWallNanos() - encodedNanos(timestamp));
+            }
+            if (generation == mGeneration && mPeriodMillis != 0) {
+                scheduleNext();
+            }
+        }
+    }
+
+    /**
+     * The time an Exact Time 256 value encodes for the timestamp, which keeps
+     * whole seconds and truncates the rest to 1/256 s.
+     */
+    static long encodedNanos(long timestamp) {
+        long millis = timestamp % 1000;
+        long fractions = millis * 256 / 1000;
+        return (timestamp - millis) * 1000000L + fractions * 1000000000L / 256;
+    }
+
+    private void cancelPending() {
+        if (mPending != null) {
+            mPending.cancel();
+            mPending = null;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package de.androidcrypto.blegattservertime;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the encoded Current Time and Local Time Information values.
+ *
+ * A Current Time value only changes when the timestamp moves into the next
+ * Fractions256 bucket or the adjust reason changes, so all reads and
+ * notifications within the same bucket share one encoded payload. The Local
+ * Time Information value is cached until the zone or DST offset changes.
+ * {@link #invalidate()} drops both after a clock or time zone change.
+ *
+ * Returned arrays are shared between callers and must not be modified.
+ */
+public class TimePayloadCache {
+
+    private static final class Entry {
+        final int generation;
+        final long bucket;
+        final byte adjustReason;
+        final long validUntil;
+        final byte[] payload;
+
+        Entry(int generation, long bucket, byte adjustReason, long validUntil, byte[] payload) {
+            this.generation = generation;
+            this.bucket = bucket;
+            this.adjustReason = adjustReason;
+            this.validUntil = validUntil;
+            this.payload = payload;
+        }
+    }
+
+    private final TimeEncoder mEncoder;
+    private volatile int mGeneration;
+    private volatile Entry mExactTime;
+    private volatile Entry mLocalTimeInfo;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    public TimePayloadCache(TimeEncoder encoder) {
+        mEncoder = encoder;
+    }
+
+    /**
+     * Return the Current Time value for the timestamp and adjust reason.
+     */
+    public byte[] getExactTime(long timestamp, byte adjustReason) {
+        long bucket = toBucket(timestamp);
+        int generation = mGeneration;
+        Entry entry = mExactTime;
+        if (entry != null && entry.generation == generation && entry.bucket == bucket
+                && entry.adjustReason == adjustReason) {
+            mHits.incrementAndGet();
+            return entry.payload;
+        }
+        mMisses.incrementAndGet();
+        byte[] payload = new byte[TimeEncoder.EXACT_TIME_LENGTH];
+        mEncoder.encodeExactTime(timestamp, adjustReason, payload, 0);
+        mExactTime = new Entry(generation, bucket, adjustReason, 0, payload);
+        return payload;
+    }
+
+    /**
+     * Return the Local Time Information value for the timestamp.
+     */
+    public byte[] getLocalTimeInfo(long timestamp) {
+        int generation = mGeneration;
+        Entry entry = mLocalTimeInfo;
+        if (entry != null && entry.generation == generation && timestamp >= entry.bucket
+                && timestamp < entry.validUntil) {
+            mHits.incrementAndGet();
+            return entry.payload;
+        }
+        mMisses.incrementAndGet();
+        byte[] payload = new byte[TimeEncoder.LOCAL_TIME_INFO_LENGTH];
+        mEncoder.encodeLocalTimeInfo(timestamp, payload, 0);
+        long validUntil = mEncoder.getOffsetValidUntil(timestamp);
+        mLocalTimeInfo = new Entry(generation, timestamp, (byte) 0, validUntil, payload);
+        return payload;
+    }
+
+    /**
+     * Drop all cached values, called when the clock or the time zone changed.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mExactTime = null;
+        mLocalTimeInfo = null;
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * Fraction of lookups served from the cache, 0 if there were none.
+     */
+    public double getHitRatio() {
+        long hits = mHits.get();
+        long total = hits + mMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Map the timestamp to its Fractions256 bucket, all timestamps in the
+     * same bucket encode to the same Current Time value.
+     */
+    static long toBucket(long timestamp) {
+        long seconds = Math.floorDiv(timestamp, 1000);
+        return seconds * 256 + Math.floorMod(timestamp, 1000) * 256 / 1000;
+    }
+}
@@ -17,10 +17,8 @@ package de.androidcrypto.blegattservertime;
  */
 
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 
-import java.util.Calendar;
+import java.util.TimeZone;
 import java.util.UUID;
 
 /**
@@ -37,7 +35,19 @@ public class TimeProfile {
     /* Optional Local Time Information Characteristic */
     public static UUID LOCAL_TIME_INFO = UUID.fromString("00002a0f-0000-1000-8000-00805f9b34fb");
     /* Mandatory Client Characteristic Config Descriptor */
-    public static UUID CLIENT_CONFIG   = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    public static UUID CLIENT_CONFIG   = GattProfile.CLIENT_CONFIG;
+
+    /* Next DST Change Service UUID */
+    public static UUID NEXT_DST_CHANGE_SERVICE = UUID.fromString("00001807-0000-1000-8000-00805f9b34fb");
+    /* Mandatory Time with DST Characteristic */
+    public static UUID TIME_WITH_DST           = UUID.fromString("00002a11-0000-1000-8000-00805f9b34fb");
+
+    /* Reference Time Update Service UUID */
+    public static UUID REFERENCE_TIME_UPDATE_SERVICE = UUID.fromString("00001806-0000-1000-8000-00805f9b34fb");
+    /* Mandatory Time Update Control Point Characteristic */
+    public static UUID TIME_UPDATE_CONTROL_POINT     = UUID.fromString("00002a16-0000-1000-8000-00805f9b34fb");
+    /* Mandatory Time Update State Characteristic */
+    public static UUID TIME_UPDATE_STATE             = UUID.fromString("00002a17-0000-1000-8000-00805f9b34fb");
 
     // Adjustment Flags
     public static final byte ADJUST_NONE     = 0x0;
@@ -47,127 +57,170 @@ public class TimeProfile {
     public static final byte ADJUST_DST      = 0x8;
 
     /**
-     * Return a configured {@link BluetoothGattService} instance for the
-     * Current Time Service.
+     * Add the Current Time Service to the profile. Current Time supports
+     * notifications, Local Time Information is read-only.
      */
-    public static BluetoothGattService createTimeService() {
-        BluetoothGattService service = new BluetoothGattService(TIME_SERVICE,
-                BluetoothGattService.SERVICE_TYPE_PRIMARY);
-
-        // Current Time characteristic
-        BluetoothGattCharacteristic currentTime = new BluetoothGattCharacteristic(CURRENT_TIME,
-                //Read-only characteristic, supports notifications
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-                BluetoothGattCharacteristic.PERMISSION_READ);
-        BluetoothGattDescriptor configDescriptor = new BluetoothGattDescriptor(CLIENT_CONFIG,
-                //Read/write descriptor
-                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
-        currentTime.addDescriptor(configDescriptor);
-
-        // Local Time Information characteristic
-        BluetoothGattCharacteristic localTime = new BluetoothGattCharacteristic(LOCAL_TIME_INFO,
-                //Read-only characteristic
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ);
-
-        service.addCharacteristic(currentTime);
-        service.addCharacteristic(localTime);
-
-        return service;
+    public static void addService(GattProfile.Builder profile) {
+        profile.service(TIME_SERVICE)
+                .characteristic(CURRENT_TIME,
+                        //Read-only characteristic, supports notifications
+                        BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                        BluetoothGattCharacteristic.PERMISSION_READ,
+                        new CharacteristicHandler() {
+                            @Override
+                            public byte[] onRead(String device) {
+                                return sPayloadCache.getExactTime(System.currentTimeMillis(), ADJUST_NONE);
+                            }
+                        })
+                .characteristic(LOCAL_TIME_INFO,
+                        //Read-only characteristic
+                        BluetoothGattCharacteristic.PROPERTY_READ,
+                        BluetoothGattCharacteristic.PERMISSION_READ,
+                        new CharacteristicHandler() {
+                            @Override
+                            public byte[] onRead(String device) {
+                                return sPayloadCache.getLocalTimeInfo(System.currentTimeMillis());
+                            }
+                        });
     }
 
     /**
-     * Construct the field values for a Current Time characteristic
-     * from the given epoch timestamp and adjustment reason.
+     * Add the Next DST Change Service, the Time with DST value is looked up
+     * in the transition table of the default time zone.
      */
-    public static byte[] getExactTime(long timestamp, byte adjustReason) {
-        Calendar time = Calendar.getInstance();
-        time.setTimeInMillis(timestamp);
-
-        byte[] field = new byte[10];
-
-        // Year
-        int year = time.get(Calendar.YEAR);
-        field[0] = (byte) (year & 0xFF);
-        field[1] = (byte) ((year >> 8) & 0xFF);
-        // Month
-        field[2] = (byte) (time.get(Calendar.MONTH) + 1);
-        // Day
-        field[3] = (byte) time.get(Calendar.DATE);
-        // Hours
-        field[4] = (byte) time.get(Calendar.HOUR_OF_DAY);
-        // Minutes
-        field[5] = (byte) time.get(Calendar.MINUTE);
-        // Seconds
-        field[6] = (byte) time.get(Calendar.SECOND);
-        // Day of Week (1-7)
-        field[7] = getDayOfWeekCode(time.get(Calendar.DAY_OF_WEEK));
-        // Fractions256
-        field[8] = (byte) (time.get(Calendar.MILLISECOND) / 256);
-
-        field[9] = adjustReason;
+    public static void addNextDstChangeService(GattProfile.Builder profile) {
+        profile.service(NEXT_DST_CHANGE_SERVICE)
+                .characteristic(TIME_WITH_DST,
+                        //Read-only characteristic
+                        BluetoothGattCharacteristic.PROPERTY_READ,
+                        BluetoothGattCharacteristic.PERMISSION_READ,
+                        new CharacteristicHandler() {
+                            @Override
+                            public byte[] onRead(String device) {
+                                return getNextDstChange(System.currentTimeMillis());
+                            }
+                        });
+    }
 
-        return field;
+    /**
+     * Add the Reference Time Update Service, driven by the given state machine.
+     */
+    public static void addReferenceTimeUpdateService(GattProfile.Builder profile,
+                                                     final ReferenceTimeUpdate referenceTimeUpdate) {
+        profile.service(REFERENCE_TIME_UPDATE_SERVICE)
+                .characteristic(TIME_UPDATE_CONTROL_POINT,
+                        //Write-only characteristic, without response
+                        BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+                        BluetoothGattCharacteristic.PERMISSION_WRITE,
+                        new CharacteristicHandler() {
+                            @Override
+                            public byte[] onRead(String device) {
+                                return null;
+                            }
+
+                            @Override
+                            public int validateWrite(String device, byte[] value) {
+                                return ReferenceTimeUpdate.validateControlPoint(value);
+                            }
+
+                            @Override
+                            public int onWrite(String device, byte[] value) {
+                                return referenceTimeUpdate.onControlPoint(value);
+                            }
+                        })
+                .characteristic(TIME_UPDATE_STATE,
+                        //Read-only characteristic
+                        BluetoothGattCharacteristic.PROPERTY_READ,
+                        BluetoothGattCharacteristic.PERMISSION_READ,
+                        new CharacteristicHandler() {
+                            @Override
+                            public byte[] onRead(String device) {
+                                return referenceTimeUpdate.getTimeUpdateState();
+                            }
+                        });
     }
 
-    /* Time bucket constants for local time information */
-    private static final int FIFTEEN_MINUTE_MILLIS = 900000;
-    private static final int HALF_HOUR_MILLIS = 1800000;
+    /* Shared encoder for the default time zone */
+    private static final TimeEncoder sEncoder = new TimeEncoder(TimeZone.getDefault());
+    /* Encoded values shared by reads and notifications */
+    private static final TimePayloadCache sPayloadCache = new TimePayloadCache(sEncoder);
+    /* Upcoming transitions of the default time zone, built on first use */
+    private static volatile DstTransitionTable sTransitions;
 
     /**
-     * Construct the field values for a Local Time Information characteristic
-     * from the given epoch timestamp.
+     * Return the encoder used for the Current Time and Local Time
+     * Information values.
      */
-    public static byte[] getLocalTimeInfo(long timestamp) {
-        Calendar time = Calendar.getInstance();
-        time.setTimeInMillis(timestamp);
+    public static TimeEncoder getEncoder() {
+        return sEncoder;
+    }
+
+    /**
+     * Return the cache of encoded Current Time and Local Time Information values.
+     */
+    public static TimePayloadCache getPayloadCache() {
+        return sPayloadCache;
+    }
+
+    /**
+     * Re-read the system default time zone, must be called on
+     * {@link android.content.Intent#ACTION_TIMEZONE_CHANGED}.
+     */
+    public static void onTimeZoneChanged() {
+        sEncoder.setTimeZone(TimeZone.getDefault());
+        sPayloadCache.invalidate();
+        sTransitions = DstTransitionTable.build(TimeZone.getDefault(), System.currentTimeMillis());
+    }
 
-        byte[] field = new byte[2];
+    /**
+     * Return the Time with DST value of the next transition of the default
+     * time zone after the timestamp. The array is shared and must not be
+     * modified.
+     */
+    public static byte[] getNextDstChange(long timestamp) {
+        DstTransitionTable transitions = sTransitions;
+        if (transitions == null || !transitions.covers(timestamp)) {
+            transitions = rebuildTransitions(timestamp);
+        }
+        return transitions.getNextChange(timestamp);
+    }
 
-        // Time zone
-        int zoneOffset = time.get(Calendar.ZONE_OFFSET) / FIFTEEN_MINUTE_MILLIS; // 15 minute intervals
-        field[0] = (byte) zoneOffset;
+    private static synchronized DstTransitionTable rebuildTransitions(long timestamp) {
+        DstTransitionTable transitions = sTransitions;
+        // only the first, after the time was set or the horizon was reached
+        if (transitions == null || !transitions.covers(timestamp)) {
+            transitions = DstTransitionTable.build(TimeZone.getDefault(), timestamp);
+            sTransitions = transitions;
+        }
+        return transitions;
+    }
 
-        // DST Offset
-        int dstOffset = time.get(Calendar.DST_OFFSET) / HALF_HOUR_MILLIS; // 30 minute intervals
-        field[1] = getDstOffsetCode(dstOffset);
+    /**
+     * Drop the cached values, must be called on
+     * {@link android.content.Intent#ACTION_TIME_CHANGED}.
+     */
+    public static void onTimeChanged() {
+        sPayloadCache.invalidate();
+    }
 
+    /**
+     * Construct the field values for a Current Time characteristic
+     * from the given epoch timestamp and adjustment reason.
+     */
+    public static byte[] getExactTime(long timestamp, byte adjustReason) {
+        byte[] field = new byte[TimeEncoder.EXACT_TIME_LENGTH];
+        sEncoder.encodeExactTime(timestamp, adjustReason, field, 0);
         return field;
     }
 
-    /* Bluetooth Weekday Codes */
-    private static final byte DAY_UNKNOWN = 0;
-    private static final byte DAY_MONDAY = 1;
-    private static final byte DAY_TUESDAY = 2;
-    private static final byte DAY_WEDNESDAY = 3;
-    private static final byte DAY_THURSDAY = 4;
-    private static final byte DAY_FRIDAY = 5;
-    private static final byte DAY_SATURDAY = 6;
-    private static final byte DAY_SUNDAY = 7;
-
     /**
-     * Convert a {@link Calendar} weekday value to the corresponding
-     * Bluetooth weekday code.
+     * Construct the field values for a Local Time Information characteristic
+     * from the given epoch timestamp.
      */
-    private static byte getDayOfWeekCode(int dayOfWeek) {
-        switch (dayOfWeek) {
-            case Calendar.MONDAY:
-                return DAY_MONDAY;
-            case Calendar.TUESDAY:
-                return DAY_TUESDAY;
-            case Calendar.WEDNESDAY:
-                return DAY_WEDNESDAY;
-            case Calendar.THURSDAY:
-                return DAY_THURSDAY;
-            case Calendar.FRIDAY:
-                return DAY_FRIDAY;
-            case Calendar.SATURDAY:
-                return DAY_SATURDAY;
-            case Calendar.SUNDAY:
-                return DAY_SUNDAY;
-            default:
-                return DAY_UNKNOWN;
-        }
+    public static byte[] getLocalTimeInfo(long timestamp) {
+        byte[] field = new byte[TimeEncoder.LOCAL_TIME_INFO_LENGTH];
+        sEncoder.encodeLocalTimeInfo(timestamp, field, 0);
+        return field;
     }
 
     /* Bluetooth DST Offset Codes */
@@ -181,7 +234,7 @@ public class TimeProfile {
      * Convert a raw DST offset (in 30 minute intervals) to the
      * corresponding Bluetooth DST offset code.
      */
-    private static byte getDstOffsetCode(int rawOffset) {
+    static byte getDstOffsetCode(int rawOffset) {
         switch (rawOffset) {
             case 0:
                 return DST_STANDARD;
@@ -0,0 +1,336 @@
+package de.androidcrypto.blegattservertime;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link Scheduler} backed by a hashed timer wheel and one worker thread.
+ *
+ * Timeouts are hashed into a ring of buckets by their deadline tick, so
+ * scheduling and cancelling cost O(1) no matter how many per-device timers
+ * exist. Other threads only append to lock-free queues; the buckets are
+ * touched by the worker alone. The worker sleeps until the next non-empty
+ * bucket instead of waking on every tick, and parks completely while the
+ * wheel is empty.
+ *
+ * The wheel belongs to the server lifecycle: {@link #shutdown()} cancels
+ * every timer and stops the thread, so nothing keeps running against a
+ * closed server. Tasks run on the worker thread and must not block it.
+ */
+public class TimerWheel implements Scheduler {
+
+    public static final long DEFAULT_TICK_MILLIS = 10;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static final int WAITING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    /**
+     * Source of monotonic milliseconds.
+     */
+    public interface Clock {
+        long millis();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long millis() {
+            return System.nanoTime() / 1000000L;
+        }
+    };
+
+    private final class Timeout implements Cancellable {
+        final Runnable task;
+        final long periodMillis;
+        final AtomicInteger state = new AtomicInteger(WAITING);
+        long deadlineMillis;
+        long remainingRounds;
+        // bucket links, owned by the worker
+        int bucket = -1;
+        Timeout prev;
+        Timeout next;
+
+        Timeout(Runnable task, long deadlineMillis, long periodMillis) {
+            this.task = task;
+            this.deadlineMillis = deadlineMillis;
+            this.periodMillis = periodMillis;
+        }
+
+        @Override
+        public void cancel() {
+            if (state.compareAndSet(WAITING, CANCELLED)) {
+                mCancelled.add(this);
+                mPendingCount.decrementAndGet();
+            }
+        }
+    }
+
+    private final String mName;
+    private final Clock mClock;
+    private final EventLog mEventLog;
+    private final long mTickMillis;
+    private final int mMask;
+    private final Timeout[] mBuckets;
+    private final long mStartMillis;
+    private final ConcurrentLinkedQueue<Timeout> mNew = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> mCancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+    private final AtomicLong mFailedCount = new AtomicLong();
+    // next tick to expire, owned by the worker
+    private long mTick;
+    private volatile long mWakeAtMillis = Long.MAX_VALUE;
+    private volatile boolean mShutdown;
+    private Thread mThread;
+
+    public TimerWheel(String name, EventLog eventLog) {
+        this(name, eventLog, SYSTEM_CLOCK, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(String name, EventLog eventLog, Clock clock, long tickMillis, int wheelSize) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("tickMillis must be at least 1");
+        }
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        mName = name;
+        mEventLog = eventLog;
+        mClock = clock;
+        mTickMillis = tickMillis;
+        mMask = size - 1;
+        mBuckets = new Timeout[size];
+        mStartMillis = clock.millis();
+    }
+
+    @Override
+    public Cancellable schedule(Runnable task, long delayMillis) {
+        return scheduleAtFixedRate(task, delayMillis, 0);
+    }
+
+    /**
+     * Run the task after the initial delay and then every period, measured
+     * from the original deadline so the schedule does not drift.
+     */
+    public Cancellable scheduleAtFixedRate(Runnable task, long initialDelayMillis, long periodMillis) {
+        Timeout timeout = new Timeout(task, mClock.millis() + Math.max(0, initialDelayMillis), periodMillis);
+        if (mShutdown) {
+            timeout.state.set(CANCELLED);
+            return timeout;
+        }
+        mPendingCount.incrementAndGet();
+        mNew.add(timeout);
+        Thread thread = mThread;
+        if (thread != null && timeout.deadlineMillis < mWakeAtMillis) {
+            LockSupport.unpark(thread);
+        }
+        return timeout;
+    }
+
+    /**
+     * Start the worker thread.
+     */
+    public synchronized void start() {
+        if (mThread != null || mShutdown) return;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, mName);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Cancel every timer and stop the worker thread, the wheel cannot be
+     * started again. Waits for a task that is running, unless called from a
+     * task.
+     */
+    public void shutdown() {
+        Thread thread;
+        synchronized (this) {
+            mShutdown = true;
+            thread = mThread;
+        }
+        if (thread == null) {
+            clear();
+            return;
+        }
+        LockSupport.unpark(thread);
+        if (thread == Thread.currentThread()) return;
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isShutdown() {
+        return mShutdown;
+    }
+
+    /**
+     * Number of timers that have neither run nor been cancelled; periodic
+     * timers count until they are cancelled.
+     */
+    public int getPendingCount() {
+        return mPendingCount.get();
+    }
+
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    /**
+     * Run everything that is due at the clock's current time. Called by the
+     * worker thread; without a started thread, tests call it directly.
+     *
+     * @return the time of the next bucket that holds timers, Long.MAX_VALUE if none
+     */
+    long runDue() {
+        long now = mClock.millis();
+        long targetTick = (now - mStartMillis) / mTickMillis;
+        transferNew();
+        while (mTick <= targetTick && !mShutdown) {
+            removeCancelled();
+            expire(mTick);
+            mTick++;
+            // timers scheduled by the tasks may already be due
+            transferNew();
+        }
+        removeCancelled();
+        return nextBucketMillis();
+    }
+
+    private void work() {
+        while (!mShutdown) {
+            long next = runDue();
+            mWakeAtMillis = next;
+            if (!mNew.isEmpty()) continue;
+            if (next == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                long sleep = next - mClock.millis();
+                if (sleep > 0) {
+                    LockSupport.parkNanos(this, sleep * 1000000L);
+                }
+            }
+            mWakeAtMillis = Long.MAX_VALUE;
+        }
+        clear();
+    }
+
+    private void transferNew() {
+        Timeout timeout;
+        while ((timeout = mNew.poll()) != null) {
+            if (timeout.state.get() == WAITING) {
+                insert(timeout);
+            }
+        }
+    }
+
+    private void insert(Timeout timeout) {
+        long ticks = (timeout.deadlineMillis - mStartMillis + mTickMillis - 1) / mTickMillis;
+        long tick = Math.max(ticks, mTick);
+        timeout.remainingRounds = (tick - mTick) / mBuckets.length;
+        int bucket = (int) (tick & mMask);
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = mBuckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        mBuckets[bucket] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.bucket < 0) return;
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            mBuckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.bucket = -1;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = mCancelled.poll()) != null) {
+            unlink(timeout);
+        }
+    }
+
+    private void expire(long tick) {
+        Timeout timeout = mBuckets[(int) (tick & mMask)];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else if (timeout.state.get() == WAITING) {
+                unlink(timeout);
+                run(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    private void run(Timeout timeout) {
+        boolean periodic = timeout.periodMillis > 0;
+        if (!periodic) {
+            if (!timeout.state.compareAndSet(WAITING, EXPIRED)) return;
+            mPendingCount.decrementAndGet();
+        }
+        try {
+            timeout.task.run();
+        } catch (RuntimeException e) {
+            mFailedCount.incrementAndGet();
+            mEventLog.log(EventLog.ERROR, "Scheduled task failed:", e);
+        }
+        if (periodic && timeout.state.get() == WAITING) {
+            timeout.deadlineMillis += timeout.periodMillis;
+            mNew.add(timeout);
+        }
+    }
+
+    private long nextBucketMillis() {
+        if (mPendingCount.get() == 0) return Long.MAX_VALUE;
+        for (int i = 0; i < mBuckets.length; i++) {
+            if (mBuckets[(int) ((mTick + i) & mMask)] != null) {
+                return mStartMillis + (mTick + i) * mTickMillis;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private void clear() {
+        Timeout timeout;
+        while ((timeout = mNew.poll()) != null) {
+            timeout.cancel();
+        }
+        for (int i = 0; i < mBuckets.length; i++) {
+            timeout = mBuckets[i];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                timeout.cancel();
+                timeout = next;
+            }
+            mBuckets[i] = null;
+        }
+        mCancelled.clear();
+    }
+}
@@ -0,0 +1,105 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * AD structure layout, scan response spill and name shortening of
+ * {@link AdvertisementPayload}.
+ */
+public class AdvertisementPayloadTest {
+
+    private static final UUID[] SERVICES = {
+            BasicProfile.DEVICE_INFO_SERVICE, TimeProfile.TIME_SERVICE, BatteryProfile.BATTERY_SERVICE};
+
+    private static UUID custom(int i) {
+        return UUID.fromString(String.format("a5f0%04x-1b2c-4d5e-8f90-0123456789ab", i));
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    public void currentProfileFitsIntoTheAdvertisingData() {
+        AdvertisementPayload payload = AdvertisementPayload.compile("TimeServer2", SERVICES);
+        assertArrayEquals(bytes(
+                2, 0x01, 0x06,
+                7, 0x03, 0x0a, 0x18, 0x05, 0x18, 0x0f, 0x18,
+                12, 0x09, 'T', 'i', 'm', 'e', 'S', 'e', 'r', 'v', 'e', 'r', '2'),
+                payload.getAdvertisingData());
+        assertFalse(payload.hasScanResponse());
+        assertEquals("TimeServer2", payload.getName());
+        assertFalse(payload.isNameShortened());
+    }
+
+    @Test
+    public void longNameMovesToTheScanResponse() {
+        String name = "Time Server Living Room";
+        AdvertisementPayload payload = AdvertisementPayload.compile(name, SERVICES);
+        assertEquals(11, payload.getAdvertisingData().length);
+        assertTrue(payload.isNameInScanResponse());
+        assertEquals(2 + name.length(), payload.getScanResponseData().length);
+        assertEquals(name, payload.getName());
+    }
+
+    @Test
+    public void uuidsSpillIntoTheScanResponse() {
+        UUID[] services = {BasicProfile.DEVICE_INFO_SERVICE, custom(1), custom(2), TimeProfile.TIME_SERVICE};
+        AdvertisementPayload payload = AdvertisementPayload.compile("TS", services);
+        // flags, two 16 bit UUIDs and one 128 bit UUID leave 4 bytes for the name
+        assertArrayEquals(new UUID[]{BasicProfile.DEVICE_INFO_SERVICE, custom(1), TimeProfile.TIME_SERVICE},
+                payload.getAdvertisedUuids());
+        assertArrayEquals(new UUID[]{custom(2)}, payload.getScanResponseUuids());
+        assertEquals(3 + 6 + 18 + 4, payload.getAdvertisingData().length);
+        assertFalse(payload.isNameInScanResponse());
+        byte[] scanResponse = payload.getScanResponseData();
+        assertEquals(17, scanResponse[0]);
+        assertEquals(0x07, scanResponse[1]);
+        // little endian
+        assertEquals((byte) 0xab, scanResponse[2]);
+        assertEquals((byte) 0xa5, scanResponse[17]);
+    }
+
+    @Test
+    public void nameIsShortenedToTheLargerRemainder() {
+        UUID[] services = {custom(1), custom(2)};
+        AdvertisementPayload payload = AdvertisementPayload.compile(
+                "A very long name that does not fit anywhere", services);
+        assertTrue(payload.isNameShortened());
+        // the scan response has 31 - 18 bytes left
+        assertTrue(payload.isNameInScanResponse());
+        assertEquals("A very long", payload.getName());
+        assertEquals(AdvertisementPayload.LEGACY_DATA_LENGTH, payload.getScanResponseData().length);
+    }
+
+    @Test
+    public void shortensWithoutSplittingCharacters() {
+        assertEquals("Zeit", AdvertisementPayload.shorten("Zeit\u00fcberall", 5));
+        assertEquals("Zeit\u00fc", AdvertisementPayload.shorten("Zeit\u00fcberall", 6));
+        assertEquals("", AdvertisementPayload.shorten("Zeit", 0));
+    }
+
+    @Test
+    public void rejectsTooManyServices() {
+        try {
+            AdvertisementPayload.compile("TS", custom(1), custom(2), custom(3));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void detectsUuidWidths() {
+        assertEquals(2, AdvertisementPayload.widthOf(TimeProfile.TIME_SERVICE));
+        assertEquals(4, AdvertisementPayload.widthOf(UUID.fromString("12345678-0000-1000-8000-00805f9b34fb")));
+        assertEquals(16, AdvertisementPayload.widthOf(custom(1)));
+    }
+}
@@ -0,0 +1,133 @@
+package de.androidcrypto.blegattservertime;
+
+import android.bluetooth.le.AdvertiseSettings;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Mode changes and time to first connection of {@link AdvertisingController},
+ * on a {@link ManualScheduler}.
+ */
+public class AdvertisingControllerTest {
+
+    private static final int MAX_CONNECTIONS = 2;
+    private static final long BURST_MILLIS = 30000;
+
+    private final ManualScheduler mScheduler = new ManualScheduler();
+    // mode of every start, -1 for every stop
+    private final List<Integer> mCalls = new ArrayList<>();
+    private AdvertiserPort.Callback mCallback;
+    private AdvertisingController mController;
+
+    @Before
+    public void setUp() {
+        AdvertiserPort port = new AdvertiserPort() {
+            @Override
+            public boolean startAdvertising(int mode, int txPowerLevel, Callback callback) {
+                mCalls.add(mode);
+                mCallback = callback;
+                return true;
+            }
+
+            @Override
+            public void stopAdvertising() {
+                mCalls.add(-1);
+            }
+        };
+        mController = new AdvertisingController(port, mScheduler, new TimerWheel.Clock() {
+            @Override
+            public long millis() {
+                return mScheduler.getNowMillis();
+            }
+        }, new EventLog(16, EventLog.WARN), MAX_CONNECTIONS, BURST_MILLIS, AdvertiseSettings.ADVERTISE_TX_POWER_HIGH);
+    }
+
+    private int lastCall() {
+        return mCalls.get(mCalls.size() - 1);
+    }
+
+    @Test
+    public void burstThenLowPower() {
+        mController.start();
+        assertEquals(AdvertisingController.STATE_BURST, mController.getState());
+        assertEquals(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY, lastCall());
+        assertFalse(mController.isAdvertising());
+        mCallback.onStartSuccess();
+        assertTrue(mController.isAdvertising());
+
+        mScheduler.advance(BURST_MILLIS);
+        assertEquals(AdvertisingController.STATE_LOW_POWER, mController.getState());
+        // restarted with the new mode
+        assertEquals(-1, (int) mCalls.get(mCalls.size() - 2));
+        assertEquals(AdvertiseSettings.ADVERTISE_MODE_LOW_POWER, lastCall());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void disconnectStartsAnotherBurst() {
+        mController.start();
+        mScheduler.advance(BURST_MILLIS);
+        mController.onConnectionStateChanged(true, 1);
+        mScheduler.advance(5000);
+        mController.onConnectionStateChanged(false, 0);
+        assertEquals(AdvertisingController.STATE_BURST, mController.getState());
+        assertEquals(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY, lastCall());
+        assertEquals(1, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void stopsAtTheConnectionCap() {
+        mController.start();
+        mController.onConnectionStateChanged(true, 1);
+        mController.onConnectionStateChanged(true, 2);
+        assertEquals(AdvertisingController.STATE_CAPPED, mController.getState());
+        assertEquals(-1, lastCall());
+        assertFalse(mController.isAdvertising());
+        assertEquals(0, mScheduler.getPendingCount());
+        // a late start result does not count as advertising
+        mCallback.onStartSuccess();
+        assertFalse(mController.isAdvertising());
+
+        mController.onConnectionStateChanged(false, 1);
+        assertEquals(AdvertisingController.STATE_BURST, mController.getState());
+        assertEquals(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY, lastCall());
+    }
+
+    @Test
+    public void recordsTimeToFirstConnection() {
+        mController.start();
+        mScheduler.advance(800);
+        mController.onConnectionStateChanged(true, 1);
+        // only the first connection after a burst start counts
+        mScheduler.advance(100);
+        mController.onConnectionStateChanged(true, 2);
+        assertEquals(1, mController.getTimeToFirstConnection().getCount());
+        assertEquals(1, mController.getConnectionsInBurst());
+
+        mController.onConnectionStateChanged(false, 1);
+        mScheduler.advance(BURST_MILLIS + 10000);
+        mController.onConnectionStateChanged(true, 2);
+        assertEquals(2, mController.getTimeToFirstConnection().getCount());
+        assertEquals(1, mController.getConnectionsAfterBurst());
+        long max = mController.getTimeToFirstConnection().getMaxNanos() / 1000000L;
+        assertTrue("max " + max, max >= 40000 && max < 45000);
+    }
+
+    @Test
+    public void stopCancelsTheBurst() {
+        mController.start();
+        mController.stop();
+        assertEquals(AdvertisingController.STATE_STOPPED, mController.getState());
+        assertEquals(0, mScheduler.getPendingCount());
+        // disconnects while stopped do not restart advertising
+        mController.onConnectionStateChanged(false, 0);
+        assertEquals(AdvertisingController.STATE_STOPPED, mController.getState());
+        assertEquals(-1, lastCall());
+    }
+}
@@ -0,0 +1,118 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pre-encoded values, config parsing and reloading of {@link AttributeValueStore}.
+ */
+public class AttributeValueStoreTest {
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void servesDefaultsUntilLoaded() {
+        AttributeValueStore store = new AttributeValueStore(BasicProfile.getDefaultValues());
+        assertArrayEquals(utf8(BasicProfile.SERIAL_NUMBER_VALUE), store.get(BasicProfile.SERIAL_NUMBER));
+        // encoded once, every read gets the same array
+        assertSame(store.get(BasicProfile.SERIAL_NUMBER), store.get(BasicProfile.SERIAL_NUMBER));
+        assertNull(store.get(UUID.randomUUID()));
+        assertEquals(0, store.getVersion());
+    }
+
+    @Test
+    public void configOverridesDefaults() throws IOException {
+        AttributeValueStore store = new AttributeValueStore(BasicProfile.getDefaultValues());
+        store.load(new StringReader("# unit 17\n"
+                + "\n"
+                + "2a25 = SN-0017\n"
+                + "00002a24-0000-1000-8000-00805f9b34fb = Model B\n"
+                + "2A00 = Zeitserver K\u00fcche\n"));
+        assertArrayEquals(utf8("SN-0017"), store.get(BasicProfile.SERIAL_NUMBER));
+        assertArrayEquals(utf8("Model B"), store.get(BasicProfile.MODEL_NUMBER));
+        assertArrayEquals(utf8("Zeitserver K\u00fcche"), store.get(BasicProfile.DEVICE_NAME));
+        assertArrayEquals(utf8(BasicProfile.MANUFACTURER_NAME_VALUE), store.get(BasicProfile.MANUFACTURER_NAME));
+        assertEquals(1, store.getVersion());
+
+        // a reload starts again from the defaults
+        store.load(new StringReader("2a24 = Model C\n"));
+        assertArrayEquals(utf8(BasicProfile.SERIAL_NUMBER_VALUE), store.get(BasicProfile.SERIAL_NUMBER));
+        assertArrayEquals(utf8("Model C"), store.get(BasicProfile.MODEL_NUMBER));
+    }
+
+    @Test
+    public void invalidConfigKeepsCurrentValues() throws IOException {
+        AttributeValueStore store = new AttributeValueStore(BasicProfile.getDefaultValues());
+        store.load(new StringReader("2a25 = SN-0017\n"));
+        String tooLong = new String(new char[AttributeValueStore.MAX_VALUE_LENGTH + 1]).replace('\0', 'x');
+        String[] invalid = {"2a25 SN-0018\n", "2a2x = SN\n", "zz = SN\n", "2a25 = " + tooLong + "\n"};
+        for (String config : invalid) {
+            try {
+                store.load(new StringReader("2a24 = Model X\n" + config));
+                fail(config);
+            } catch (IOException expected) {
+            }
+        }
+        assertArrayEquals(utf8("SN-0017"), store.get(BasicProfile.SERIAL_NUMBER));
+        assertArrayEquals(utf8(BasicProfile.MODEL_NUMBER_VALUE), store.get(BasicProfile.MODEL_NUMBER));
+        assertEquals(1, store.getVersion());
+    }
+
+    @Test
+    public void readersAreNotBlockedByReloads() throws Exception {
+        final AttributeValueStore store = new AttributeValueStore(BasicProfile.getDefaultValues());
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> invalid = new AtomicReference<>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    byte[] value = store.get(BasicProfile.SERIAL_NUMBER);
+                    String serial = value == null ? null : new String(value, StandardCharsets.UTF_8);
+                    if (serial == null
+                            || !(serial.equals(BasicProfile.SERIAL_NUMBER_VALUE) || serial.startsWith("S"))) {
+                        invalid.set(serial);
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 2000; i++) {
+            store.load(new StringReader("2a24 = M" + i + "\n2a25 = S" + i + "\n"));
+        }
+        done.set(true);
+        reader.join();
+        assertNull(invalid.get());
+        assertEquals(2000, store.getVersion());
+    }
+
+    @Test
+    public void readsDoNotAllocate() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        AttributeValueStore store = new AttributeValueStore(BasicProfile.getDefaultValues());
+        long length = 0;
+        for (int i = 0; i < 20000; i++) {
+            length += store.get(BasicProfile.MODEL_NUMBER).length;
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100000; i++) {
+            length += store.get(BasicProfile.MODEL_NUMBER).length;
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assertTrue(length > 0);
+        assertTrue("allocated " + allocated, allocated < 4096);
+    }
+}
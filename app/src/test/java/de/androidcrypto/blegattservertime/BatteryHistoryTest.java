@@ -0,0 +1,143 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ring buffer, encoding and long reads of {@link BatteryHistory}.
+ */
+public class BatteryHistoryTest {
+
+    /* 2022-10-17 10:15:30 UTC */
+    private static final long START = 1666001730000L;
+
+    /**
+     * Decode the value into alternating seconds and levels.
+     */
+    private static List<Long> decode(byte[] value) {
+        List<Long> entries = new ArrayList<>();
+        int[] position = {0};
+        assertEquals(BatteryHistory.FORMAT_VERSION, value[position[0]++]);
+        long count = readVarint(value, position);
+        if (count == 0) return entries;
+        long seconds = 0;
+        for (int i = 0; i < 4; i++) {
+            seconds |= (value[position[0]++] & 0xFFL) << (8 * i);
+        }
+        long level = value[position[0]++];
+        entries.add(seconds);
+        entries.add(level);
+        for (int i = 1; i < count; i++) {
+            seconds += readVarint(value, position);
+            long zigzag = readVarint(value, position);
+            level += (zigzag >>> 1) ^ -(zigzag & 1);
+            entries.add(seconds);
+            entries.add(level);
+        }
+        assertEquals(value.length, position[0]);
+        return entries;
+    }
+
+    private static long readVarint(byte[] value, int[] position) {
+        long result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = value[position[0]++];
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+
+    @Test
+    public void storesOnlyChanges() {
+        BatteryHistory history = new BatteryHistory(8);
+        assertTrue(history.record(START, 80));
+        assertFalse(history.record(START + 5000, 80));
+        assertTrue(history.record(START + 10000, 79));
+        assertFalse(history.record(START + 15000, -1));
+        assertEquals(2, history.size());
+        assertEquals(START + 10000, history.getTime(1));
+        assertEquals(79, history.getLevel(1));
+    }
+
+    @Test
+    public void overwritesTheOldestEntry() {
+        BatteryHistory history = new BatteryHistory(4);
+        for (int i = 0; i < 10; i++) {
+            history.record(START + i * 1000L, 50 + i);
+        }
+        assertEquals(4, history.size());
+        assertEquals(56, history.getLevel(0));
+        assertEquals(59, history.getLevel(3));
+        assertEquals(START + 6000, history.getTime(0));
+    }
+
+    @Test
+    public void encodesDeltas() {
+        BatteryHistory history = new BatteryHistory(8);
+        assertArrayEquals(new byte[]{1, 0}, history.getEncoded());
+        history.record(START, 80);
+        history.record(START + 5000, 79);
+        history.record(START + 300000, 81);
+        byte[] value = history.getEncoded();
+        // header, then 2 bytes for a small step and 3 for 295 s up
+        assertEquals(1 + 1 + 4 + 1 + 2 + 3, value.length);
+        long seconds = START / 1000;
+        assertEquals(Arrays.asList(seconds, 80L, seconds + 5, 79L, seconds + 300, 81L), decode(value));
+        // encoded once per change
+        assertSame(value, history.getEncoded());
+        history.record(START + 305000, 82);
+        assertNotSame(value, history.getEncoded());
+    }
+
+    @Test
+    public void windowKeepsTheNewestEntriesThatFit() {
+        BatteryHistory history = new BatteryHistory(1024);
+        for (int i = 0; i < 1000; i++) {
+            // alternate, so every sample is stored, a minute apart
+            history.record(START + i * 60000L, i % 2 == 0 ? 40 : 41);
+        }
+        byte[] value = history.getEncoded();
+        assertTrue(value.length <= BatteryHistory.MAX_VALUE_LENGTH);
+        assertTrue(value.length > BatteryHistory.MAX_VALUE_LENGTH - 3);
+        List<Long> entries = decode(value);
+        // the newest entry is the last one
+        assertEquals(START / 1000 + 999 * 60, (long) entries.get(entries.size() - 2));
+        assertEquals(41L, (long) entries.get(entries.size() - 1));
+        assertTrue(entries.size() / 2 > 200);
+    }
+
+    @Test
+    public void catchesUpWithOneLongRead() {
+        BatteryHistory history = new BatteryHistory();
+        for (int i = 0; i < 300; i++) {
+            history.record(START + i * 5000L, 20 + i % 60);
+        }
+        GattServerCore core = new GattServerCore(new EventLog(16, EventLog.WARN));
+        GattProfile.Builder profile = GattProfile.builder();
+        BatteryProfile.addService(profile, new BatteryMonitor(new SimulatedBatteryLevelSource(1, 40, 3, 0.1)),
+                history);
+        profile.build().install(core);
+        FakeGattServerPort port = new FakeGattServerPort(core);
+        core.attach(port);
+        FakeGattServerPort.FakeCentral central = port.connect("00:00:00:00:00:01");
+
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        int chunk = central.getMtu() - 1;
+        while (true) {
+            FakeGattServerPort.Response response = central.read(BatteryProfile.BATTERY_LEVEL_HISTORY, value.size());
+            assertEquals(0, response.status);
+            value.write(response.value, 0, response.value.length);
+            if (response.value.length < chunk) break;
+        }
+        assertArrayEquals(history.getEncoded(), value.toByteArray());
+    }
+}
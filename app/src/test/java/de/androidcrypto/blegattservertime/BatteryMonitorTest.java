@@ -0,0 +1,112 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+/**
+ * Notification decisions of {@link BatteryMonitor} and the level sources.
+ */
+public class BatteryMonitorTest {
+
+    @Test
+    public void notifiesOnlyOnChange() {
+        BatteryMonitor monitor = new BatteryMonitor(new ReplayBatteryLevelSource(50, 50, 50, 49, 49, 48));
+        assertTrue(monitor.sample());
+        assertFalse(monitor.sample());
+        assertFalse(monitor.sample());
+        assertTrue(monitor.sample());
+        assertEquals(49, monitor.getBatteryLevel());
+        assertFalse(monitor.sample());
+        assertTrue(monitor.sample());
+        assertEquals(3, monitor.getNotificationCount());
+        assertEquals(6, monitor.getSampleCount());
+    }
+
+    @Test
+    public void minimumDeltaSuppressesSmallSteps() {
+        BatteryMonitor monitor = new BatteryMonitor(new ReplayBatteryLevelSource(60, 59, 58, 57, 56, 55), 5, 0);
+        assertTrue(monitor.sample());
+        for (int i = 0; i < 4; i++) {
+            assertFalse(monitor.sample());
+        }
+        // the level is still served, only the notification is skipped
+        assertEquals(56, monitor.getBatteryLevel());
+        assertTrue(monitor.sample());
+    }
+
+    @Test
+    public void warnLevelCrossingUsesHysteresis() {
+        BatteryMonitor monitor = new BatteryMonitor(
+                new ReplayBatteryLevelSource(25, 20, 21, 20, 21, 22, 23, 22), 10, 3);
+        monitor.setBatteryLevelWarn(20);
+        assertTrue(monitor.sample());
+        assertFalse(monitor.isLow());
+        // drops to the warn level, notified although the delta is small
+        assertTrue(monitor.sample());
+        assertTrue(monitor.isLow());
+        // wobbling inside the band neither leaves low nor notifies
+        assertFalse(monitor.sample());
+        assertFalse(monitor.sample());
+        assertFalse(monitor.sample());
+        assertFalse(monitor.sample());
+        assertTrue(monitor.isLow());
+        // warn + hysteresis is reached
+        assertTrue(monitor.sample());
+        assertFalse(monitor.isLow());
+        assertFalse(monitor.sample());
+    }
+
+    @Test
+    public void writingTheWarnLevelNotifiesWithTheNextSample() {
+        BatteryMonitor monitor = new BatteryMonitor(new ReplayBatteryLevelSource(30));
+        assertTrue(monitor.sample());
+        assertFalse(monitor.sample());
+        monitor.setBatteryLevelWarn(35);
+        assertTrue(monitor.sample());
+        assertTrue(monitor.isLow());
+        monitor.setBatteryLevelWarn(0);
+        assertTrue(monitor.sample());
+        assertFalse(monitor.isLow());
+    }
+
+    @Test
+    public void unknownLevelKeepsTheLastOne() {
+        BatteryMonitor monitor = new BatteryMonitor(new ReplayBatteryLevelSource(70, -1, 70));
+        assertTrue(monitor.sample());
+        assertFalse(monitor.sample());
+        assertEquals(70, monitor.getBatteryLevel());
+        assertFalse(monitor.sample());
+    }
+
+    @Test
+    public void replayIsReadFromText() throws IOException {
+        ReplayBatteryLevelSource source = ReplayBatteryLevelSource.read(
+                new StringReader("# recorded\n80\n\n 79 \n78\n"));
+        assertEquals(80, source.readLevel());
+        assertEquals(79, source.readLevel());
+        assertEquals(78, source.readLevel());
+        assertEquals(80, source.readLevel());
+    }
+
+    @Test(expected = IOException.class)
+    public void replayRejectsInvalidLevels() throws IOException {
+        ReplayBatteryLevelSource.read(new StringReader("80\n101\n"));
+    }
+
+    @Test
+    public void slowSimulationCutsNotifications() {
+        BatteryMonitor monitor = new BatteryMonitor(new SimulatedBatteryLevelSource(1, 50, 3, 0.1));
+        for (int i = 0; i < 10000; i++) {
+            monitor.sample();
+            int level = monitor.getBatteryLevel();
+            assertTrue(level >= 0 && level <= 100);
+        }
+        // one notification per 5 s tick before, now at most about one in ten
+        assertTrue(monitor.getNotificationCount() < 1000 + 100);
+        assertTrue(monitor.getNotificationCount() > 0);
+    }
+}
@@ -0,0 +1,224 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes, batched flushes and recovery of {@link ConfigStore}.
+ */
+public class ConfigStoreTest {
+
+    private static final UUID WARN = BatteryProfile.BATTERY_LEVEL_WARN;
+    private static final UUID OTHER = UUID.fromString("a5f00001-1b2c-4d5e-8f90-0123456789ab");
+    private static final long FLUSH_DELAY = 1000;
+
+    private File mFile;
+    private ManualScheduler mScheduler;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("config", ".bin");
+        mScheduler = new ManualScheduler();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private ConfigStore open(int slotCount) throws IOException {
+        return ConfigStore.open(mFile, slotCount, mScheduler, FLUSH_DELAY);
+    }
+
+    @Test
+    public void valuesSurviveReopening() throws IOException {
+        ConfigStore store = open(4);
+        assertNull(store.get(WARN));
+        assertTrue(store.put(WARN, new byte[]{20}));
+        assertTrue(store.put(OTHER, new byte[]{1, 2, 3}));
+        assertTrue(store.put(WARN, new byte[]{15}));
+        store.close();
+
+        store = open(4);
+        assertEquals(2, store.size());
+        assertArrayEquals(new byte[]{15}, store.get(WARN));
+        assertArrayEquals(new byte[]{1, 2, 3}, store.get(OTHER));
+        assertEquals(0, store.getDroppedSlots());
+        store.close();
+    }
+
+    @Test
+    public void writesAreFlushedInBatches() throws IOException {
+        ConfigStore store = open(4);
+        for (int i = 0; i < 10; i++) {
+            store.put(WARN, new byte[]{(byte) i});
+        }
+        assertEquals(0, store.getFlushCount());
+        assertEquals(1, mScheduler.getPendingCount());
+        mScheduler.advance(FLUSH_DELAY);
+        assertEquals(1, store.getFlushCount());
+
+        // an unchanged value is not written again
+        store.put(WARN, new byte[]{9});
+        assertEquals(0, mScheduler.getPendingCount());
+        store.close();
+        assertEquals(1, store.getFlushCount());
+    }
+
+    @Test
+    public void closeFlushesPendingWrites() throws IOException {
+        ConfigStore store = open(4);
+        store.put(WARN, new byte[]{30});
+        store.close();
+        assertEquals(1, store.getFlushCount());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void removedValueIsGoneAfterReopening() throws IOException {
+        ConfigStore store = open(4);
+        store.put(WARN, new byte[]{30});
+        store.put(OTHER, new byte[]{1});
+        store.remove(WARN);
+        assertNull(store.get(WARN));
+        store.close();
+
+        store = open(4);
+        assertNull(store.get(WARN));
+        assertEquals(1, store.size());
+        store.close();
+    }
+
+    @Test
+    public void tornSlotIsDropped() throws IOException {
+        ConfigStore store = open(4);
+        store.put(WARN, new byte[]{30});
+        store.put(OTHER, new byte[]{1, 2});
+        store.close();
+
+        // flip a value byte of the first slot
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.seek(16 + 24);
+        raf.write(31);
+        raf.close();
+
+        store = open(4);
+        assertEquals(1, store.getDroppedSlots());
+        assertNull(store.get(WARN));
+        assertArrayEquals(new byte[]{1, 2}, store.get(OTHER));
+        // the slot is free again
+        assertTrue(store.put(WARN, new byte[]{40}));
+        store.close();
+    }
+
+    /**
+     * Replace the file with the old one, and the slot with the one from the
+     * new file, as if the power was lost while the slot was written.
+     */
+    private void restoreSlot(byte[] oldFile, int slot, boolean torn) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        byte[] slotBytes = new byte[64];
+        raf.seek(16 + slot * 64);
+        raf.readFully(slotBytes);
+        if (torn) {
+            slotBytes[24] ^= 0x01;
+        }
+        raf.seek(0);
+        raf.write(oldFile);
+        raf.seek(16 + slot * 64);
+        raf.write(slotBytes);
+        raf.close();
+    }
+
+    private byte[] readFile() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        byte[] data = new byte[(int) raf.length()];
+        raf.readFully(data);
+        raf.close();
+        return data;
+    }
+
+    @Test
+    public void tornUpdateKeepsTheOldValue() throws IOException {
+        ConfigStore store = open(4);
+        store.put(WARN, new byte[]{30});
+        store.close();
+        byte[] before = readFile();
+
+        store = open(4);
+        store.put(WARN, new byte[]{31});
+        store.close();
+        restoreSlot(before, 1, true);
+
+        store = open(4);
+        assertEquals(1, store.getDroppedSlots());
+        assertArrayEquals(new byte[]{30}, store.get(WARN));
+        store.close();
+    }
+
+    @Test
+    public void completeUpdateWinsOverTheOldSlot() throws IOException {
+        ConfigStore store = open(2);
+        store.put(WARN, new byte[]{30});
+        store.close();
+        byte[] before = readFile();
+
+        store = open(2);
+        store.put(WARN, new byte[]{31});
+        store.close();
+        // the old slot was not cleared yet
+        restoreSlot(before, 1, false);
+
+        store = open(2);
+        assertEquals(0, store.getDroppedSlots());
+        assertArrayEquals(new byte[]{31}, store.get(WARN));
+        // the old slot is free again
+        assertTrue(store.put(OTHER, new byte[]{1}));
+        store.close();
+    }
+
+    @Test
+    public void otherLayoutIsReformatted() throws IOException {
+        ConfigStore store = open(4);
+        store.put(WARN, new byte[]{30});
+        store.close();
+
+        store = open(8);
+        assertEquals(0, store.size());
+        store.close();
+    }
+
+    @Test
+    public void fullStoreRejectsNewKeys() throws IOException {
+        ConfigStore store = open(1);
+        assertTrue(store.put(WARN, new byte[]{30}));
+        assertFalse(store.put(OTHER, new byte[]{1}));
+        // an existing key is still updated
+        assertTrue(store.put(WARN, new byte[]{31}));
+        store.close();
+    }
+
+    @Test
+    public void rejectsInvalidValues() throws IOException {
+        ConfigStore store = open(4);
+        try {
+            store.put(WARN, new byte[ConfigStore.MAX_VALUE_LENGTH + 1]);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            store.put(WARN, new byte[0]);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        store.close();
+    }
+}
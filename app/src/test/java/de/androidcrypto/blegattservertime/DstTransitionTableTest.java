@@ -0,0 +1,88 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Transition search and Time with DST encoding of {@link DstTransitionTable}.
+ */
+public class DstTransitionTableTest {
+
+    /* 2022-10-17 10:15:30.400 UTC */
+    private static final long NOW = 1666001730400L;
+    /* 2022-10-30 01:00 UTC, end of DST in the EU */
+    private static final long EU_DST_END = 1667091600000L;
+    /* 2023-03-26 01:00 UTC, start of DST in the EU */
+    private static final long EU_DST_START = 1679792400000L;
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    public void findsTheNextEuropeanTransitions() {
+        DstTransitionTable table = DstTransitionTable.build(TimeZone.getTimeZone("Europe/Berlin"), NOW);
+        assertEquals(4, table.getTransitionCount());
+        assertEquals(EU_DST_END, table.getNextTransition(NOW));
+        // 2022-10-30 03:00:00 summer time, standard time afterwards
+        assertArrayEquals(bytes(0xE6, 0x07, 10, 30, 3, 0, 0, 0x0), table.getNextChange(NOW));
+        // on the transition the next one is already due
+        assertEquals(EU_DST_START, table.getNextTransition(EU_DST_END));
+        // 2023-03-26 02:00:00 standard time, one hour of DST afterwards
+        assertArrayEquals(bytes(0xE7, 0x07, 3, 26, 2, 0, 0, 0x4), table.getNextChange(EU_DST_END));
+        assertSame(table.getNextChange(NOW), table.getNextChange(NOW + 1000));
+    }
+
+    @Test
+    public void encodesHalfHourDst() {
+        // DST starts on 2022-10-02 there, with half an hour
+        long september = NOW - 30L * 86400000L;
+        DstTransitionTable table = DstTransitionTable.build(TimeZone.getTimeZone("Australia/Lord_Howe"), september);
+        assertArrayEquals(bytes(0xE6, 0x07, 10, 2, 2, 0, 0, 0x2), table.getNextChange(september));
+    }
+
+    @Test
+    public void zoneWithoutTransitionsIsUnknown() {
+        DstTransitionTable table = DstTransitionTable.build(TimeZone.getTimeZone("UTC"), NOW);
+        assertEquals(0, table.getTransitionCount());
+        assertArrayEquals(bytes(0, 0, 0, 0, 0, 0, 0, 0xFF), table.getNextChange(NOW));
+        assertEquals(Long.MAX_VALUE, table.getNextTransition(NOW));
+    }
+
+    @Test
+    public void transitionsMatchTheZoneRules() {
+        String[] zones = {"Europe/Berlin", "America/New_York", "America/Santiago", "Pacific/Chatham"};
+        for (String id : zones) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            Calendar calendar = Calendar.getInstance(zone);
+            DstTransitionTable table = DstTransitionTable.build(zone, NOW);
+            long timestamp = NOW;
+            int count = 0;
+            while ((timestamp = table.getNextTransition(timestamp)) != Long.MAX_VALUE) {
+                assertTrue(id, zone.getOffset(timestamp - 1) != zone.getOffset(timestamp));
+                calendar.setTimeInMillis(timestamp);
+                assertEquals(id, TimeProfile.getDstOffsetCode(calendar.get(Calendar.DST_OFFSET) / 1800000),
+                        table.getNextChange(timestamp - 1)[7]);
+                count++;
+            }
+            assertEquals(id, 4, count);
+        }
+    }
+
+    @Test
+    public void coversTheHorizon() {
+        DstTransitionTable table = DstTransitionTable.build(TimeZone.getTimeZone("Europe/Berlin"), NOW);
+        assertTrue(table.covers(NOW));
+        assertTrue(table.covers(NOW + DstTransitionTable.HORIZON_MILLIS - 1));
+        assertFalse(table.covers(NOW + DstTransitionTable.HORIZON_MILLIS));
+        assertFalse(table.covers(NOW - 1));
+    }
+}
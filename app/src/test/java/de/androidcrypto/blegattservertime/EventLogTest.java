@@ -0,0 +1,102 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EventLogTest {
+
+    private static class CollectingSink implements EventLog.Sink {
+        final List<String> lines = new ArrayList<>();
+
+        @Override
+        public void onEvent(long timeMillis, int level, CharSequence text) {
+            lines.add(text.toString());
+        }
+    }
+
+    @Test
+    public void rendersArgumentsWhenDrained() {
+        EventLog log = new EventLog(16, EventLog.DEBUG);
+        UUID uuid = TimeProfile.CURRENT_TIME;
+        log.log(EventLog.INFO, "Read Characteristic:", uuid);
+        log.log(EventLog.INFO, "subscribers:", 3);
+        log.log(EventLog.DEBUG, "write:", uuid, new byte[]{1, 0});
+
+        CollectingSink sink = new CollectingSink();
+        assertEquals(3, log.drain(sink));
+        assertEquals("Read Characteristic: " + uuid, sink.lines.get(0));
+        assertEquals("subscribers: 3", sink.lines.get(1));
+        assertEquals("write: " + uuid + " [1, 0]", sink.lines.get(2));
+        assertEquals(0, log.drain(sink));
+    }
+
+    @Test
+    public void disabledLevelsAreNotRecorded() {
+        EventLog log = new EventLog(16, EventLog.INFO);
+        log.log(EventLog.DEBUG, "hidden");
+        assertFalse(log.isEnabled(EventLog.DEBUG));
+        assertEquals(0, log.drain(new CollectingSink()));
+    }
+
+    @Test
+    public void keepsNewestEventsWhenFull() {
+        EventLog log = new EventLog(8, EventLog.DEBUG);
+        for (int i = 0; i < 20; i++) {
+            log.log(EventLog.INFO, "event", i);
+        }
+        CollectingSink sink = new CollectingSink();
+        assertEquals(8, log.drain(sink));
+        assertEquals("event 12", sink.lines.get(0));
+        assertEquals("event 19", sink.lines.get(7));
+        assertEquals(12, log.getLostCount());
+    }
+
+    @Test
+    public void requestsOneDrainPerBatch() {
+        EventLog log = new EventLog(16, EventLog.DEBUG);
+        final AtomicInteger requests = new AtomicInteger();
+        log.setDrainRequest(new Runnable() {
+            @Override
+            public void run() {
+                requests.incrementAndGet();
+            }
+        });
+        log.log(EventLog.INFO, "a");
+        log.log(EventLog.INFO, "b");
+        assertEquals(1, requests.get());
+        log.drain(new CollectingSink());
+        log.log(EventLog.INFO, "c");
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void concurrentWritersDoNotCorruptEvents() throws Exception {
+        final EventLog log = new EventLog(1 << 16, EventLog.DEBUG);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        log.log(EventLog.INFO, "event", i);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        CollectingSink sink = new CollectingSink();
+        assertEquals(40000, log.drain(sink));
+        for (String line : sink.lines) {
+            assertTrue(line, line.startsWith("event "));
+        }
+    }
+}
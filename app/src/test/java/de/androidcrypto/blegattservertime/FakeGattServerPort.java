@@ -0,0 +1,308 @@
+package de.androidcrypto.blegattservertime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process {@link GattServerPort} that simulates connected centrals, so the
+ * {@link GattServerCore} can be exercised on a plain JVM.
+ *
+ * Requests made through a {@link FakeCentral} call straight into the core and
+ * return the response it sent. Like the Android stack, responses are cut to
+ * MTU - 1 bytes and notifications to MTU - 3 bytes, and a device only accepts
+ * one outstanding notification. onNotificationSent is delivered after a fixed
+ * delay on the given executor, or when {@link #completePendingNotifications()}
+ * is called if there is none.
+ */
+public class FakeGattServerPort implements GattServerPort {
+
+    public static final int DEFAULT_MTU = 23;
+    private static final int GATT_SUCCESS = 0;
+
+    /**
+     * A response sent by the core.
+     */
+    public static final class Response {
+        public final int status;
+        public final int offset;
+        public final byte[] value;
+
+        Response(int status, int offset, byte[] value) {
+            this.status = status;
+            this.offset = offset;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A notification received by a central.
+     */
+    public static final class Notification {
+        public final UUID characteristic;
+        public final byte[] value;
+        public final boolean confirm;
+        public final long receivedNanos;
+
+        Notification(UUID characteristic, byte[] value, boolean confirm, long receivedNanos) {
+            this.characteristic = characteristic;
+            this.value = value;
+            this.confirm = confirm;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+
+    /**
+     * Called for every notification a central receives.
+     */
+    public interface NotificationListener {
+        void onNotification(FakeCentral central, Notification notification);
+    }
+
+    private final GattServerCore mCore;
+    private final ScheduledExecutorService mExecutor;
+    private final long mNotificationDelayMicros;
+    private final Map<String, FakeCentral> mCentrals = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<FakeCentral> mPendingCompletions = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mRequestIds = new AtomicInteger();
+    private final Set<String> mBonded = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile NotificationListener mNotificationListener;
+    private volatile boolean mClosed;
+
+    /**
+     * Create a port that completes notifications only through
+     * {@link #completePendingNotifications()}.
+     */
+    public FakeGattServerPort(GattServerCore core) {
+        this(core, null, 0);
+    }
+
+    /**
+     * Create a port that reports every notification as sent after the delay.
+     */
+    public FakeGattServerPort(GattServerCore core, ScheduledExecutorService executor,
+                              long notificationDelayMicros) {
+        mCore = core;
+        mExecutor = executor;
+        mNotificationDelayMicros = notificationDelayMicros;
+    }
+
+    public void setNotificationListener(NotificationListener listener) {
+        mNotificationListener = listener;
+    }
+
+    /**
+     * Connect a new central with the given address.
+     */
+    public FakeCentral connect(String address) {
+        FakeCentral central = new FakeCentral(address);
+        mCentrals.put(address, central);
+        mCore.onConnectionStateChange(address, GATT_SUCCESS, android.bluetooth.BluetoothProfile.STATE_CONNECTED);
+        return central;
+    }
+
+    /**
+     * Deliver onNotificationSent for every notification outstanding at the
+     * time of the call. Notifications sent in response are left pending.
+     *
+     * @return the number of completions delivered
+     */
+    public int completePendingNotifications() {
+        int pending = mPendingCompletions.size();
+        int completed = 0;
+        FakeCentral central;
+        while (completed < pending && (central = mPendingCompletions.poll()) != null) {
+            central.complete();
+            completed++;
+        }
+        return completed;
+    }
+
+    @Override
+    public boolean sendResponse(String device, int requestId, int status, int offset, byte[] value) {
+        FakeCentral central = mCentrals.get(device);
+        if (mClosed || central == null) return false;
+        central.mResponses.put(requestId, new Response(status, offset, truncate(value, central.mMtu - 1)));
+        return true;
+    }
+
+    @Override
+    public boolean notifyCharacteristicChanged(String device, UUID characteristic, byte[] value, boolean confirm) {
+        final FakeCentral central = mCentrals.get(device);
+        if (mClosed || central == null) return false;
+        if (!central.mOutstanding.compareAndSet(false, true)) {
+            // the stack only takes one notification at a time
+            return false;
+        }
+        Notification notification = new Notification(characteristic, truncate(value, central.mMtu - 3),
+                confirm, System.nanoTime());
+        central.mNotifications.add(notification);
+        NotificationListener listener = mNotificationListener;
+        if (listener != null) {
+            listener.onNotification(central, notification);
+        }
+        if (mExecutor != null) {
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    central.complete();
+                }
+            }, mNotificationDelayMicros, TimeUnit.MICROSECONDS);
+        } else {
+            mPendingCompletions.add(central);
+        }
+        return true;
+    }
+
+    /**
+     * Mark the address as bonded, or not, for the next connections.
+     */
+    public void setBonded(String address, boolean bonded) {
+        if (bonded) {
+            mBonded.add(address);
+        } else {
+            mBonded.remove(address);
+        }
+    }
+
+    @Override
+    public boolean isBonded(String device) {
+        return mBonded.contains(device);
+    }
+
+    @Override
+    public void cancelConnection(String device) {
+        FakeCentral central = mCentrals.get(device);
+        if (central != null) {
+            central.disconnect();
+        }
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+    }
+
+    private static byte[] truncate(byte[] value, int length) {
+        if (value == null || value.length <= length) return value;
+        byte[] truncated = new byte[length];
+        System.arraycopy(value, 0, truncated, 0, length);
+        return truncated;
+    }
+
+    /**
+     * A simulated central connected to the server.
+     */
+    public class FakeCentral {
+        private final String mAddress;
+        private volatile int mMtu = DEFAULT_MTU;
+        private final Map<Integer, Response> mResponses = new ConcurrentHashMap<>();
+        private final List<Notification> mNotifications = Collections.synchronizedList(new ArrayList<Notification>());
+        private final AtomicBoolean mOutstanding = new AtomicBoolean();
+
+        FakeCentral(String address) {
+            mAddress = address;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public int getMtu() {
+            return mMtu;
+        }
+
+        public void requestMtu(int mtu) {
+            mMtu = mtu;
+            mCore.onMtuChanged(mAddress, mtu);
+        }
+
+        public Response read(UUID characteristic) {
+            return read(characteristic, 0);
+        }
+
+        public Response read(UUID characteristic, int offset) {
+            int requestId = mRequestIds.incrementAndGet();
+            mCore.onCharacteristicReadRequest(mAddress, requestId, offset, characteristic);
+            return mResponses.remove(requestId);
+        }
+
+        public Response write(UUID characteristic, byte[] value) {
+            return write(characteristic, 0, value);
+        }
+
+        public Response write(UUID characteristic, int offset, byte[] value) {
+            int requestId = mRequestIds.incrementAndGet();
+            mCore.onCharacteristicWriteRequest(mAddress, requestId, characteristic, false, true, offset, value);
+            return mResponses.remove(requestId);
+        }
+
+        public Response prepareWrite(UUID characteristic, int offset, byte[] value) {
+            int requestId = mRequestIds.incrementAndGet();
+            mCore.onCharacteristicWriteRequest(mAddress, requestId, characteristic, true, true, offset, value);
+            return mResponses.remove(requestId);
+        }
+
+        public Response prepareDescriptorWrite(UUID characteristic, UUID descriptor, int offset, byte[] value) {
+            int requestId = mRequestIds.incrementAndGet();
+            mCore.onDescriptorWriteRequest(mAddress, requestId, characteristic, descriptor, true, true, offset, value);
+            return mResponses.remove(requestId);
+        }
+
+        public Response executeWrite(boolean execute) {
+            int requestId = mRequestIds.incrementAndGet();
+            mCore.onExecuteWrite(mAddress, requestId, execute);
+            return mResponses.remove(requestId);
+        }
+
+        public Response readDescriptor(UUID characteristic, UUID descriptor) {
+            int requestId = mRequestIds.incrementAndGet();
+            mCore.onDescriptorReadRequest(mAddress, requestId, 0, characteristic, descriptor);
+            return mResponses.remove(requestId);
+        }
+
+        public Response writeDescriptor(UUID characteristic, UUID descriptor, byte[] value) {
+            int requestId = mRequestIds.incrementAndGet();
+            mCore.onDescriptorWriteRequest(mAddress, requestId, characteristic, descriptor, false, true, 0, value);
+            return mResponses.remove(requestId);
+        }
+
+        public Response enableNotifications(UUID characteristic) {
+            return writeDescriptor(characteristic, BasicProfile.CLIENT_CONFIG, new byte[]{1, 0});
+        }
+
+        public Response disableNotifications(UUID characteristic) {
+            return writeDescriptor(characteristic, BasicProfile.CLIENT_CONFIG, new byte[]{0, 0});
+        }
+
+        public void disconnect() {
+            mCentrals.remove(mAddress);
+            mCore.onConnectionStateChange(mAddress, GATT_SUCCESS,
+                    android.bluetooth.BluetoothProfile.STATE_DISCONNECTED);
+        }
+
+        /**
+         * Notifications received so far, oldest first.
+         */
+        public List<Notification> getNotifications() {
+            synchronized (mNotifications) {
+                return new ArrayList<>(mNotifications);
+            }
+        }
+
+        void complete() {
+            if (mOutstanding.compareAndSet(true, false)) {
+                mCore.onNotificationSent(mAddress, GATT_SUCCESS);
+            }
+        }
+    }
+}
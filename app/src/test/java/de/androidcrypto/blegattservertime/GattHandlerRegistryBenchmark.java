@@ -0,0 +1,118 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the dispatch cost of {@link GattHandlerRegistry} against the former
+ * linear UUID comparison chain while the number of registered characteristics
+ * grows from 8 to 512. Timing depends on the machine, so the comparison only
+ * runs with -Dbenchmark=true; results are printed to stdout.
+ */
+public class GattHandlerRegistryBenchmark {
+
+    private static final int[] SIZES = {8, 32, 128, 512};
+    private static final int LOOKUPS = 2_000_000;
+    private static final int ROUNDS = 5;
+
+    private static final CharacteristicHandler HANDLER = new CharacteristicHandler() {
+        @Override
+        public byte[] onRead(String device) {
+            return null;
+        }
+    };
+
+    @Test
+    public void dispatchCostStaysFlat() {
+        if (!Boolean.getBoolean("benchmark")) return;
+        double[] registryNanos = new double[SIZES.length];
+        for (int i = 0; i < SIZES.length; i++) {
+            List<UUID> uuids = createUuids(SIZES[i]);
+            GattHandlerRegistry registry = new GattHandlerRegistry();
+            for (UUID uuid : uuids) {
+                registry.registerCharacteristic(uuid, HANDLER);
+            }
+            // the last characteristic is the worst case for the comparison chain
+            UUID target = new UUID(uuids.get(uuids.size() - 1).getMostSignificantBits(),
+                    uuids.get(uuids.size() - 1).getLeastSignificantBits());
+
+            registryNanos[i] = best(new Lookup() {
+                @Override
+                public boolean run() {
+                    return registry.getCharacteristicHandler(target) != null;
+                }
+            });
+            double chainNanos = best(new Lookup() {
+                @Override
+                public boolean run() {
+                    for (UUID uuid : uuids) {
+                        if (uuid.equals(target)) return true;
+                    }
+                    return false;
+                }
+            });
+            System.out.printf("characteristics=%d registry=%.2f ns/op chain=%.2f ns/op%n",
+                    SIZES[i], registryNanos[i], chainNanos);
+        }
+        // generous bound, the point is that the cost does not scale with the size
+        double smallest = registryNanos[0];
+        double largest = registryNanos[SIZES.length - 1];
+        assertTrue("registry dispatch grew from " + smallest + " to " + largest + " ns/op",
+                largest < smallest * 4 + 20);
+    }
+
+    @Test
+    public void descriptorsAreKeyedByCharacteristic() {
+        GattHandlerRegistry registry = new GattHandlerRegistry();
+        DescriptorHandler time = new DescriptorHandler() {
+            @Override
+            public byte[] onRead(String device) {
+                return new byte[]{1};
+            }
+        };
+        DescriptorHandler battery = new DescriptorHandler() {
+            @Override
+            public byte[] onRead(String device) {
+                return new byte[]{2};
+            }
+        };
+        registry.registerDescriptor(TimeProfile.CURRENT_TIME, TimeProfile.CLIENT_CONFIG, time);
+        registry.registerDescriptor(BatteryProfile.BATTERY_LEVEL, BatteryProfile.CLIENT_CONFIG, battery);
+
+        assertSame(time, registry.getDescriptorHandler(TimeProfile.CURRENT_TIME, TimeProfile.CLIENT_CONFIG));
+        assertSame(battery, registry.getDescriptorHandler(BatteryProfile.BATTERY_LEVEL, BatteryProfile.CLIENT_CONFIG));
+        assertNull(registry.getDescriptorHandler(TimeProfile.LOCAL_TIME_INFO, TimeProfile.CLIENT_CONFIG));
+    }
+
+    private interface Lookup {
+        boolean run();
+    }
+
+    private static double best(Lookup lookup) {
+        double best = Double.MAX_VALUE;
+        int hits = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                if (lookup.run()) hits++;
+            }
+            best = Math.min(best, (System.nanoTime() - start) / (double) LOOKUPS);
+        }
+        assertEquals(ROUNDS * LOOKUPS, hits);
+        return best;
+    }
+
+    private static List<UUID> createUuids(int count) {
+        List<UUID> uuids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            // 16-bit UUIDs on the Bluetooth base UUID, like the real profiles
+            uuids.add(UUID.fromString(String.format("0000%04x-0000-1000-8000-00805f9b34fb", 0x2a00 + i)));
+        }
+        return uuids;
+    }
+}
@@ -0,0 +1,198 @@
+package de.androidcrypto.blegattservertime;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Counters recorded by the server core and the {@link LatencyHistogram}.
+ */
+public class GattMetricsTest {
+
+    private static final String ADDRESS = "00:00:00:00:00:01";
+
+    private GattServerCore mCore;
+    private FakeGattServerPort mPort;
+    private GattMetrics mMetrics;
+
+    @Before
+    public void setUp() {
+        mCore = new GattServerCore(new EventLog(64, EventLog.WARN));
+        GattProfile.Builder profile = GattProfile.builder();
+        BasicProfile.addService(profile);
+        TimeProfile.addService(profile);
+        profile.build().install(mCore);
+        mPort = new FakeGattServerPort(mCore);
+        mCore.attach(mPort);
+        mMetrics = mCore.getMetrics();
+    }
+
+    @Test
+    public void countsRequestsPerCharacteristicAndDevice() {
+        FakeGattServerPort.FakeCentral central = mPort.connect(ADDRESS);
+        central.read(BasicProfile.MANUFACTURER_NAME);
+        central.read(BasicProfile.MANUFACTURER_NAME);
+        central.read(TimeProfile.CURRENT_TIME);
+        UUID unknown = UUID.randomUUID();
+        assertEquals(BluetoothGatt.GATT_FAILURE, central.read(unknown).status);
+
+        assertEquals(2, mMetrics.getCharacteristicStats(BasicProfile.MANUFACTURER_NAME).get(GattMetrics.READS));
+        assertEquals(1, mMetrics.getCharacteristicStats(unknown).get(GattMetrics.FAILURE_RESPONSES));
+        assertEquals(4, mMetrics.getDeviceStats(ADDRESS).get(GattMetrics.READS));
+        assertEquals(1, mMetrics.getDeviceStats(ADDRESS).get(GattMetrics.FAILURE_RESPONSES));
+        assertEquals(4, mMetrics.getTotal().get(GattMetrics.READS));
+        assertEquals(4, mMetrics.getTotal().getResponseLatency().getCount());
+        assertEquals(2, mMetrics.getCharacteristicStats(BasicProfile.MANUFACTURER_NAME)
+                .getResponseLatency().getCount());
+    }
+
+    @Test
+    public void countsOnlyChangesOfTheClientConfiguration() {
+        FakeGattServerPort.FakeCentral central = mPort.connect(ADDRESS);
+        central.enableNotifications(TimeProfile.CURRENT_TIME);
+        central.enableNotifications(TimeProfile.CURRENT_TIME);
+        central.disableNotifications(TimeProfile.CURRENT_TIME);
+        assertEquals(2, mMetrics.getCharacteristicStats(TimeProfile.CURRENT_TIME).get(GattMetrics.CCCD_CHANGES));
+        assertEquals(0, mMetrics.getCharacteristicStats(TimeProfile.CURRENT_TIME).get(GattMetrics.WRITES));
+    }
+
+    @Test
+    public void countsNotificationOutcomes() {
+        FakeGattServerPort.FakeCentral central = mPort.connect(ADDRESS);
+        central.enableNotifications(TimeProfile.CURRENT_TIME);
+        mCore.notifySubscribers(TimeProfile.CURRENT_TIME, new byte[]{1});
+        mPort.completePendingNotifications();
+        assertEquals(1, mMetrics.getCharacteristicStats(TimeProfile.CURRENT_TIME)
+                .get(GattMetrics.NOTIFICATIONS_SENT));
+
+        // one in flight, one queued that is dropped on disconnect
+        mCore.notifySubscribers(TimeProfile.CURRENT_TIME, new byte[]{2});
+        mCore.notifySubscribers(TimeProfile.CURRENT_TIME, new byte[]{3});
+        central.disconnect();
+        assertEquals(1, mMetrics.getTotal().get(GattMetrics.NOTIFICATIONS_DROPPED));
+        assertEquals(1, mMetrics.getCharacteristicStats(TimeProfile.CURRENT_TIME)
+                .get(GattMetrics.NOTIFICATIONS_DROPPED));
+        // the device entry goes away with the device
+        assertEquals(0, mMetrics.getDeviceStats(ADDRESS).get(GattMetrics.READS));
+    }
+
+    @Test
+    public void exportsJson() throws Exception {
+        FakeGattServerPort.FakeCentral central = mPort.connect(ADDRESS);
+        central.read(BasicProfile.MANUFACTURER_NAME);
+        StringBuilder json = new StringBuilder();
+        mMetrics.writeJson(json);
+        String text = json.toString();
+        assertTrue(text.startsWith("{\"startMillis\":"));
+        assertTrue(text.endsWith("}}"));
+        assertTrue(text.contains("\"" + BasicProfile.MANUFACTURER_NAME + "\":{\"reads\":1,"));
+        assertTrue(text.contains("\"" + ADDRESS + "\":{\"reads\":1,"));
+        assertTrue(text.contains("\"responseMicros\":{\"count\":1,"));
+        assertFalse(text.contains("\n"));
+    }
+
+    @Test
+    public void disconnectedDeviceIsExportedOnce() throws Exception {
+        FakeGattServerPort.FakeCentral central = mPort.connect(ADDRESS);
+        central.read(BasicProfile.MANUFACTURER_NAME);
+        central.disconnect();
+        central = mPort.connect(ADDRESS);
+        central.read(BasicProfile.MANUFACTURER_NAME);
+        central.disconnect();
+
+        String disconnected = "\"disconnectedDevices\":{\"" + ADDRESS + "\":{\"reads\":2,";
+        StringBuilder json = new StringBuilder();
+        mMetrics.writeJson(json);
+        assertTrue(json.toString().contains(disconnected));
+        json.setLength(0);
+        mMetrics.writeJson(json, true);
+        assertTrue(json.toString().contains(disconnected));
+        json.setLength(0);
+        mMetrics.writeJson(json, true);
+        assertTrue(json.toString().contains("\"disconnectedDevices\":{}"));
+    }
+
+    @Test
+    public void disconnectedDevicesAreBounded() throws Exception {
+        for (int i = 0; i <= GattMetrics.MAX_DISCONNECTED_DEVICES; i++) {
+            String address = String.format("02:00:00:00:%02X:%02X", i >> 8 & 0xff, i & 0xff);
+            mMetrics.increment(null, address, GattMetrics.READS);
+            mMetrics.removeDevice(address);
+        }
+        StringBuilder json = new StringBuilder();
+        mMetrics.writeJson(json);
+        // the oldest one was dropped
+        assertFalse(json.toString().contains("\"02:00:00:00:00:00\""));
+        assertTrue(json.toString().contains("\"02:00:00:00:00:01\""));
+    }
+
+    @Test
+    public void exportsPayloadCacheHitRatio() throws Exception {
+        TimePayloadCache cache = new TimePayloadCache(new TimeEncoder(TimeZone.getTimeZone("UTC")));
+        mMetrics.setPayloadCache(cache);
+        cache.getExactTime(1000, TimeProfile.ADJUST_NONE);
+        cache.getExactTime(1001, TimeProfile.ADJUST_NONE);
+        cache.getExactTime(1002, TimeProfile.ADJUST_NONE);
+        cache.getExactTime(1003, TimeProfile.ADJUST_NONE);
+        StringBuilder json = new StringBuilder();
+        mMetrics.writeJson(json);
+        assertTrue(json.toString().endsWith(",\"payloadCache\":{\"hits\":3,\"misses\":1,\"hitRatio\":0.75}}"));
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        UUID characteristic = TimeProfile.CURRENT_TIME;
+        // create the entries and warm up
+        for (int i = 0; i < 20000; i++) {
+            mMetrics.increment(characteristic, ADDRESS, GattMetrics.READS);
+            mMetrics.recordResponse(characteristic, ADDRESS, BluetoothGatt.GATT_FAILURE, i);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100000; i++) {
+            mMetrics.increment(characteristic, ADDRESS, GattMetrics.READS);
+            mMetrics.recordResponse(characteristic, ADDRESS, BluetoothGatt.GATT_FAILURE, i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        // a little slack for the measurement itself
+        assertTrue("allocated " + allocated, allocated < 4096);
+    }
+
+    @Test
+    public void histogramBucketsCoverEveryValue() {
+        long[] values = {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(bucket < LatencyHistogram.BUCKETS);
+            assertTrue(value <= LatencyHistogram.upperBound(bucket));
+            // within 12.5% of the value
+            assertTrue(LatencyHistogram.upperBound(bucket) - value <= value / 8);
+        }
+    }
+
+    @Test
+    public void histogramQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtQuantile(0.99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMaxNanos());
+        assertEquals(500500, histogram.getMeanNanos());
+        long p50 = histogram.getValueAtQuantile(0.5);
+        assertTrue(p50 >= 500000 && p50 <= 500000 * 9 / 8);
+        long p99 = histogram.getValueAtQuantile(0.99);
+        assertTrue(p99 >= 990000 && p99 <= 1000000);
+        assertEquals(1000000, histogram.getValueAtQuantile(1.0));
+    }
+}
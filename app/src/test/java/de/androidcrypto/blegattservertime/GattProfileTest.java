@@ -0,0 +1,146 @@
+package de.androidcrypto.blegattservertime;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the profile definition and the routing it installs agree.
+ */
+public class GattProfileTest {
+
+    private GattProfile mProfile;
+    private GattServerCore mCore;
+
+    @Before
+    public void setUp() {
+        GattProfile.Builder builder = GattProfile.builder();
+        BasicProfile.addService(builder);
+        TimeProfile.addService(builder);
+        BatteryProfile.addService(builder, new BatteryProfile.BatteryState() {
+            @Override
+            public int getBatteryLevel() {
+                return 80;
+            }
+
+            @Override
+            public int getBatteryLevelWarn() {
+                return 0;
+            }
+
+            @Override
+            public void setBatteryLevelWarn(int value) {
+            }
+        });
+        mProfile = builder.build();
+        mCore = new GattServerCore(new EventLog(16, EventLog.WARN));
+        mProfile.install(mCore);
+    }
+
+    @Test
+    public void everyCharacteristicIsRouted() {
+        GattHandlerRegistry registry = mCore.getHandlerRegistry();
+        int characteristics = 0;
+        for (GattProfile.Service service : mProfile.getServices()) {
+            for (GattProfile.Characteristic characteristic : service.characteristics) {
+                characteristics++;
+                assertSame(characteristic.handler, registry.getCharacteristicHandler(characteristic.uuid));
+                // a subscription handler exactly where the definition notifies
+                assertEquals(characteristic.uuid.toString(), characteristic.isNotifying(),
+                        registry.getDescriptorHandler(characteristic.uuid, GattProfile.CLIENT_CONFIG) != null);
+            }
+        }
+        assertEquals(characteristics, registry.getCharacteristicCount());
+        assertNull(registry.getDescriptorHandler(BasicProfile.DEVICE_NAME, GattProfile.CLIENT_CONFIG));
+        assertNotNull(registry.getDescriptorHandler(TimeProfile.CURRENT_TIME, GattProfile.CLIENT_CONFIG));
+        assertNotNull(registry.getDescriptorHandler(BatteryProfile.BATTERY_LEVEL, GattProfile.CLIENT_CONFIG));
+    }
+
+    @Test
+    public void serviceUuidsKeepTheirOrder() {
+        assertArrayEquals(new UUID[]{BasicProfile.DEVICE_INFO_SERVICE, TimeProfile.TIME_SERVICE,
+                BatteryProfile.BATTERY_SERVICE}, mProfile.getServiceUuids());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void clientConfigCannotBeDeclared() {
+        GattProfile.builder()
+                .service(TimeProfile.TIME_SERVICE)
+                .characteristic(TimeProfile.CURRENT_TIME, BluetoothGattCharacteristic.PROPERTY_READ,
+                        BluetoothGattCharacteristic.PERMISSION_READ, new CharacteristicHandler() {
+                            @Override
+                            public byte[] onRead(String device) {
+                                return new byte[0];
+                            }
+                        })
+                .descriptor(GattProfile.CLIENT_CONFIG, 0, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void characteristicsAreUnique() {
+        GattProfile.Builder builder = GattProfile.builder();
+        TimeProfile.addService(builder);
+        builder.service(UUID.randomUUID());
+        builder.characteristic(TimeProfile.CURRENT_TIME, 0, 0, new CharacteristicHandler() {
+            @Override
+            public byte[] onRead(String device) {
+                return null;
+            }
+        });
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void characteristicNeedsAService() {
+        GattProfile.builder().characteristic(UUID.randomUUID(), 0, 0, new CharacteristicHandler() {
+            @Override
+            public byte[] onRead(String device) {
+                return null;
+            }
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void descriptorNeedsAHandler() {
+        GattProfile.builder()
+                .service(UUID.randomUUID())
+                .characteristic(UUID.randomUUID(), BluetoothGattCharacteristic.PROPERTY_READ, 0,
+                        new CharacteristicHandler() {
+                            @Override
+                            public byte[] onRead(String device) {
+                                return null;
+                            }
+                        })
+                .descriptor(UUID.randomUUID(), 0, null);
+    }
+
+    @Test
+    public void builtProfileIsNotChangedByTheBuilder() {
+        CharacteristicHandler handler = new CharacteristicHandler() {
+            @Override
+            public byte[] onRead(String device) {
+                return null;
+            }
+        };
+        GattProfile.Builder builder = GattProfile.builder()
+                .service(UUID.randomUUID())
+                .characteristic(UUID.randomUUID(), BluetoothGattCharacteristic.PROPERTY_READ, 0, handler);
+        GattProfile profile = builder.build();
+        builder.descriptor(UUID.randomUUID(), 0, new DescriptorHandler() {
+                    @Override
+                    public byte[] onRead(String device) {
+                        return null;
+                    }
+                })
+                .characteristic(UUID.randomUUID(), BluetoothGattCharacteristic.PROPERTY_READ, 0, handler);
+
+        GattProfile.Service service = profile.getServices().get(0);
+        assertEquals(1, service.characteristics.size());
+        assertTrue(service.characteristics.get(0).descriptors.isEmpty());
+        assertEquals(2, builder.build().getServices().get(0).characteristics.size());
+    }
+}
@@ -0,0 +1,106 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the server core against {@link FakeGattServerPort}.
+ */
+public class GattServerCoreTest {
+
+    private GattServerCore mCore;
+    private FakeGattServerPort mPort;
+    private int mBatteryLevelWarn;
+
+    @Before
+    public void setUp() {
+        mCore = new GattServerCore(new EventLog(64, EventLog.WARN));
+        GattProfile.Builder profile = GattProfile.builder();
+        BasicProfile.addService(profile);
+        TimeProfile.addService(profile);
+        BatteryProfile.addService(profile, new BatteryProfile.BatteryState() {
+            @Override
+            public int getBatteryLevel() {
+                return 40;
+            }
+
+            @Override
+            public int getBatteryLevelWarn() {
+                return mBatteryLevelWarn;
+            }
+
+            @Override
+            public void setBatteryLevelWarn(int value) {
+                mBatteryLevelWarn = value;
+            }
+        });
+        profile.build().install(mCore);
+        mPort = new FakeGattServerPort(mCore);
+        mCore.attach(mPort);
+    }
+
+    @Test
+    public void readsAreDispatchedToProfiles() {
+        FakeGattServerPort.FakeCentral central = mPort.connect("00:00:00:00:00:01");
+        FakeGattServerPort.Response response = central.read(BasicProfile.MANUFACTURER_NAME);
+        assertEquals(0, response.status);
+        assertArrayEquals(BasicProfile.MANUFACTURER_NAME_VALUE.getBytes(java.nio.charset.StandardCharsets.UTF_8),
+                response.value);
+
+        response = central.read(TimeProfile.CURRENT_TIME);
+        assertEquals(TimeEncoder.EXACT_TIME_LENGTH, response.value.length);
+
+        response = central.read(java.util.UUID.randomUUID());
+        assertEquals(android.bluetooth.BluetoothGatt.GATT_FAILURE, response.status);
+    }
+
+    @Test
+    public void writesAreDispatchedToProfiles() {
+        FakeGattServerPort.FakeCentral central = mPort.connect("00:00:00:00:00:01");
+        assertEquals(0, central.write(BatteryProfile.BATTERY_LEVEL_WARN, new byte[]{15}).status);
+        assertEquals(15, mBatteryLevelWarn);
+        assertArrayEquals(new byte[]{BatteryProfile.TRIGGER_LESS_THAN, 15},
+                central.readDescriptor(BatteryProfile.BATTERY_LEVEL_WARN,
+                        BatteryProfile.BATTERY_LEVEL_WARN_CONFIG).value);
+        assertEquals(android.bluetooth.BluetoothGatt.GATT_WRITE_NOT_PERMITTED,
+                central.write(BatteryProfile.BATTERY_LEVEL, new byte[]{1}).status);
+    }
+
+    @Test
+    public void notificationsOnlyReachSubscribers() {
+        FakeGattServerPort.FakeCentral time = mPort.connect("00:00:00:00:00:01");
+        FakeGattServerPort.FakeCentral battery = mPort.connect("00:00:00:00:00:02");
+        time.enableNotifications(TimeProfile.CURRENT_TIME);
+        battery.enableNotifications(BatteryProfile.BATTERY_LEVEL);
+
+        mCore.notifySubscribers(BatteryProfile.BATTERY_LEVEL, new byte[]{42});
+        assertTrue(time.getNotifications().isEmpty());
+        assertEquals(1, battery.getNotifications().size());
+        assertArrayEquals(new byte[]{1, 0},
+                battery.readDescriptor(BatteryProfile.BATTERY_LEVEL, BatteryProfile.CLIENT_CONFIG).value);
+    }
+
+    @Test
+    public void nextNotificationWaitsForCompletion() {
+        FakeGattServerPort.FakeCentral central = mPort.connect("00:00:00:00:00:01");
+        central.enableNotifications(BatteryProfile.BATTERY_LEVEL);
+        central.enableNotifications(TimeProfile.CURRENT_TIME);
+        mCore.notifySubscribers(BatteryProfile.BATTERY_LEVEL, new byte[]{41});
+        mCore.notifySubscribers(TimeProfile.CURRENT_TIME, new byte[10]);
+        assertEquals(1, central.getNotifications().size());
+        assertEquals(1, mPort.completePendingNotifications());
+        assertEquals(2, central.getNotifications().size());
+    }
+
+    @Test
+    public void disconnectClearsSubscriptions() {
+        FakeGattServerPort.FakeCentral central = mPort.connect("00:00:00:00:00:01");
+        central.enableNotifications(BatteryProfile.BATTERY_LEVEL);
+        assertEquals(1, mCore.getConnectedDeviceCount());
+        central.disconnect();
+        assertEquals(0, mCore.getConnectedDeviceCount());
+        assertTrue(mCore.getSubscriptions().getSubscribers(BatteryProfile.BATTERY_LEVEL).isEmpty());
+    }
+}
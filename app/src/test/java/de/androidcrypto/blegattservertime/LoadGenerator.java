@@ -0,0 +1,468 @@
+package de.androidcrypto.blegattservertime;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a {@link GattServerCore} with many simulated centrals and measures
+ * how it holds up.
+ *
+ * Every central issues requests as an open-loop Poisson process with the
+ * configured rate. A request reads CURRENT_TIME, toggles a CCCD or writes
+ * BATTERY_LEVEL_WARN, picked by the configured weights. A notifier thread
+ * pushes a CURRENT_TIME update to all subscribers at a fixed interval; its
+ * payload carries the send timestamp so the receiving central can compute the
+ * delivery latency. The result is a single JSON object per run.
+ */
+public class LoadGenerator {
+
+    private static final int GATT_SUCCESS = 0;
+
+    /**
+     * Run parameters, read from "loadgen.*" system properties by
+     * {@link #fromSystemProperties()}.
+     */
+    public static class Config {
+        public int centrals = 50;
+        public int threads = 4;
+        public long warmupMillis = 500;
+        public long durationMillis = 2000;
+        public double ratePerCentral = 20;
+        public int readWeight = 8;
+        public int cccdWeight = 1;
+        public int writeWeight = 1;
+        public long notifyIntervalMillis = 100;
+        public long notificationDelayMicros = 1000;
+        public long seed = 1;
+        /* when above 0, issue this many requests unpaced instead of a timed run */
+        public long requests = 0;
+
+        /**
+         * Return true if any "loadgen.*" property is set, i.e. a load run
+         * was asked for.
+         */
+        public static boolean isRequested() {
+            for (String name : System.getProperties().stringPropertyNames()) {
+                if (name.startsWith("loadgen.")) return true;
+            }
+            return false;
+        }
+
+        public static Config fromSystemProperties() {
+            Config config = new Config();
+            config.centrals = Integer.getInteger("loadgen.centrals", config.centrals);
+            config.threads = Integer.getInteger("loadgen.threads", config.threads);
+            config.warmupMillis = Long.getLong("loadgen.warmupMillis", config.warmupMillis);
+            config.durationMillis = Long.getLong("loadgen.durationMillis", config.durationMillis);
+            config.ratePerCentral = Double.parseDouble(
+                    System.getProperty("loadgen.ratePerCentral", Double.toString(config.ratePerCentral)));
+            config.readWeight = Integer.getInteger("loadgen.readWeight", config.readWeight);
+            config.cccdWeight = Integer.getInteger("loadgen.cccdWeight", config.cccdWeight);
+            config.writeWeight = Integer.getInteger("loadgen.writeWeight", config.writeWeight);
+            config.notifyIntervalMillis = Long.getLong("loadgen.notifyIntervalMillis", config.notifyIntervalMillis);
+            config.notificationDelayMicros = Long.getLong("loadgen.notificationDelayMicros",
+                    config.notificationDelayMicros);
+            config.seed = Long.getLong("loadgen.seed", config.seed);
+            config.requests = Long.getLong("loadgen.requests", config.requests);
+            return config;
+        }
+    }
+
+    /**
+     * Results of one run.
+     */
+    public static class Report {
+        public long requests;
+        public long errors;
+        public double throughput;
+        public long[] responseNanos;
+        public long[] responseFromArrivalNanos;
+        public long notifications;
+        public long[] notificationNanos;
+        public long allocatedBytes;
+        public double allocationRate;
+        public long notificationsDropped;
+        public long notificationsFailed;
+
+        /**
+         * Single line JSON, percentiles in microseconds.
+         */
+        public String toJson(Config config) {
+            StringBuilder json = new StringBuilder(512);
+            json.append('{');
+            json.append("\"centrals\":").append(config.centrals);
+            json.append(",\"threads\":").append(config.threads);
+            json.append(",\"durationMillis\":").append(config.durationMillis);
+            json.append(",\"ratePerCentral\":").append(format(config.ratePerCentral));
+            json.append(",\"mix\":{\"read\":").append(config.readWeight)
+                    .append(",\"cccd\":").append(config.cccdWeight)
+                    .append(",\"write\":").append(config.writeWeight).append('}');
+            json.append(",\"requests\":").append(requests);
+            json.append(",\"errors\":").append(errors);
+            json.append(",\"throughput\":").append(format(throughput));
+            json.append(",\"responseMicros\":");
+            appendPercentiles(json, responseNanos);
+            json.append(",\"responseFromArrivalMicros\":");
+            appendPercentiles(json, responseFromArrivalNanos);
+            json.append(",\"notifications\":").append(notifications);
+            json.append(",\"notificationsDropped\":").append(notificationsDropped);
+            json.append(",\"notificationsFailed\":").append(notificationsFailed);
+            json.append(",\"notificationMicros\":");
+            appendPercentiles(json, notificationNanos);
+            json.append(",\"allocatedBytes\":").append(allocatedBytes);
+            json.append(",\"allocationRate\":").append(format(allocationRate));
+            json.append('}');
+            return json.toString();
+        }
+
+        private static void appendPercentiles(StringBuilder json, long[] sorted) {
+            json.append("{\"p50\":").append(format(percentile(sorted, 0.50) / 1000.0))
+                    .append(",\"p99\":").append(format(percentile(sorted, 0.99) / 1000.0))
+                    .append(",\"p999\":").append(format(percentile(sorted, 0.999) / 1000.0))
+                    .append(",\"max\":").append(format(percentile(sorted, 1.0) / 1000.0))
+                    .append('}');
+        }
+
+        private static String format(double value) {
+            return String.format(Locale.ROOT, "%.3f", value);
+        }
+    }
+
+    /**
+     * Nearest-rank percentile of a sorted array, 0 if it is empty.
+     */
+    static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    /**
+     * Growable list of longs, preallocated so that recording does not show up
+     * in the allocation rate.
+     */
+    static final class Samples {
+        private long[] mValues;
+        private int mSize;
+
+        Samples(int capacity) {
+            mValues = new long[Math.max(16, capacity)];
+        }
+
+        void add(long value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        static long[] mergeSorted(Samples... samples) {
+            int total = 0;
+            for (Samples s : samples) total += s.mSize;
+            long[] merged = new long[total];
+            int position = 0;
+            for (Samples s : samples) {
+                System.arraycopy(s.mValues, 0, merged, position, s.mSize);
+                position += s.mSize;
+            }
+            Arrays.sort(merged);
+            return merged;
+        }
+    }
+
+    private final Config mConfig;
+    private final GattServerCore mCore;
+    private final FakeGattServerPort mPort;
+    private final ScheduledExecutorService mCompletionExecutor;
+    private final Samples mNotificationSamples;
+    private final AtomicLong mAllocatedBytes = new AtomicLong();
+    private volatile boolean mRecording;
+    private volatile int mBatteryLevelWarn;
+
+    public LoadGenerator(Config config) {
+        mConfig = config;
+        mCore = new GattServerCore(new EventLog(1024, EventLog.INFO));
+        GattProfile.Builder profile = GattProfile.builder();
+        BasicProfile.addService(profile);
+        TimeProfile.addService(profile);
+        BatteryProfile.addService(profile, new BatteryProfile.BatteryState() {
+            @Override
+            public int getBatteryLevel() {
+                return 50;
+            }
+
+            @Override
+            public int getBatteryLevelWarn() {
+                return mBatteryLevelWarn;
+            }
+
+            @Override
+            public void setBatteryLevelWarn(int value) {
+                mBatteryLevelWarn = value;
+            }
+        });
+        profile.build().install(mCore);
+        mCompletionExecutor = Executors.newScheduledThreadPool(2);
+        mPort = new FakeGattServerPort(mCore, mCompletionExecutor, config.notificationDelayMicros);
+        mCore.attach(mPort);
+        mNotificationSamples = new Samples((int) Math.min(1 << 22,
+                (long) config.centrals * (config.durationMillis / Math.max(1, config.notifyIntervalMillis) + 1)));
+        mPort.setNotificationListener(new FakeGattServerPort.NotificationListener() {
+            @Override
+            public void onNotification(FakeGattServerPort.FakeCentral central,
+                                       FakeGattServerPort.Notification notification) {
+                if (!mRecording || notification.value.length < 8) return;
+                long latency = notification.receivedNanos - readLong(notification.value);
+                synchronized (mNotificationSamples) {
+                    mNotificationSamples.add(latency);
+                }
+            }
+        });
+    }
+
+    public Report run() throws InterruptedException {
+        final int threads = Math.max(1, Math.min(mConfig.threads, mConfig.centrals));
+        final Worker[] workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i, threads);
+        }
+        final long start = System.nanoTime();
+        final long recordFrom = start + TimeUnit.MILLISECONDS.toNanos(mConfig.warmupMillis);
+        final long end = recordFrom + TimeUnit.MILLISECONDS.toNanos(mConfig.durationMillis);
+        final CountDownLatch done = new CountDownLatch(threads + 1);
+
+        Thread[] running = new Thread[threads + 1];
+        for (int i = 0; i < threads; i++) {
+            final Worker worker = workers[i];
+            running[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    worker.run(start, recordFrom, end);
+                    done.countDown();
+                }
+            }, "loadgen-" + i);
+        }
+        running[threads] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                notifyLoop(recordFrom, end);
+                done.countDown();
+            }
+        }, "loadgen-notifier");
+        for (Thread thread : running) thread.start();
+
+        long dropped = 0;
+        long failed = 0;
+        while (System.nanoTime() < recordFrom) {
+            Thread.sleep(10);
+        }
+        mRecording = true;
+        dropped -= mCore.getNotificationEngine().getDroppedCount();
+        failed -= mCore.getNotificationEngine().getFailedCount();
+        done.await();
+        long elapsedNanos = System.nanoTime() - recordFrom;
+        mRecording = false;
+        // let outstanding completions arrive before reading the counters
+        mCompletionExecutor.shutdown();
+        mCompletionExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        dropped += mCore.getNotificationEngine().getDroppedCount();
+        failed += mCore.getNotificationEngine().getFailedCount();
+
+        Report report = new Report();
+        Samples[] response = new Samples[threads];
+        Samples[] fromArrival = new Samples[threads];
+        for (int i = 0; i < threads; i++) {
+            report.requests += workers[i].mRequests;
+            report.errors += workers[i].mErrors;
+            response[i] = workers[i].mResponse;
+            fromArrival[i] = workers[i].mFromArrival;
+        }
+        double seconds = mConfig.requests > 0 ? elapsedNanos / 1e9 : mConfig.durationMillis / 1000.0;
+        report.throughput = report.requests / seconds;
+        report.responseNanos = Samples.mergeSorted(response);
+        report.responseFromArrivalNanos = Samples.mergeSorted(fromArrival);
+        synchronized (mNotificationSamples) {
+            report.notifications = mNotificationSamples.size();
+            report.notificationNanos = Samples.mergeSorted(mNotificationSamples);
+        }
+        report.notificationsDropped = dropped;
+        report.notificationsFailed = failed;
+        report.allocatedBytes = mAllocatedBytes.get();
+        report.allocationRate = report.allocatedBytes < 0 ? -1 : report.allocatedBytes / seconds;
+        mCore.detach();
+        return report;
+    }
+
+    private void notifyLoop(long recordFrom, long end) {
+        long interval = TimeUnit.MILLISECONDS.toNanos(Math.max(1, mConfig.notifyIntervalMillis));
+        long next = recordFrom;
+        long allocatedFrom = Long.MIN_VALUE;
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) break;
+            if (now < next) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            if (allocatedFrom == Long.MIN_VALUE) allocatedFrom = allocatedBytes();
+            byte[] value = new byte[TimeEncoder.EXACT_TIME_LENGTH];
+            writeLong(value, System.nanoTime());
+            mCore.notifySubscribers(TimeProfile.CURRENT_TIME, value);
+            next += interval;
+        }
+        addAllocated(allocatedFrom == Long.MIN_VALUE ? 0 : allocatedFrom);
+    }
+
+    private void addAllocated(long allocatedFrom) {
+        long allocated = allocatedBytes();
+        if (allocated < 0 || allocatedFrom < 0) {
+            mAllocatedBytes.set(-1);
+        } else if (mAllocatedBytes.get() >= 0) {
+            mAllocatedBytes.addAndGet(allocated - allocatedFrom);
+        }
+    }
+
+    /**
+     * Bytes allocated by the calling thread so far, -1 if the JVM cannot tell.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static void writeLong(byte[] value, long v) {
+        for (int i = 7; i >= 0; i--) {
+            value[i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static long readLong(byte[] value) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (value[i] & 0xff);
+        }
+        return v;
+    }
+
+    /**
+     * Issues the requests of every n-th central from one thread.
+     */
+    private final class Worker {
+        private final FakeGattServerPort.FakeCentral[] mCentrals;
+        private final boolean[] mTimeSubscribed;
+        private final boolean[] mBatterySubscribed;
+        private final Random mRandom;
+        private final Samples mResponse;
+        private final Samples mFromArrival;
+        private final long mQuota;
+        private long mRequests;
+        private long mErrors;
+
+        Worker(int index, int stride) {
+            int count = (mConfig.centrals - index + stride - 1) / stride;
+            mQuota = mConfig.requests > 0 ? (mConfig.requests - index + stride - 1) / stride : Long.MAX_VALUE;
+            mCentrals = new FakeGattServerPort.FakeCentral[count];
+            for (int i = 0; i < count; i++) {
+                int id = index + i * stride;
+                mCentrals[i] = mPort.connect(String.format(Locale.ROOT, "02:00:00:00:%02X:%02X",
+                        (id >> 8) & 0xff, id & 0xff));
+            }
+            mTimeSubscribed = new boolean[count];
+            mBatterySubscribed = new boolean[count];
+            mRandom = new Random(mConfig.seed * 31 + index);
+            int expected = (int) Math.min(1 << 24,
+                    count * mConfig.ratePerCentral * (mConfig.durationMillis / 1000.0) * 1.5);
+            mResponse = new Samples(expected);
+            mFromArrival = new Samples(expected);
+        }
+
+        void run(long start, long recordFrom, long end) {
+            PriorityQueue<long[]> arrivals = new PriorityQueue<>(Math.max(1, mCentrals.length),
+                    new java.util.Comparator<long[]>() {
+                        @Override
+                        public int compare(long[] a, long[] b) {
+                            return Long.compare(a[0], b[0]);
+                        }
+                    });
+            for (int i = 0; i < mCentrals.length; i++) {
+                arrivals.add(new long[]{start + nextInterval(), i});
+            }
+            int totalWeight = mConfig.readWeight + mConfig.cccdWeight + mConfig.writeWeight;
+            long allocatedFrom = Long.MIN_VALUE;
+            // a fixed number of requests is issued back to back and all recorded
+            boolean fixed = mConfig.requests > 0;
+            while (!arrivals.isEmpty() && mRequests < mQuota) {
+                long[] arrival = arrivals.peek();
+                long due = arrival[0];
+                if (!fixed && due >= end) break;
+                long now = System.nanoTime();
+                if (!fixed && now < due) {
+                    LockSupport.parkNanos(due - now);
+                    continue;
+                }
+                arrivals.poll();
+                int central = (int) arrival[1];
+                boolean record = fixed || due >= recordFrom;
+                if (record && allocatedFrom == Long.MIN_VALUE) allocatedFrom = allocatedBytes();
+
+                long requestStart = System.nanoTime();
+                int status = request(central, mRandom.nextInt(Math.max(1, totalWeight)));
+                long responded = System.nanoTime();
+                if (record) {
+                    mRequests++;
+                    if (status != GATT_SUCCESS) mErrors++;
+                    mResponse.add(responded - requestStart);
+                    mFromArrival.add(responded - due);
+                }
+                arrival[0] = due + nextInterval();
+                arrivals.add(arrival);
+            }
+            addAllocated(allocatedFrom == Long.MIN_VALUE ? allocatedBytes() : allocatedFrom);
+        }
+
+        private int request(int index, int pick) {
+            FakeGattServerPort.FakeCentral central = mCentrals[index];
+            FakeGattServerPort.Response response;
+            if (pick < mConfig.readWeight) {
+                response = central.read(TimeProfile.CURRENT_TIME);
+            } else if (pick < mConfig.readWeight + mConfig.cccdWeight) {
+                if (mRandom.nextBoolean()) {
+                    mTimeSubscribed[index] = !mTimeSubscribed[index];
+                    response = mTimeSubscribed[index] ? central.enableNotifications(TimeProfile.CURRENT_TIME)
+                            : central.disableNotifications(TimeProfile.CURRENT_TIME);
+                } else {
+                    mBatterySubscribed[index] = !mBatterySubscribed[index];
+                    response = mBatterySubscribed[index] ? central.enableNotifications(BatteryProfile.BATTERY_LEVEL)
+                            : central.disableNotifications(BatteryProfile.BATTERY_LEVEL);
+                }
+            } else {
+                response = central.write(BatteryProfile.BATTERY_LEVEL_WARN, new byte[]{(byte) (pick % 100)});
+            }
+            return response == null ? -1 : response.status;
+        }
+
+        private long nextInterval() {
+            // exponential inter-arrival times give a Poisson arrival process
+            double seconds = -Math.log(1 - mRandom.nextDouble()) / mConfig.ratePerCentral;
+            return (long) (seconds * 1e9);
+        }
+    }
+}
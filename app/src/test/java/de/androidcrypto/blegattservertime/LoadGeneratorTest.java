@@ -0,0 +1,67 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.Test;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link LoadGenerator}. By default only a small run with a fixed
+ * number of requests is made; a timed run that prints its JSON report is
+ * made when any "loadgen.*" system property is set, e.g.
+ * -Dloadgen.centrals=500 -Dloadgen.durationMillis=10000. When loadgen.output
+ * is set the report is appended to that file, one line per run, so results
+ * can be compared across commits.
+ */
+public class LoadGeneratorTest {
+
+    @Test
+    public void fixedRequestsAreAllAnswered() throws InterruptedException {
+        LoadGenerator.Config config = new LoadGenerator.Config();
+        config.centrals = 4;
+        config.threads = 2;
+        config.warmupMillis = 0;
+        config.durationMillis = 50;
+        config.requests = 200;
+        LoadGenerator.Report report = new LoadGenerator(config).run();
+        assertEquals(200, report.requests);
+        assertEquals(0, report.errors);
+        assertEquals(report.requests, report.responseNanos.length);
+    }
+
+    @Test
+    public void serverKeepsUpWithLoad() throws InterruptedException, IOException {
+        if (!LoadGenerator.Config.isRequested()) return;
+        LoadGenerator.Config config = LoadGenerator.Config.fromSystemProperties();
+        LoadGenerator.Report report = new LoadGenerator(config).run();
+        String json = report.toJson(config);
+        System.out.println(json);
+
+        String output = System.getProperty("loadgen.output");
+        if (output != null) {
+            try (Writer writer = new FileWriter(output, true)) {
+                writer.write(json);
+                writer.write('\n');
+            }
+        }
+        assertTrue(report.requests > 0);
+        assertEquals(0, report.errors);
+        assertEquals(report.requests, report.responseNanos.length);
+    }
+
+    @Test
+    public void percentileUsesNearestRank() {
+        long[] sorted = new long[1000];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i + 1;
+        }
+        assertEquals(500, LoadGenerator.percentile(sorted, 0.50));
+        assertEquals(990, LoadGenerator.percentile(sorted, 0.99));
+        assertEquals(999, LoadGenerator.percentile(sorted, 0.999));
+        assertEquals(1000, LoadGenerator.percentile(sorted, 1.0));
+        assertEquals(0, LoadGenerator.percentile(new long[0], 0.99));
+    }
+}
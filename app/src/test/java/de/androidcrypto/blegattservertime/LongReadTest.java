@@ -0,0 +1,123 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads values longer than one ATT packet through Read Blob requests.
+ */
+public class LongReadTest {
+
+    private static final UUID LONG_VALUE = UUID.fromString("0000ff01-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHANGING_VALUE = UUID.fromString("0000ff02-0000-1000-8000-00805f9b34fb");
+    private static final int[] MTUS = {23, 185, 517};
+
+    private GattServerCore mCore;
+    private FakeGattServerPort mPort;
+    private byte[] mLongValue;
+    private final AtomicInteger mReads = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        mLongValue = new byte[5000];
+        new Random(7).nextBytes(mLongValue);
+        mCore = new GattServerCore(new EventLog(64, EventLog.WARN));
+        mCore.getHandlerRegistry().registerCharacteristic(LONG_VALUE, new CharacteristicHandler() {
+            @Override
+            public byte[] onRead(String device) {
+                mReads.incrementAndGet();
+                return mLongValue;
+            }
+        });
+        mCore.getHandlerRegistry().registerCharacteristic(CHANGING_VALUE, new CharacteristicHandler() {
+            @Override
+            public byte[] onRead(String device) {
+                // a new value on every read
+                byte[] value = new byte[1000];
+                java.util.Arrays.fill(value, (byte) mReads.incrementAndGet());
+                return value;
+            }
+        });
+        mPort = new FakeGattServerPort(mCore);
+        mCore.attach(mPort);
+    }
+
+    @Test
+    public void readsMultiKilobyteValuesAtEveryMtu() {
+        for (int mtu : MTUS) {
+            FakeGattServerPort.FakeCentral central = mPort.connect(String.format("00:00:00:00:00:%02d", mtu % 100));
+            central.requestMtu(mtu);
+            assertEquals(mtu, mCore.getMtu(central.getAddress()));
+            mReads.set(0);
+            assertArrayEquals("mtu " + mtu, mLongValue, readLong(central, LONG_VALUE));
+            // only the first request asks the profile for the value
+            assertEquals(1, mReads.get());
+        }
+    }
+
+    @Test
+    public void longReadSeesOneSnapshot() {
+        for (int mtu : MTUS) {
+            FakeGattServerPort.FakeCentral central = mPort.connect(String.format("00:00:00:00:01:%02d", mtu % 100));
+            central.requestMtu(mtu);
+            byte[] value = readLong(central, CHANGING_VALUE);
+            assertEquals(1000, value.length);
+            for (byte b : value) {
+                assertEquals(value[0], b);
+            }
+        }
+    }
+
+    @Test
+    public void slicesAreSharedBetweenDevices() {
+        FakeGattServerPort.FakeCentral first = mPort.connect("00:00:00:00:00:01");
+        FakeGattServerPort.FakeCentral second = mPort.connect("00:00:00:00:00:02");
+        first.read(LONG_VALUE);
+        second.read(LONG_VALUE);
+        assertSame(first.read(LONG_VALUE, 22).value, second.read(LONG_VALUE, 22).value);
+    }
+
+    @Test
+    public void offsetBeyondValueIsRejected() {
+        FakeGattServerPort.FakeCentral central = mPort.connect("00:00:00:00:00:01");
+        central.read(LONG_VALUE);
+        FakeGattServerPort.Response response = central.read(LONG_VALUE, mLongValue.length + 1);
+        assertEquals(android.bluetooth.BluetoothGatt.GATT_INVALID_OFFSET, response.status);
+        // reading exactly at the end returns an empty value
+        response = central.read(LONG_VALUE, mLongValue.length);
+        assertEquals(0, response.status);
+        assertEquals(0, response.value.length);
+    }
+
+    @Test
+    public void mtuIsForgottenOnDisconnect() {
+        FakeGattServerPort.FakeCentral central = mPort.connect("00:00:00:00:00:01");
+        central.requestMtu(247);
+        central.disconnect();
+        assertEquals(GattServerCore.DEFAULT_MTU, mCore.getMtu(central.getAddress()));
+    }
+
+    /**
+     * Read like a client does: continue with Read Blob until a response is
+     * shorter than MTU - 1.
+     */
+    private static byte[] readLong(FakeGattServerPort.FakeCentral central, UUID characteristic) {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        int chunk = central.getMtu() - 1;
+        while (true) {
+            FakeGattServerPort.Response response = central.read(characteristic, value.size());
+            assertEquals(0, response.status);
+            assertEquals(value.size(), response.offset);
+            assertTrue(response.value.length <= chunk);
+            value.write(response.value, 0, response.value.length);
+            if (response.value.length < chunk) return value.toByteArray();
+        }
+    }
+}
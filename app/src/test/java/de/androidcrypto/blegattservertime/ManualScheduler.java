@@ -0,0 +1,76 @@
+package de.androidcrypto.blegattservertime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link Scheduler} driven by a manual clock, tasks run inside
+ * {@link #advance(long)}.
+ */
+public class ManualScheduler implements Scheduler {
+
+    private static final class Task implements Cancellable {
+        final Runnable runnable;
+        final long dueMillis;
+        boolean cancelled;
+
+        Task(Runnable runnable, long dueMillis) {
+            this.runnable = runnable;
+            this.dueMillis = dueMillis;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final List<Task> mTasks = new ArrayList<>();
+    private long mNowMillis;
+
+    @Override
+    public Cancellable schedule(Runnable runnable, long delayMillis) {
+        Task task = new Task(runnable, mNowMillis + delayMillis);
+        mTasks.add(task);
+        return task;
+    }
+
+    public long getNowMillis() {
+        return mNowMillis;
+    }
+
+    /**
+     * Number of tasks that are neither cancelled nor ran.
+     */
+    public int getPendingCount() {
+        int count = 0;
+        for (Task task : mTasks) {
+            if (!task.cancelled) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Move the clock forward and run every task that became due, in order.
+     */
+    public void advance(long millis) {
+        long target = mNowMillis + millis;
+        while (true) {
+            Task next = null;
+            for (Task task : mTasks) {
+                if (!task.cancelled && task.dueMillis <= target
+                        && (next == null || task.dueMillis < next.dueMillis)) {
+                    next = task;
+                }
+            }
+            if (next == null) break;
+            mTasks.remove(next);
+            mNowMillis = Math.max(mNowMillis, next.dueMillis);
+            next.runnable.run();
+        }
+        mNowMillis = target;
+        for (int i = mTasks.size() - 1; i >= 0; i--) {
+            if (mTasks.get(i).cancelled) mTasks.remove(i);
+        }
+    }
+}
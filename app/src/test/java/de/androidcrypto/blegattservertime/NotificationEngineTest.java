@@ -0,0 +1,131 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class NotificationEngineTest {
+
+    private static final UUID TIME = TimeProfile.CURRENT_TIME;
+    private static final UUID BATTERY = BatteryProfile.BATTERY_LEVEL;
+
+    /**
+     * Records every notification handed to the stack.
+     */
+    private static class RecordingSender implements NotificationEngine.Sender<String> {
+        final List<byte[]> sent = new ArrayList<>();
+        boolean accept = true;
+
+        @Override
+        public boolean send(String device, UUID characteristic, byte[] value, boolean confirm) {
+            sent.add(value);
+            return accept;
+        }
+    }
+
+    @Test
+    public void waitsForNotificationSentBeforeNextSend() {
+        RecordingSender sender = new RecordingSender();
+        NotificationEngine<String> engine = new NotificationEngine<>(sender);
+        engine.enqueue("A", TIME, new byte[]{1}, false);
+        engine.enqueue("A", BATTERY, new byte[]{2}, false);
+        assertEquals(1, sender.sent.size());
+        assertEquals(1, engine.getQueueDepth());
+
+        engine.onNotificationSent("A", 0);
+        assertEquals(2, sender.sent.size());
+        engine.onNotificationSent("A", 0);
+        assertEquals(2, engine.getSentCount());
+        assertEquals(0, engine.getQueueDepth());
+    }
+
+    @Test
+    public void devicesAreIndependent() {
+        RecordingSender sender = new RecordingSender();
+        NotificationEngine<String> engine = new NotificationEngine<>(sender);
+        engine.enqueue("A", TIME, new byte[]{1}, false);
+        engine.enqueue("B", TIME, new byte[]{1}, false);
+        assertEquals(2, sender.sent.size());
+    }
+
+    @Test
+    public void coalescesQueuedValuesOfSameCharacteristic() {
+        RecordingSender sender = new RecordingSender();
+        NotificationEngine<String> engine = new NotificationEngine<>(sender);
+        engine.enqueue("A", TIME, new byte[]{1}, false);
+        engine.enqueue("A", TIME, new byte[]{2}, false);
+        engine.enqueue("A", TIME, new byte[]{3}, false);
+        assertEquals(1, engine.getQueueDepth());
+        assertEquals(1, engine.getCoalescedCount());
+
+        engine.onNotificationSent("A", 0);
+        assertArrayEquals(new byte[]{3}, sender.sent.get(1));
+    }
+
+    @Test
+    public void dropsOldestWhenQueueIsFull() {
+        RecordingSender sender = new RecordingSender();
+        NotificationEngine<String> engine = new NotificationEngine<>(sender, 2, 1000);
+        engine.enqueue("A", TIME, new byte[]{0}, false);
+        for (int i = 1; i <= 3; i++) {
+            engine.enqueue("A", UUID.randomUUID(), new byte[]{(byte) i}, false);
+        }
+        assertEquals(2, engine.getQueueDepth());
+        assertEquals(1, engine.getDroppedCount());
+
+        engine.onNotificationSent("A", 0);
+        assertArrayEquals(new byte[]{2}, sender.sent.get(1));
+    }
+
+    @Test
+    public void rejectedSendMovesOnToNextValue() {
+        RecordingSender sender = new RecordingSender();
+        sender.accept = false;
+        NotificationEngine<String> engine = new NotificationEngine<>(sender);
+        engine.enqueue("A", TIME, new byte[]{1}, false);
+        engine.enqueue("A", BATTERY, new byte[]{2}, false);
+        assertEquals(2, engine.getFailedCount());
+        assertEquals(0, engine.getQueueDepth());
+    }
+
+    @Test
+    public void removeDeviceDropsQueue() {
+        RecordingSender sender = new RecordingSender();
+        NotificationEngine<String> engine = new NotificationEngine<>(sender);
+        engine.enqueue("A", TIME, new byte[]{1}, false);
+        engine.enqueue("A", BATTERY, new byte[]{2}, false);
+        engine.removeDevice("A");
+        assertEquals(0, engine.getQueueDepth());
+        assertEquals(1, engine.getDroppedCount());
+
+        engine.enqueue("A", TIME, new byte[]{3}, false);
+        assertEquals(2, sender.sent.size());
+    }
+
+    @Test
+    public void lostCompletionTimesOutWithoutNewValue() {
+        RecordingSender sender = new RecordingSender();
+        ManualScheduler scheduler = new ManualScheduler();
+        NotificationEngine<String> engine = new NotificationEngine<>(sender, 8, 1000);
+        engine.setScheduler(scheduler);
+        engine.enqueue("A", TIME, new byte[]{1}, false);
+        engine.enqueue("A", BATTERY, new byte[]{2}, false);
+        assertEquals(1, sender.sent.size());
+
+        // onNotificationSent for the first value never arrives
+        scheduler.advance(999);
+        assertEquals(1, sender.sent.size());
+        scheduler.advance(1);
+        assertEquals(2, sender.sent.size());
+        assertEquals(1, engine.getFailedCount());
+
+        // a completion in time cancels the timeout
+        engine.onNotificationSent("A", 0);
+        assertEquals(0, scheduler.getPendingCount());
+        assertEquals(1, engine.getSentCount());
+    }
+}
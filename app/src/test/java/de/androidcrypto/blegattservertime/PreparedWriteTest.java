@@ -0,0 +1,187 @@
+package de.androidcrypto.blegattservertime;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Prepared (queued) writes through {@link GattServerCore}.
+ */
+public class PreparedWriteTest {
+
+    private static final UUID LONG_VALUE = UUID.fromString("0000ff01-0000-1000-8000-00805f9b34fb");
+    private static final UUID OTHER_VALUE = UUID.fromString("0000ff02-0000-1000-8000-00805f9b34fb");
+
+    private GattServerCore mCore;
+    private FakeGattServerPort mPort;
+    private final List<byte[]> mWritten = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mCore = new GattServerCore(new EventLog(64, EventLog.WARN));
+        CharacteristicHandler handler = new CharacteristicHandler() {
+            @Override
+            public byte[] onRead(String device) {
+                return null;
+            }
+
+            @Override
+            public int onWrite(String device, byte[] value) {
+                mWritten.add(value);
+                return BluetoothGatt.GATT_SUCCESS;
+            }
+        };
+        mCore.getHandlerRegistry().registerCharacteristic(LONG_VALUE, handler);
+        mCore.getHandlerRegistry().registerCharacteristic(OTHER_VALUE, handler);
+        mPort = new FakeGattServerPort(mCore);
+        mCore.attach(mPort);
+    }
+
+    @Test
+    public void segmentsAreReassembledOnExecute() {
+        FakeGattServerPort.FakeCentral central = mPort.connect("00:00:00:00:00:01");
+        byte[] value = pattern(300);
+        prepareAll(central, LONG_VALUE, value, 18);
+        assertTrue(mWritten.isEmpty());
+
+        assertEquals(0, central.executeWrite(true).status);
+        assertEquals(1, mWritten.size());
+        assertArrayEquals(value, mWritten.get(0));
+        assertEquals(0, mCore.getPreparedWrites().getPendingDeviceCount());
+    }
+
+    @Test
+    public void attributesAreWrittenInPreparedOrder() {
+        FakeGattServerPort.FakeCentral central = mPort.connect("00:00:00:00:00:01");
+        central.prepareWrite(OTHER_VALUE, 0, new byte[]{2});
+        central.prepareWrite(LONG_VALUE, 0, new byte[]{1});
+        assertEquals(0, central.executeWrite(true).status);
+        assertArrayEquals(new byte[]{2}, mWritten.get(0));
+        assertArrayEquals(new byte[]{1}, mWritten.get(1));
+    }
+
+    @Test
+    public void cancelDropsEverything() {
+        FakeGattServerPort.FakeCentral central = mPort.connect("00:00:00:00:00:01");
+        prepareAll(central, LONG_VALUE, pattern(100), 18);
+        assertEquals(0, central.executeWrite(false).status);
+        assertEquals(0, central.executeWrite(true).status);
+        assertTrue(mWritten.isEmpty());
+    }
+
+    @Test
+    public void unknownAttributeAbortsTheWholeQueue() {
+        FakeGattServerPort.FakeCentral central = mPort.connect("00:00:00:00:00:01");
+        central.prepareWrite(LONG_VALUE, 0, new byte[]{1});
+        central.prepareWrite(OTHER_VALUE, 0, new byte[]{2});
+        mCore.getHandlerRegistry().registerCharacteristic(OTHER_VALUE, null);
+        assertEquals(BluetoothGatt.GATT_FAILURE, central.executeWrite(true).status);
+        assertTrue(mWritten.isEmpty());
+    }
+
+    @Test
+    public void rejectedValueAbortsTheWholeQueue() {
+        mCore.getHandlerRegistry().registerCharacteristic(OTHER_VALUE, new CharacteristicHandler() {
+            @Override
+            public byte[] onRead(String device) {
+                return null;
+            }
+
+            @Override
+            public int validateWrite(String device, byte[] value) {
+                return value.length == 1 ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+            }
+
+            @Override
+            public int onWrite(String device, byte[] value) {
+                mWritten.add(value);
+                return BluetoothGatt.GATT_SUCCESS;
+            }
+        });
+        FakeGattServerPort.FakeCentral central = mPort.connect("00:00:00:00:00:01");
+        central.prepareWrite(LONG_VALUE, 0, new byte[]{1});
+        central.prepareWrite(OTHER_VALUE, 0, new byte[]{2, 3});
+        assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH, central.executeWrite(true).status);
+        assertTrue(mWritten.isEmpty());
+        assertEquals(0, mCore.getPreparedWrites().getPendingDeviceCount());
+    }
+
+    @Test
+    public void invalidSegmentsAreRejected() {
+        FakeGattServerPort.FakeCentral central = mPort.connect("00:00:00:00:00:01");
+        assertEquals(BluetoothGatt.GATT_INVALID_OFFSET, central.prepareWrite(LONG_VALUE, 5, new byte[4]).status);
+        assertEquals(0, central.prepareWrite(LONG_VALUE, 0, new byte[500]).status);
+        assertEquals(BluetoothGatt.GATT_INVALID_OFFSET, central.prepareWrite(LONG_VALUE, 10, new byte[4]).status);
+        assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH,
+                central.prepareWrite(LONG_VALUE, 500, new byte[13]).status);
+        assertEquals(0, central.prepareWrite(LONG_VALUE, 500, new byte[12]).status);
+        // a plain write with an offset is not a Read Blob counterpart
+        assertEquals(BluetoothGatt.GATT_INVALID_OFFSET, central.write(LONG_VALUE, 1, new byte[1]).status);
+    }
+
+    @Test
+    public void queueIsLimitedPerDevice() {
+        FakeGattServerPort.FakeCentral central = mPort.connect("00:00:00:00:00:01");
+        for (int i = 0; i < PreparedWriteQueue.DEFAULT_MAX_ATTRIBUTES; i++) {
+            UUID uuid = UUID.fromString(String.format("0000fe%02x-0000-1000-8000-00805f9b34fb", i));
+            mCore.getHandlerRegistry().registerCharacteristic(uuid, mCore.getHandlerRegistry()
+                    .getCharacteristicHandler(LONG_VALUE));
+            assertEquals(0, central.prepareWrite(uuid, 0, new byte[1]).status);
+        }
+        assertEquals(PreparedWriteQueue.GATT_PREPARE_QUEUE_FULL,
+                central.prepareWrite(LONG_VALUE, 0, new byte[1]).status);
+    }
+
+    @Test
+    public void buffersAreReusedUnderChurn() {
+        for (int i = 0; i < 100; i++) {
+            FakeGattServerPort.FakeCentral central = mPort.connect("00:00:00:00:00:0" + (i % 10));
+            prepareAll(central, LONG_VALUE, pattern(64), 20);
+            central.disconnect();
+        }
+        PreparedWriteQueue queue = mCore.getPreparedWrites();
+        assertEquals(0, queue.getPendingDeviceCount());
+        assertEquals(1, queue.getPooledBufferCount());
+    }
+
+    @Test
+    public void descriptorsCanBePrepared() {
+        mCore.getHandlerRegistry().registerDescriptor(LONG_VALUE, BasicProfile.CLIENT_CONFIG,
+                mCore.createClientConfigHandler(LONG_VALUE));
+        FakeGattServerPort.FakeCentral central = mPort.connect("00:00:00:00:00:01");
+        assertEquals(0, central.prepareDescriptorWrite(LONG_VALUE, BasicProfile.CLIENT_CONFIG, 0,
+                new byte[]{1}).status);
+        assertEquals(0, central.prepareDescriptorWrite(LONG_VALUE, BasicProfile.CLIENT_CONFIG, 1,
+                new byte[]{0}).status);
+        assertEquals(0, central.executeWrite(true).status);
+        assertEquals(SubscriptionRegistry.NOTIFY,
+                mCore.getSubscriptions().getSubscription(LONG_VALUE, central.getAddress()));
+    }
+
+    private static void prepareAll(FakeGattServerPort.FakeCentral central, UUID characteristic,
+                                   byte[] value, int segment) {
+        for (int offset = 0; offset < value.length; offset += segment) {
+            byte[] part = Arrays.copyOfRange(value, offset, Math.min(value.length, offset + segment));
+            FakeGattServerPort.Response response = central.prepareWrite(characteristic, offset, part);
+            assertEquals(0, response.status);
+            assertEquals(offset, response.offset);
+            assertArrayEquals(part, response.value);
+        }
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = (byte) (i * 7);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,83 @@
+package de.androidcrypto.blegattservertime;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Control point handling and state reporting of {@link ReferenceTimeUpdate}.
+ */
+public class ReferenceTimeUpdateTest {
+
+    private static final byte[] GET = {ReferenceTimeUpdate.GET_REFERENCE_UPDATE};
+    private static final byte[] CANCEL = {ReferenceTimeUpdate.CANCEL_REFERENCE_UPDATE};
+
+    private final ManualScheduler mScheduler = new ManualScheduler();
+    private int mUpdates;
+    private byte mResult = ReferenceTimeUpdate.RESULT_SUCCESSFUL;
+    private ReferenceTimeUpdate mReferenceTimeUpdate;
+
+    @Before
+    public void setUp() {
+        mReferenceTimeUpdate = new ReferenceTimeUpdate(mScheduler, new ReferenceTimeUpdate.Updater() {
+            @Override
+            public byte update() {
+                mUpdates++;
+                return mResult;
+            }
+        });
+    }
+
+    @Test
+    public void updateRunsOnTheScheduler() {
+        assertArrayEquals(new byte[]{0, ReferenceTimeUpdate.RESULT_NOT_ATTEMPTED},
+                mReferenceTimeUpdate.getTimeUpdateState());
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mReferenceTimeUpdate.onControlPoint(GET));
+        // a second request while pending is merged
+        mReferenceTimeUpdate.onControlPoint(GET);
+        assertArrayEquals(new byte[]{ReferenceTimeUpdate.STATE_UPDATE_PENDING,
+                ReferenceTimeUpdate.RESULT_NOT_ATTEMPTED}, mReferenceTimeUpdate.getTimeUpdateState());
+        mScheduler.advance(0);
+        assertEquals(1, mUpdates);
+        assertArrayEquals(new byte[]{0, ReferenceTimeUpdate.RESULT_SUCCESSFUL},
+                mReferenceTimeUpdate.getTimeUpdateState());
+        // encoded once
+        assertSame(mReferenceTimeUpdate.getTimeUpdateState(), mReferenceTimeUpdate.getTimeUpdateState());
+    }
+
+    @Test
+    public void cancelDropsThePendingUpdate() {
+        mReferenceTimeUpdate.onControlPoint(GET);
+        mReferenceTimeUpdate.onControlPoint(CANCEL);
+        mScheduler.advance(0);
+        assertEquals(0, mUpdates);
+        assertArrayEquals(new byte[]{0, ReferenceTimeUpdate.RESULT_CANCELED},
+                mReferenceTimeUpdate.getTimeUpdateState());
+        // nothing to cancel now
+        mReferenceTimeUpdate.onControlPoint(CANCEL);
+        assertArrayEquals(new byte[]{0, ReferenceTimeUpdate.RESULT_CANCELED},
+                mReferenceTimeUpdate.getTimeUpdateState());
+    }
+
+    @Test
+    public void reportsFailedUpdates() {
+        mResult = ReferenceTimeUpdate.RESULT_NO_CONNECTION;
+        mReferenceTimeUpdate.onControlPoint(GET);
+        mScheduler.advance(0);
+        assertArrayEquals(new byte[]{0, ReferenceTimeUpdate.RESULT_NO_CONNECTION},
+                mReferenceTimeUpdate.getTimeUpdateState());
+    }
+
+    @Test
+    public void rejectsInvalidWrites() {
+        assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH, mReferenceTimeUpdate.onControlPoint(new byte[0]));
+        assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH,
+                mReferenceTimeUpdate.onControlPoint(new byte[]{1, 0}));
+        // reserved commands are ignored
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mReferenceTimeUpdate.onControlPoint(new byte[]{7}));
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+}
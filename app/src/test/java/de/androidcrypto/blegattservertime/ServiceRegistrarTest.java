@@ -0,0 +1,164 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives {@link ServiceRegistrar} with a manual clock and a scripted stack.
+ */
+public class ServiceRegistrarTest {
+
+    private static final UUID FIRST = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
+    private static final UUID SECOND = UUID.fromString("00001805-0000-1000-8000-00805f9b34fb");
+    private static final UUID THIRD = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+
+    private ManualScheduler mScheduler;
+    private final List<UUID> mAdded = new ArrayList<>();
+    private final List<UUID> mRemoved = new ArrayList<>();
+    private boolean mAccept = true;
+    private ServiceRegistrar<UUID> mRegistrar;
+    private int mReady;
+    private int mReadyRetries = -1;
+    private UUID mFailedService;
+    private int mFailedStatus;
+
+    private final ServiceRegistrar.Listener mListener = new ServiceRegistrar.Listener() {
+        @Override
+        public void onServicesReady(long timeToReadyMillis, int retries) {
+            assertTrue(timeToReadyMillis >= 0);
+            mReady++;
+            mReadyRetries = retries;
+        }
+
+        @Override
+        public void onServiceRegistrationFailed(UUID service, int status) {
+            mFailedService = service;
+            mFailedStatus = status;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mScheduler = new ManualScheduler();
+        mRegistrar = new ServiceRegistrar<>(new ServiceRegistrar.Target<UUID>() {
+            @Override
+            public UUID getUuid(UUID service) {
+                return service;
+            }
+
+            @Override
+            public boolean addService(UUID service) {
+                mAdded.add(service);
+                return mAccept;
+            }
+
+            @Override
+            public void removeService(UUID service) {
+                mRemoved.add(service);
+            }
+        }, mScheduler, 1000, 2, 100);
+    }
+
+    @Test
+    public void servicesAreAddedOneAfterAnother() {
+        mRegistrar.start(mListener, Arrays.asList(FIRST, SECOND, THIRD));
+        assertEquals(1, mAdded.size());
+        mRegistrar.onServiceAdded(FIRST, 0);
+        assertEquals(SECOND, mAdded.get(1));
+        mRegistrar.onServiceAdded(SECOND, 0);
+        assertEquals(0, mReady);
+        mRegistrar.onServiceAdded(THIRD, 0);
+        assertEquals(1, mReady);
+        assertEquals(0, mReadyRetries);
+        assertTrue(mRegistrar.isReady());
+        assertTrue(mRegistrar.getTimeToReadyMillis() >= 0);
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void timeoutRemovesAndRetriesWithBackoff() {
+        mRegistrar.start(mListener, Arrays.asList(FIRST, SECOND));
+        mScheduler.advance(1000);
+        assertEquals(1, mRemoved.size());
+        assertEquals(1, mAdded.size());
+        mScheduler.advance(99);
+        assertEquals(1, mAdded.size());
+        mScheduler.advance(1);
+        assertEquals(2, mAdded.size());
+        // a late answer to the first attempt arrives while the second waits
+        mRegistrar.onServiceAdded(FIRST, 0);
+        mRegistrar.onServiceAdded(SECOND, 0);
+        assertEquals(1, mReady);
+        assertEquals(1, mReadyRetries);
+    }
+
+    @Test
+    public void failureStatusIsRetriedThenGivesUp() {
+        mRegistrar.start(mListener, Arrays.asList(FIRST));
+        mRegistrar.onServiceAdded(FIRST, 0x85);
+        mScheduler.advance(100);
+        mRegistrar.onServiceAdded(FIRST, 0x85);
+        // second backoff is doubled
+        mScheduler.advance(199);
+        assertEquals(2, mAdded.size());
+        mScheduler.advance(1);
+        assertEquals(3, mAdded.size());
+        mRegistrar.onServiceAdded(FIRST, 0x85);
+        assertEquals(ServiceRegistrar.State.FAILED, mRegistrar.getState());
+        assertEquals(FIRST, mFailedService);
+        assertEquals(0x85, mFailedStatus);
+        assertEquals(0, mReady);
+    }
+
+    @Test
+    public void rejectedAddIsRetried() {
+        mAccept = false;
+        mRegistrar.start(mListener, Arrays.asList(FIRST));
+        mAccept = true;
+        mScheduler.advance(100);
+        mRegistrar.onServiceAdded(FIRST, 0);
+        assertEquals(1, mReady);
+    }
+
+    @Test
+    public void stopCancelsEverything() {
+        mRegistrar.start(mListener, Arrays.asList(FIRST, SECOND));
+        mRegistrar.stop();
+        mScheduler.advance(10000);
+        mRegistrar.onServiceAdded(FIRST, 0);
+        assertEquals(1, mAdded.size());
+        assertEquals(ServiceRegistrar.State.IDLE, mRegistrar.getState());
+    }
+
+    @Test
+    public void synchronousCallbackDoesNotLeaveATimeout() {
+        mRegistrar = new ServiceRegistrar<>(new ServiceRegistrar.Target<UUID>() {
+            @Override
+            public UUID getUuid(UUID service) {
+                return service;
+            }
+
+            @Override
+            public boolean addService(UUID service) {
+                mAdded.add(service);
+                mRegistrar.onServiceAdded(service, 0);
+                return true;
+            }
+
+            @Override
+            public void removeService(UUID service) {
+                mRemoved.add(service);
+            }
+        }, mScheduler, 1000, 2, 100);
+        mRegistrar.start(mListener, Arrays.asList(FIRST, SECOND, THIRD));
+        assertEquals(1, mReady);
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+}
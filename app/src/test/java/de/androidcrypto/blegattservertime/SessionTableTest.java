@@ -0,0 +1,202 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * The {@link SessionTable} and the session lifecycle in {@link GattServerCore}:
+ * connect, disconnect, idle eviction and address churn.
+ */
+public class SessionTableTest {
+
+    private static final UUID VALUE = UUID.fromString("0000ff01-0000-1000-8000-00805f9b34fb");
+    private static final long IDLE_MILLIS = 60000;
+
+    private final ManualScheduler mScheduler = new ManualScheduler();
+    private final List<String> mConnected = new ArrayList<>();
+    private final List<String> mDisconnected = new ArrayList<>();
+    private GattServerCore mCore;
+    private FakeGattServerPort mPort;
+
+    @Before
+    public void setUp() {
+        mCore = new GattServerCore(new EventLog(64, EventLog.WARN), 8);
+        mCore.getHandlerRegistry().registerCharacteristic(VALUE, new CharacteristicHandler() {
+            @Override
+            public byte[] onRead(String device) {
+                return new byte[]{1};
+            }
+        });
+        mCore.getHandlerRegistry().registerDescriptor(VALUE, BasicProfile.CLIENT_CONFIG,
+                mCore.createClientConfigHandler(VALUE));
+        mCore.setListener(new GattServerCore.Listener() {
+            @Override
+            public void onConnectionStateChanged(String device, boolean connected, int connectedDevices) {
+                if (connected) {
+                    mConnected.add(device);
+                } else {
+                    mDisconnected.add(device);
+                }
+            }
+        });
+        mPort = new FakeGattServerPort(mCore);
+        mCore.attach(mPort);
+        mCore.setIdleTimeout(mScheduler, new TimerWheel.Clock() {
+            @Override
+            public long millis() {
+                return mScheduler.getNowMillis();
+            }
+        }, IDLE_MILLIS);
+    }
+
+    private static String address(int i) {
+        return String.format("02:00:00:00:%02X:%02X", i >> 8 & 0xff, i & 0xff);
+    }
+
+    @Test
+    public void parsesAddresses() {
+        assertEquals(0x001122334455L, DeviceSession.parseMac("00:11:22:33:44:55"));
+        assertEquals(0xffffffffffffL, DeviceSession.parseMac("FF:ff:FF:ff:FF:ff"));
+        String[] invalid = {"", "00:11:22:33:44", "00:11:22:33:44:5", "00-11-22-33-44-55", "00:11:22:33:44:5g"};
+        for (String address : invalid) {
+            try {
+                DeviceSession.parseMac(address);
+                fail(address);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void tableSurvivesRandomPutsAndRemoves() {
+        SessionTable table = new SessionTable(32);
+        List<Long> present = new ArrayList<>();
+        Random random = new Random(11);
+        for (int i = 0; i < 20000; i++) {
+            if (!present.isEmpty() && (table.isFull() || random.nextBoolean())) {
+                long mac = present.remove(random.nextInt(present.size()));
+                assertEquals(mac, table.remove(mac).getMac());
+                assertNull(table.get(mac));
+            } else {
+                // few distinct low bits, so probe sequences collide and wrap
+                long mac = (long) random.nextInt(256) << 40 | random.nextInt(64);
+                if (table.get(mac) != null) continue;
+                table.put(new DeviceSession("", mac, i));
+                present.add(mac);
+            }
+            assertEquals(present.size(), table.size());
+        }
+        for (long mac : present) {
+            assertEquals(mac, table.get(mac).getMac());
+        }
+        assertEquals(present.size(), table.clear().size());
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void sessionLivesFromConnectToDisconnect() {
+        FakeGattServerPort.FakeCentral central = mPort.connect("00:00:00:00:00:01");
+        central.requestMtu(185);
+        DeviceSession session = mCore.getSession(central.getAddress());
+        assertEquals(185, session.getMtu());
+        assertEquals(0x000000000001L, session.getMac());
+        central.enableNotifications(VALUE);
+        assertEquals(1, mCore.getSubscriptions().getSubscribers(VALUE).size());
+
+        central.disconnect();
+        assertNull(mCore.getSession(central.getAddress()));
+        assertEquals(0, mCore.getConnectedDeviceCount());
+        assertTrue(mCore.getSubscriptions().getSubscribers(VALUE).isEmpty());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void callbacksAfterDisconnectAreNotAnnounced() {
+        FakeGattServerPort.FakeCentral central = mPort.connect("00:00:00:00:00:01");
+        central.disconnect();
+        // late callbacks from the stack
+        central.requestMtu(185);
+        central.read(VALUE);
+        assertNotNull(mCore.getSession(central.getAddress()));
+        assertEquals(1, mConnected.size());
+        assertEquals(0, mCore.getConnectedDeviceCount());
+
+        // the leftover session goes away without a second disconnect
+        mScheduler.advance(IDLE_MILLIS);
+        assertNull(mCore.getSession(central.getAddress()));
+        assertEquals(1, mDisconnected.size());
+    }
+
+    @Test
+    public void requestBeforeConnectIsAnnouncedOnConnect() {
+        String address = "00:00:00:00:00:01";
+        // a bonded device may read before the connect callback
+        mCore.onCharacteristicReadRequest(address, 1, 0, VALUE);
+        assertNotNull(mCore.getSession(address));
+        assertTrue(mConnected.isEmpty());
+        assertEquals(0, mCore.getConnectedDeviceCount());
+
+        FakeGattServerPort.FakeCentral central = mPort.connect(address);
+        assertEquals(1, mConnected.size());
+        assertEquals(1, mCore.getConnectedDeviceCount());
+        central.disconnect();
+        assertEquals(1, mDisconnected.size());
+        assertEquals(0, mCore.getConnectedDeviceCount());
+    }
+
+    @Test
+    public void idleDevicesAreDisconnected() {
+        FakeGattServerPort.FakeCentral idle = mPort.connect("00:00:00:00:00:01");
+        FakeGattServerPort.FakeCentral busy = mPort.connect("00:00:00:00:00:02");
+        idle.enableNotifications(VALUE);
+        for (int i = 0; i < 10; i++) {
+            mScheduler.advance(IDLE_MILLIS / 4);
+            busy.read(VALUE);
+        }
+        assertNull(mCore.getSession(idle.getAddress()));
+        assertNotNull(mCore.getSession(busy.getAddress()));
+        assertEquals(1, mCore.getConnectedDeviceCount());
+        assertTrue(mCore.getSubscriptions().getSubscribers(VALUE).isEmpty());
+        assertEquals(1, mDisconnected.size());
+        // one idle check per session, not one per request
+        assertEquals(1, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void rotatingAddressesStayBounded() {
+        for (int i = 0; i < 1000; i++) {
+            FakeGattServerPort.FakeCentral central = mPort.connect(address(i));
+            central.enableNotifications(VALUE);
+            central.read(VALUE);
+            // the central never disconnects, it just shows up with the next address
+            mScheduler.advance(1000);
+            assertTrue(mCore.getConnectedDeviceCount() <= 8);
+            assertTrue(mCore.getSubscriptions().getSubscribers(VALUE).size() <= 8);
+        }
+        assertNotNull(mCore.getSession(address(999)));
+        assertEquals(8, mScheduler.getPendingCount());
+        mScheduler.advance(IDLE_MILLIS);
+        assertEquals(0, mCore.getConnectedDeviceCount());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void detachDropsAllSessions() {
+        for (int i = 0; i < 5; i++) {
+            mPort.connect(address(i)).enableNotifications(VALUE);
+        }
+        mCore.detach();
+        assertEquals(0, mCore.getConnectedDeviceCount());
+        assertTrue(mCore.getSessions().isEmpty());
+        assertTrue(mCore.getSubscriptions().getSubscribers(VALUE).isEmpty());
+        assertEquals(5, mDisconnected.size());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+}
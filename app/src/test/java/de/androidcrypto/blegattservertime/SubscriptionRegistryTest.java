@@ -0,0 +1,107 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionRegistryTest {
+
+    private static final UUID TIME = TimeProfile.CURRENT_TIME;
+    private static final UUID BATTERY = BatteryProfile.BATTERY_LEVEL;
+
+    @Test
+    public void subscriptionsArePerCharacteristic() {
+        SubscriptionRegistry<String> registry = new SubscriptionRegistry<>();
+        registry.setSubscription(BATTERY, "A", SubscriptionRegistry.NOTIFY);
+        assertTrue(registry.getSubscribers(TIME).isEmpty());
+        assertEquals(1, registry.getSubscribers(BATTERY).size());
+
+        registry.setSubscription(TIME, "A", SubscriptionRegistry.INDICATE);
+        registry.setSubscription(BATTERY, "A", 0);
+        assertTrue(registry.getSubscribers(BATTERY).isEmpty());
+        assertEquals(SubscriptionRegistry.INDICATE, registry.getSubscription(TIME, "A"));
+        assertTrue(registry.getSubscribers(TIME).get(0).isIndication());
+    }
+
+    @Test
+    public void removeDeviceDropsAllSubscriptions() {
+        SubscriptionRegistry<String> registry = new SubscriptionRegistry<>();
+        registry.setSubscription(TIME, "A", SubscriptionRegistry.NOTIFY);
+        registry.setSubscription(BATTERY, "A", SubscriptionRegistry.NOTIFY);
+        registry.setSubscription(BATTERY, "B", SubscriptionRegistry.NOTIFY);
+        registry.removeDevice("A");
+        assertEquals(0, registry.getSubscription(TIME, "A"));
+        assertEquals(0, registry.getSubscription(BATTERY, "A"));
+        assertEquals(1, registry.getSubscribers(BATTERY).size());
+    }
+
+    @Test
+    public void snapshotIsStableWhileRegistryChanges() {
+        SubscriptionRegistry<String> registry = new SubscriptionRegistry<>();
+        registry.setSubscription(TIME, "A", SubscriptionRegistry.NOTIFY);
+        List<SubscriptionRegistry.Subscriber<String>> snapshot = registry.getSubscribers(TIME);
+        assertSame(snapshot, registry.getSubscribers(TIME));
+        registry.setSubscription(TIME, "B", SubscriptionRegistry.NOTIFY);
+        assertEquals(1, snapshot.size());
+        assertEquals(2, registry.getSubscribers(TIME).size());
+    }
+
+    @Test
+    public void staysConsistentUnderConcurrentChurn() throws Exception {
+        final int threads = 4;
+        final int devicesPerThread = 2000;
+        final SubscriptionRegistry<String> registry = new SubscriptionRegistry<>();
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (running.get()) {
+                        Set<String> seen = new HashSet<>();
+                        for (SubscriptionRegistry.Subscriber<String> subscriber : registry.getSubscribers(TIME)) {
+                            assertTrue(seen.add(subscriber.device));
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        reader.start();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int round = 0; round < 5; round++) {
+                        for (int i = 0; i < devicesPerThread; i++) {
+                            registry.setSubscription(TIME, id + ":" + i, SubscriptionRegistry.NOTIFY);
+                        }
+                        for (int i = 0; i < devicesPerThread; i += 2) {
+                            registry.setSubscription(TIME, id + ":" + i, 0);
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        running.set(false);
+        reader.join();
+
+        assertNull(failure.get());
+        // the odd devices of every thread remain subscribed
+        assertEquals(threads * devicesPerThread / 2, registry.getSubscribers(TIME).size());
+    }
+}
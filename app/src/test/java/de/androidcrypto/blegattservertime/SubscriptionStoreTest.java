@@ -0,0 +1,168 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * File format, batched saves and restoring on reconnect of
+ * {@link SubscriptionStore}.
+ */
+public class SubscriptionStoreTest {
+
+    private static final String BONDED = "00:11:22:33:44:55";
+    private static final String OTHER = "00:11:22:33:44:66";
+    private static final long SAVE_DELAY = 1000;
+
+    private File mFile;
+    private ManualScheduler mScheduler;
+    private EventLog mEventLog;
+    private GattServerCore mCore;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("subscriptions", ".bin");
+        mFile.delete();
+        mScheduler = new ManualScheduler();
+        mEventLog = new EventLog(64, EventLog.WARN);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private SubscriptionStore newStore() {
+        return new SubscriptionStore(mFile, mScheduler, SAVE_DELAY, mEventLog);
+    }
+
+    private static long mac(String address) {
+        return DeviceSession.parseMac(address);
+    }
+
+    /**
+     * A server with the time and battery profiles, as after a restart.
+     */
+    private FakeGattServerPort startServer(SubscriptionStore store) {
+        mCore = new GattServerCore(mEventLog);
+        GattProfile.Builder profile = GattProfile.builder();
+        TimeProfile.addService(profile);
+        BatteryProfile.addService(profile, new BatteryMonitor(new SimulatedBatteryLevelSource(1, 40, 3, 0.1)));
+        profile.build().install(mCore);
+        FakeGattServerPort port = new FakeGattServerPort(mCore);
+        mCore.attach(port);
+        mCore.setSubscriptionStore(store);
+        return port;
+    }
+
+    @Test
+    public void subscriptionsSurviveReloading() throws IOException {
+        SubscriptionStore store = newStore();
+        store.setSubscription(mac(BONDED), TimeProfile.CURRENT_TIME, SubscriptionRegistry.NOTIFY);
+        store.setSubscription(mac(BONDED), BatteryProfile.BATTERY_LEVEL, SubscriptionRegistry.INDICATE);
+        store.setSubscription(mac(OTHER), BatteryProfile.BATTERY_LEVEL, SubscriptionRegistry.NOTIFY);
+        store.flush();
+        // magic, version, count, 2 UUIDs, device count, 2 x (address, 1 byte of flags), checksum
+        assertEquals(4 + 1 + 1 + 32 + 2 + 2 * 7 + 4, mFile.length());
+
+        store = newStore();
+        store.load();
+        assertEquals(2, store.getDeviceCount());
+        assertEquals(SubscriptionRegistry.NOTIFY, store.getSubscription(mac(BONDED), TimeProfile.CURRENT_TIME));
+        assertEquals(SubscriptionRegistry.INDICATE, store.getSubscription(mac(BONDED), BatteryProfile.BATTERY_LEVEL));
+        assertEquals(SubscriptionRegistry.NOTIFY, store.getSubscription(mac(OTHER), BatteryProfile.BATTERY_LEVEL));
+        assertEquals(0, store.getSubscription(mac(OTHER), TimeProfile.CURRENT_TIME));
+    }
+
+    @Test
+    public void changesAreSavedInBatches() {
+        SubscriptionStore store = newStore();
+        store.setSubscription(mac(BONDED), TimeProfile.CURRENT_TIME, SubscriptionRegistry.NOTIFY);
+        store.setSubscription(mac(BONDED), TimeProfile.CURRENT_TIME, 0);
+        store.setSubscription(mac(BONDED), TimeProfile.CURRENT_TIME, SubscriptionRegistry.NOTIFY);
+        assertEquals(1, mScheduler.getPendingCount());
+        assertFalse(mFile.exists());
+        mScheduler.advance(SAVE_DELAY);
+        assertEquals(1, store.getSaveCount());
+        assertTrue(mFile.exists());
+
+        // an unchanged subscription is not saved again
+        store.setSubscription(mac(BONDED), TimeProfile.CURRENT_TIME, SubscriptionRegistry.NOTIFY);
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void unsubscribingEverythingRemovesTheDevice() throws IOException {
+        SubscriptionStore store = newStore();
+        store.setSubscription(mac(BONDED), TimeProfile.CURRENT_TIME, SubscriptionRegistry.NOTIFY);
+        store.setSubscription(mac(BONDED), TimeProfile.CURRENT_TIME, 0);
+        assertEquals(0, store.getDeviceCount());
+        store.flush();
+        store = newStore();
+        store.load();
+        assertEquals(0, store.getDeviceCount());
+    }
+
+    @Test
+    public void corruptFileIsRejected() throws IOException {
+        SubscriptionStore store = newStore();
+        store.setSubscription(mac(BONDED), TimeProfile.CURRENT_TIME, SubscriptionRegistry.NOTIFY);
+        store.flush();
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.seek(10);
+        raf.write(0x55);
+        raf.close();
+
+        store = newStore();
+        try {
+            store.load();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(0, store.getDeviceCount());
+    }
+
+    @Test
+    public void bondedDeviceIsNotifiedAfterRestart() throws IOException {
+        SubscriptionStore store = newStore();
+        FakeGattServerPort port = startServer(store);
+        port.setBonded(BONDED, true);
+        FakeGattServerPort.FakeCentral central = port.connect(BONDED);
+        central.enableNotifications(BatteryProfile.BATTERY_LEVEL);
+        central.disconnect();
+        store.flush();
+
+        // restart, the client does not write the descriptor again
+        store = newStore();
+        store.load();
+        port = startServer(store);
+        port.setBonded(BONDED, true);
+        central = port.connect(BONDED);
+        assertArrayEquals(new byte[]{1, 0},
+                central.readDescriptor(BatteryProfile.BATTERY_LEVEL, BatteryProfile.CLIENT_CONFIG).value);
+        FakeGattServerPort.FakeCentral other = port.connect(OTHER);
+        mCore.notifySubscribers(BatteryProfile.BATTERY_LEVEL, new byte[]{42});
+        assertEquals(1, central.getNotifications().size());
+        assertTrue(other.getNotifications().isEmpty());
+    }
+
+    @Test
+    public void unbondedDeviceIsForgotten() {
+        SubscriptionStore store = newStore();
+        FakeGattServerPort port = startServer(store);
+        FakeGattServerPort.FakeCentral central = port.connect(OTHER);
+        central.enableNotifications(BatteryProfile.BATTERY_LEVEL);
+        assertEquals(0, store.getDeviceCount());
+
+        store.setSubscription(mac(BONDED), BatteryProfile.BATTERY_LEVEL, SubscriptionRegistry.NOTIFY);
+        // the bond was removed while the server was down
+        port.connect(BONDED);
+        assertEquals(0, store.getDeviceCount());
+    }
+}
@@ -0,0 +1,141 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link TimeEncoder} against the former {@link Calendar} based encoder
+ * for a sweep of timestamps and zones. The only intended difference is the
+ * Fractions256 field, which is now millis * 256 / 1000.
+ */
+public class TimeEncoderTest {
+
+    private static final String[] ZONES = {
+            "UTC", "Europe/Berlin", "America/New_York", "America/St_Johns", "Asia/Kolkata",
+            "Asia/Kathmandu", "Australia/Lord_Howe", "Pacific/Chatham", "Pacific/Apia",
+            "America/Sao_Paulo", "Africa/Casablanca"
+    };
+    /* 1950-01-01 .. 2060-01-01 */
+    private static final long FROM = -631152000000L;
+    private static final long TO = 2840140800000L;
+
+    private TimeZone mDefaultZone;
+
+    @Before
+    public void saveDefaultZone() {
+        mDefaultZone = TimeZone.getDefault();
+    }
+
+    @After
+    public void restoreDefaultZone() {
+        TimeZone.setDefault(mDefaultZone);
+    }
+
+    @Test
+    public void matchesCalendarEncoderForRandomTimestamps() {
+        Random random = new Random(42);
+        for (String id : ZONES) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            TimeZone.setDefault(zone);
+            TimeEncoder encoder = new TimeEncoder(zone);
+            for (int i = 0; i < 20000; i++) {
+                long timestamp = FROM + (long) (random.nextDouble() * (TO - FROM));
+                assertEncodedEqual(id, encoder, timestamp);
+            }
+        }
+    }
+
+    @Test
+    public void matchesCalendarEncoderAcrossTransitions() {
+        for (String id : ZONES) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            TimeZone.setDefault(zone);
+            TimeEncoder encoder = new TimeEncoder(zone);
+            // walk forward in steps that are not aligned to any boundary
+            for (long timestamp = 946684800000L; timestamp < 1893456000000L; timestamp += 29 * 60 * 1000 + 333) {
+                assertEncodedEqual(id, encoder, timestamp);
+            }
+        }
+    }
+
+    @Test
+    public void fractions256CoversFullRange() {
+        TimeEncoder encoder = new TimeEncoder(TimeZone.getTimeZone("UTC"));
+        byte[] field = new byte[TimeEncoder.EXACT_TIME_LENGTH];
+        encoder.encodeExactTime(1000L * 1_700_000_000L + 500, TimeProfile.ADJUST_NONE, field, 0);
+        assertEquals(128, field[8] & 0xFF);
+        encoder.encodeExactTime(1000L * 1_700_000_000L + 999, TimeProfile.ADJUST_NONE, field, 0);
+        assertEquals(255, field[8] & 0xFF);
+    }
+
+    @Test
+    public void encodesAtOffsetIntoByteBuffer() {
+        TimeZone zone = TimeZone.getTimeZone("Europe/Berlin");
+        TimeEncoder encoder = new TimeEncoder(zone);
+        long timestamp = 1_700_000_123_456L;
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.position(3);
+        encoder.encodeExactTime(timestamp, TimeProfile.ADJUST_MANUAL, buffer);
+        assertEquals(3 + TimeEncoder.EXACT_TIME_LENGTH, buffer.position());
+
+        byte[] expected = new byte[TimeEncoder.EXACT_TIME_LENGTH];
+        encoder.encodeExactTime(timestamp, TimeProfile.ADJUST_MANUAL, expected, 0);
+        byte[] actual = new byte[TimeEncoder.EXACT_TIME_LENGTH];
+        System.arraycopy(buffer.array(), 3, actual, 0, actual.length);
+        assertArrayEquals(expected, actual);
+    }
+
+    private static void assertEncodedEqual(String zone, TimeEncoder encoder, long timestamp) {
+        byte[] expected = legacyExactTime(timestamp, TimeProfile.ADJUST_EXTERNAL);
+        byte[] actual = new byte[TimeEncoder.EXACT_TIME_LENGTH];
+        encoder.encodeExactTime(timestamp, TimeProfile.ADJUST_EXTERNAL, actual, 0);
+        assertArrayEquals(zone + " @ " + timestamp, expected, actual);
+
+        expected = legacyLocalTimeInfo(timestamp);
+        actual = new byte[TimeEncoder.LOCAL_TIME_INFO_LENGTH];
+        encoder.encodeLocalTimeInfo(timestamp, actual, 0);
+        assertArrayEquals(zone + " @ " + timestamp, expected, actual);
+    }
+
+    /**
+     * The former TimeProfile.getExactTime, with the corrected Fractions256.
+     */
+    private static byte[] legacyExactTime(long timestamp, byte adjustReason) {
+        Calendar time = Calendar.getInstance();
+        time.setTimeInMillis(timestamp);
+        byte[] field = new byte[10];
+        int year = time.get(Calendar.YEAR);
+        field[0] = (byte) (year & 0xFF);
+        field[1] = (byte) ((year >> 8) & 0xFF);
+        field[2] = (byte) (time.get(Calendar.MONTH) + 1);
+        field[3] = (byte) time.get(Calendar.DATE);
+        field[4] = (byte) time.get(Calendar.HOUR_OF_DAY);
+        field[5] = (byte) time.get(Calendar.MINUTE);
+        field[6] = (byte) time.get(Calendar.SECOND);
+        int dayOfWeek = time.get(Calendar.DAY_OF_WEEK);
+        field[7] = (byte) (dayOfWeek == Calendar.SUNDAY ? 7 : dayOfWeek - 1);
+        field[8] = (byte) (time.get(Calendar.MILLISECOND) * 256 / 1000);
+        field[9] = adjustReason;
+        return field;
+    }
+
+    /**
+     * The former TimeProfile.getLocalTimeInfo.
+     */
+    private static byte[] legacyLocalTimeInfo(long timestamp) {
+        Calendar time = Calendar.getInstance();
+        time.setTimeInMillis(timestamp);
+        byte[] field = new byte[2];
+        field[0] = (byte) (time.get(Calendar.ZONE_OFFSET) / 900000);
+        field[1] = TimeProfile.getDstOffsetCode(time.get(Calendar.DST_OFFSET) / 1800000);
+        return field;
+    }
+}
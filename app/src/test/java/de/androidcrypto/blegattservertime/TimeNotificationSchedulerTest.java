@@ -0,0 +1,153 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Boundary alignment, drift correction and error reporting of
+ * {@link TimeNotificationScheduler}, on a {@link ManualScheduler}.
+ */
+public class TimeNotificationSchedulerTest {
+
+    /* 2022-10-17 10:15:30.400 UTC */
+    private static final long WALL_START = 1666001730400L;
+
+    private final ManualScheduler mScheduler = new ManualScheduler();
+    private final List<Long> mTimestamps = new ArrayList<>();
+    private boolean mSubscribed = true;
+    // wall clock offset added on top of elapsed time, to simulate drift and steps
+    private long mWallOffsetNanos;
+    private TimeNotificationScheduler mTimeNotifications;
+
+    @Before
+    public void setUp() {
+        TimeNotificationScheduler.TimeSource timeSource = new TimeNotificationScheduler.TimeSource() {
+            @Override
+            public long elapsedRealtimeNanos() {
+                return mScheduler.getNowMillis() * 1000000L;
+            }
+
+            @Override
+            public long currentTimeMillis() {
+                return WALL_START + (mScheduler.getNowMillis() * 1000000L + mWallOffsetNanos) / 1000000L;
+            }
+        };
+        mTimeNotifications = new TimeNotificationScheduler(mScheduler, timeSource,
+                new TimeNotificationScheduler.Sink() {
+                    @Override
+                    public boolean onTimeNotification(long timestamp) {
+                        if (!mSubscribed) return false;
+                        mTimestamps.add(timestamp);
+                        return true;
+                    }
+                });
+    }
+
+    @Test
+    public void firesOnSecondBoundaries() {
+        mTimeNotifications.start(TimeNotificationScheduler.PERIOD_1S);
+        mScheduler.advance(599);
+        assertTrue(mTimestamps.isEmpty());
+        mScheduler.advance(1);
+        mScheduler.advance(3000);
+        assertEquals(4, mTimestamps.size());
+        for (int i = 0; i < mTimestamps.size(); i++) {
+            assertEquals(WALL_START - 400 + (i + 1) * 1000L, (long) mTimestamps.get(i));
+        }
+        assertEquals(0, mTimeNotifications.getLateness().getMaxNanos());
+        assertEquals(4, mTimeNotifications.getNotificationCount());
+    }
+
+    @Test
+    public void alignsLongerPeriodsToTheWallClock() {
+        mTimeNotifications.start(TimeNotificationScheduler.PERIOD_60S);
+        mScheduler.advance(60000 * 3);
+        assertEquals(3, mTimestamps.size());
+        for (long timestamp : mTimestamps) {
+            assertEquals(0, timestamp % 60000);
+        }
+        mTimestamps.clear();
+        mTimeNotifications.start(TimeNotificationScheduler.PERIOD_10S);
+        mScheduler.advance(60000);
+        assertEquals(6, mTimestamps.size());
+        assertEquals(1, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void rejectsPeriodsThatDoNotDivideAMinute() {
+        try {
+            mTimeNotifications.start(7000);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void reanchoringFollowsAWallClockThatRunsFast() {
+        mTimeNotifications.start(TimeNotificationScheduler.PERIOD_10S);
+        // the wall clock gains 5 ms per minute against elapsed realtime
+        for (int minute = 0; minute < 10; minute++) {
+            for (int step = 0; step < 60; step++) {
+                mScheduler.advance(1000);
+                mWallOffsetNanos += 5000000L / 60;
+            }
+        }
+        long drift = mTimeNotifications.getLastDriftNanos();
+        assertTrue("drift " + drift, drift > 3000000L && drift < 7000000L);
+        // the notifications still land on wall clock boundaries, within a millisecond
+        long last = mTimestamps.get(mTimestamps.size() - 1);
+        long distance = Math.abs(last - Math.round(last / 10000.0) * 10000);
+        assertTrue("off by " + distance, distance <= 1);
+    }
+
+    @Test
+    public void wallClockStepReschedules() {
+        mTimeNotifications.start(TimeNotificationScheduler.PERIOD_60S);
+        mScheduler.advance(1000);
+        // the clock is set forward by 20 s, the next minute is 9.6 s away
+        mWallOffsetNanos = 20000000000L;
+        mTimeNotifications.onWallClockChanged();
+        assertEquals(1, mScheduler.getPendingCount());
+        mScheduler.advance(9600);
+        assertEquals(1, mTimestamps.size());
+        assertEquals(0, mTimestamps.get(0) % 60000);
+    }
+
+    @Test
+    public void reportsTheFractions256Error() {
+        mTimeNotifications.start(TimeNotificationScheduler.PERIOD_1S);
+        mScheduler.advance(10000);
+        // on the boundary nothing is lost to the encoding
+        assertEquals(10, mTimeNotifications.getEncodingError().getCount());
+        assertEquals(0, mTimeNotifications.getEncodingError().getMaxNanos());
+
+        // 999 ms are encoded as 255/256 s, 3.9 ms short
+        assertEquals(1000 * 1000000L - 3906250L, TimeNotificationScheduler.encodedNanos(999));
+        assertEquals(5000 * 1000000L, TimeNotificationScheduler.encodedNanos(5000));
+    }
+
+    @Test
+    public void noErrorWithoutSubscribers() {
+        mSubscribed = false;
+        mTimeNotifications.start(TimeNotificationScheduler.PERIOD_1S);
+        mScheduler.advance(5000);
+        assertEquals(0, mTimeNotifications.getEncodingError().getCount());
+        assertEquals(0, mTimeNotifications.getNotificationCount());
+        // the schedule keeps running
+        assertEquals(1, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void stopCancelsTheNextNotification() {
+        mTimeNotifications.start(TimeNotificationScheduler.PERIOD_1S);
+        mTimeNotifications.stop();
+        mScheduler.advance(5000);
+        assertTrue(mTimestamps.isEmpty());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+}
@@ -0,0 +1,55 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.Test;
+
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class TimePayloadCacheTest {
+
+    private static final long NOW = 1_700_000_000_000L;
+
+    @Test
+    public void sameBucketServesSamePayload() {
+        TimePayloadCache cache = new TimePayloadCache(new TimeEncoder(TimeZone.getTimeZone("UTC")));
+        byte[] first = cache.getExactTime(NOW, TimeProfile.ADJUST_NONE);
+        // 1/256 s is 3.9 ms, so +3 ms stays in the same bucket
+        assertSame(first, cache.getExactTime(NOW + 3, TimeProfile.ADJUST_NONE));
+        assertNotSame(first, cache.getExactTime(NOW + 4, TimeProfile.ADJUST_NONE));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void adjustReasonIsPartOfTheKey() {
+        TimePayloadCache cache = new TimePayloadCache(new TimeEncoder(TimeZone.getTimeZone("UTC")));
+        byte[] none = cache.getExactTime(NOW, TimeProfile.ADJUST_NONE);
+        byte[] manual = cache.getExactTime(NOW, TimeProfile.ADJUST_MANUAL);
+        assertEquals(TimeProfile.ADJUST_NONE, none[9]);
+        assertEquals(TimeProfile.ADJUST_MANUAL, manual[9]);
+    }
+
+    @Test
+    public void localTimeInfoIsCachedUntilInvalidated() {
+        TimeEncoder encoder = new TimeEncoder(TimeZone.getTimeZone("UTC"));
+        TimePayloadCache cache = new TimePayloadCache(encoder);
+        byte[] utc = cache.getLocalTimeInfo(NOW);
+        assertSame(utc, cache.getLocalTimeInfo(NOW + 60_000));
+
+        encoder.setTimeZone(TimeZone.getTimeZone("Asia/Kolkata"));
+        cache.invalidate();
+        byte[] kolkata = cache.getLocalTimeInfo(NOW + 60_000);
+        assertEquals(0, utc[0]);
+        assertEquals(22, kolkata[0]);
+    }
+
+    @Test
+    public void localTimeInfoFollowsDstTransition() {
+        TimePayloadCache cache = new TimePayloadCache(new TimeEncoder(TimeZone.getTimeZone("Europe/Berlin")));
+        // 2023-03-26 00:59:59 UTC, one second before summer time starts
+        long beforeTransition = 1_679_792_399_000L;
+        assertEquals(0, cache.getLocalTimeInfo(beforeTransition)[1]);
+        assertEquals(4, cache.getLocalTimeInfo(beforeTransition + 1000)[1]);
+    }
+}
@@ -0,0 +1,208 @@
+package de.androidcrypto.blegattservertime;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Expiry, cancellation and lifecycle of {@link TimerWheel}, driven by a
+ * manual clock through {@link TimerWheel#runDue()}.
+ */
+public class TimerWheelTest {
+
+    private static final class ManualClock implements TimerWheel.Clock {
+        long now = 1000;
+
+        @Override
+        public long millis() {
+            return now;
+        }
+    }
+
+    private static class CountingTask implements Runnable {
+        final AtomicInteger runs = new AtomicInteger();
+
+        @Override
+        public void run() {
+            runs.incrementAndGet();
+        }
+    }
+
+    private final ManualClock mClock = new ManualClock();
+    private final TimerWheel mWheel = new TimerWheel("test", new EventLog(16, EventLog.DEBUG),
+            mClock, 10, 8);
+
+    private void advance(long millis) {
+        long target = mClock.now + millis;
+        // step through every tick like the worker would
+        while (mClock.now < target) {
+            mClock.now = Math.min(target, mClock.now + 10);
+            mWheel.runDue();
+        }
+    }
+
+    @Test
+    public void runsOneShotAtDeadline() {
+        CountingTask task = new CountingTask();
+        mWheel.schedule(task, 50);
+        assertEquals(1, mWheel.getPendingCount());
+        advance(40);
+        assertEquals(0, task.runs.get());
+        advance(10);
+        assertEquals(1, task.runs.get());
+        advance(500);
+        assertEquals(1, task.runs.get());
+        assertEquals(0, mWheel.getPendingCount());
+    }
+
+    @Test
+    public void cancelledTimerDoesNotRun() {
+        CountingTask task = new CountingTask();
+        Scheduler.Cancellable timer = mWheel.schedule(task, 30);
+        advance(10);
+        timer.cancel();
+        timer.cancel();
+        assertEquals(0, mWheel.getPendingCount());
+        advance(100);
+        assertEquals(0, task.runs.get());
+    }
+
+    @Test
+    public void delayBeyondOneRotationWaitsForItsRound() {
+        // 8 buckets of 10 ms make one rotation 80 ms
+        CountingTask task = new CountingTask();
+        mWheel.schedule(task, 250);
+        advance(240);
+        assertEquals(0, task.runs.get());
+        advance(10);
+        assertEquals(1, task.runs.get());
+    }
+
+    @Test
+    public void fixedRateDoesNotDrift() {
+        final List<Long> runs = new ArrayList<>();
+        mWheel.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                runs.add(mClock.now);
+            }
+        }, 100, 100);
+        // a late worker catches up without moving later deadlines
+        mClock.now += 250;
+        mWheel.runDue();
+        advance(250);
+        assertEquals(5, runs.size());
+        assertEquals(1500, (long) runs.get(4));
+        assertEquals(1, mWheel.getPendingCount());
+    }
+
+    @Test
+    public void periodicTimerCanCancelItself() {
+        final AtomicInteger runs = new AtomicInteger();
+        final Scheduler.Cancellable[] timer = new Scheduler.Cancellable[1];
+        timer[0] = mWheel.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (runs.incrementAndGet() == 3) {
+                    timer[0].cancel();
+                }
+            }
+        }, 10, 10);
+        advance(200);
+        assertEquals(3, runs.get());
+        assertEquals(0, mWheel.getPendingCount());
+    }
+
+    @Test
+    public void manyPerDeviceTimers() {
+        CountingTask task = new CountingTask();
+        List<Scheduler.Cancellable> timers = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            timers.add(mWheel.schedule(task, 10 + i % 1000));
+        }
+        // half of the devices stay active and push their idle timeout out
+        for (int i = 0; i < timers.size(); i += 2) {
+            timers.get(i).cancel();
+        }
+        assertEquals(2500, mWheel.getPendingCount());
+        advance(1010);
+        assertEquals(2500, task.runs.get());
+        assertEquals(0, mWheel.getPendingCount());
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTheWheel() {
+        CountingTask task = new CountingTask();
+        mWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("boom");
+            }
+        }, 10);
+        mWheel.schedule(task, 10);
+        mWheel.schedule(task, 20);
+        advance(20);
+        assertEquals(2, task.runs.get());
+        assertEquals(1, mWheel.getFailedCount());
+    }
+
+    @Test
+    public void taskScheduledByTaskRuns() {
+        final CountingTask inner = new CountingTask();
+        mWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mWheel.schedule(inner, 0);
+            }
+        }, 10);
+        advance(10);
+        // the current tick already expired, the new timer takes the next one
+        assertEquals(0, inner.runs.get());
+        advance(10);
+        assertEquals(1, inner.runs.get());
+    }
+
+    @Test
+    public void shutdownCancelsEverything() {
+        CountingTask task = new CountingTask();
+        mWheel.schedule(task, 10);
+        mWheel.scheduleAtFixedRate(task, 10, 10);
+        advance(0);
+        mWheel.shutdown();
+        assertTrue(mWheel.isShutdown());
+        assertEquals(0, mWheel.getPendingCount());
+        mWheel.schedule(task, 10);
+        assertEquals(0, mWheel.getPendingCount());
+        advance(100);
+        assertEquals(0, task.runs.get());
+    }
+
+    @Test
+    public void workerThreadRunsTimers() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel("test-worker", new EventLog(16, EventLog.DEBUG));
+        wheel.start();
+        try {
+            final CountDownLatch fired = new CountDownLatch(3);
+            final Runnable countDown = new Runnable() {
+                @Override
+                public void run() {
+                    fired.countDown();
+                }
+            };
+            // the long timer parks the worker, the short one must wake it
+            wheel.schedule(countDown, 60000);
+            wheel.schedule(countDown, 20);
+            wheel.scheduleAtFixedRate(countDown, 30, 10);
+            assertTrue(fired.await(5, TimeUnit.SECONDS));
+        } finally {
+            wheel.shutdown();
+        }
+        assertEquals(0, wheel.getPendingCount());
+    }
+}